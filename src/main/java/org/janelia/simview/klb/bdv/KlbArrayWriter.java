@@ -0,0 +1,99 @@
+package org.janelia.simview.klb.bdv;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.type.NativeType;
+import org.janelia.simview.klb.KLB;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Writes primitive arrays (byte[], short[], float[]) to KLB files.
+ * <p>
+ * KLB expects little-endian bytes. byte[] arrays are written as they
+ * are, short[] and float[] arrays are copied in bulk into a byte[]
+ * buffer that is kept per slot (e.g. per resolution level) and reused
+ * for the next array of the same size. Instances are not thread-safe,
+ * use one per thread.
+ */
+class KlbArrayWriter
+{
+    private byte[][] buffers = new byte[ 0 ][];
+
+    /**
+     * Returns the primitive backing array of an ArrayImg, or null if img
+     * is not array backed.
+     */
+    static Object getStorageArray( final Img< ? > img )
+    {
+        if ( img instanceof ArrayImg ) {
+            final Object access = (( ArrayImg< ?, ? > ) img).update( null );
+            if ( access instanceof ArrayDataAccess ) {
+                return (( ArrayDataAccess< ? > ) access).getCurrentStorageArray();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes array to a KLB file.
+     *
+     * @param slot      buffer slot, arrays written to the same slot should have the same size
+     * @param blockSize KLB block size (x, y, z, c, t), or null for the KLB default
+     */
+    < T extends NativeType< T > > void write( final KLB klb, final Object array, final int slot, final String filePath, final long[] xyzct, final T type, final float[] sampling, final long[] blockSize )
+            throws IOException
+    {
+        klb.writeFull( toBytes( array, slot ), filePath, xyzct, type, sampling, blockSize, null, null );
+    }
+
+    /**
+     * Returns the little-endian bytes of array, in the buffer of slot
+     * unless array is a byte[].
+     */
+    byte[] toBytes( final Object array, final int slot )
+    {
+        if ( array instanceof byte[] ) {
+            return ( byte[] ) array;
+        }
+        if ( array instanceof short[] ) {
+            final short[] a = ( short[] ) array;
+            final byte[] bytes = buffer( slot, 2 * a.length );
+            ByteBuffer.wrap( bytes ).order( ByteOrder.LITTLE_ENDIAN ).asShortBuffer().put( a );
+            return bytes;
+        }
+        if ( array instanceof float[] ) {
+            final float[] a = ( float[] ) array;
+            final byte[] bytes = buffer( slot, 4 * a.length );
+            ByteBuffer.wrap( bytes ).order( ByteOrder.LITTLE_ENDIAN ).asFloatBuffer().put( a );
+            return bytes;
+        }
+        throw new IllegalArgumentException( "Unknown or unsupported data type." );
+    }
+
+    /**
+     * Drops all buffers.
+     */
+    void clear()
+    {
+        buffers = new byte[ 0 ][];
+    }
+
+    private byte[] buffer( final int slot, final int numBytes )
+    {
+        if ( slot >= buffers.length ) {
+            final byte[][] b = new byte[ slot + 1 ][];
+            System.arraycopy( buffers, 0, b, 0, buffers.length );
+            buffers = b;
+        }
+        if ( buffers[ slot ] == null || buffers[ slot ].length != numBytes ) {
+            // drop the old buffer before allocating the new one
+            buffers[ slot ] = null;
+            buffers[ slot ] = new byte[ numBytes ];
+        }
+        return buffers[ slot ];
+    }
+}
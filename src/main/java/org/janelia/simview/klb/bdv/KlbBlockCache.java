@@ -0,0 +1,229 @@
+package org.janelia.simview.klb.bdv;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of decompressed KLB blocks, keyed by file path and block grid
+ * position, shared by the array loaders of all ViewSetups and
+ * resolution levels of a dataset.
+ * <p>
+ * Blocks are stored as primitive arrays (byte[], short[], float[]).
+ * The cache is bounded by a byte budget and evicts least recently used
+ * blocks. It is split into independently locked segments, so that
+ * concurrent fetcher threads rarely contend.
+ * <p>
+ * Blocks are strongly referenced, and may be the very arrays returned as
+ * cells to the softly referenced cell cache, which then cannot give them
+ * back under memory pressure. The cache is therefore disabled by default
+ * (see {@link KlbCacheConfig#getBlockCacheSizeInBytes()}) and its budget
+ * comes on top of the cell cache.
+ */
+public class KlbBlockCache
+{
+    private static final int NUM_SEGMENTS = 16;
+
+    private final Segment[] segments = new Segment[ NUM_SEGMENTS ];
+    private volatile long maxSizeInBytes;
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+    /**
+     * @param maxSizeInBytes byte budget, 0 disables the cache
+     */
+    public KlbBlockCache( final long maxSizeInBytes )
+    {
+        this.maxSizeInBytes = maxSizeInBytes;
+        for ( int i = 0; i < NUM_SEGMENTS; ++i ) {
+            segments[ i ] = new Segment();
+        }
+    }
+
+    public boolean isEnabled()
+    {
+        return maxSizeInBytes > 0;
+    }
+
+    public long getMaxSizeInBytes()
+    {
+        return maxSizeInBytes;
+    }
+
+    /**
+     * Sets the byte budget, evicting blocks if necessary.
+     * 0 disables the cache.
+     *
+     * @param maxSizeInBytes byte budget
+     */
+    public void setMaxSizeInBytes( final long maxSizeInBytes )
+    {
+        this.maxSizeInBytes = maxSizeInBytes;
+        for ( final Segment segment : segments ) {
+            segment.evict( segmentBudget() );
+        }
+    }
+
+    /**
+     * Returns the number of bytes currently held.
+     */
+    public long getSizeInBytes()
+    {
+        long size = 0;
+        for ( final Segment segment : segments ) {
+            size += segment.getSizeInBytes();
+        }
+        return size;
+    }
+
+    public long getNumHits()
+    {
+        return hits.get();
+    }
+
+    public long getNumMisses()
+    {
+        return misses.get();
+    }
+
+    public double getHitRate()
+    {
+        final long h = hits.get();
+        final long total = h + misses.get();
+        return total == 0 ? 0 : ( double ) h / total;
+    }
+
+    public void resetStatistics()
+    {
+        hits.set( 0 );
+        misses.set( 0 );
+    }
+
+    public void clear()
+    {
+        for ( final Segment segment : segments ) {
+            segment.evict( 0 );
+        }
+    }
+
+    /**
+     * Returns the decompressed block at grid position (bx, by, bz) of
+     * the given file, or null if it is not cached.
+     */
+    Object get( final String filePath, final long bx, final long by, final long bz )
+    {
+        final BlockKey key = new BlockKey( filePath, bx, by, bz );
+        final Object block = segmentFor( key ).get( key );
+        if ( block == null ) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return block;
+    }
+
+    /**
+     * Stores a decompressed block. The array must not be modified
+     * afterwards.
+     */
+    void put( final String filePath, final long bx, final long by, final long bz, final Object block )
+    {
+        final BlockKey key = new BlockKey( filePath, bx, by, bz );
+        segmentFor( key ).put( key, block, segmentBudget() );
+    }
+
+    private long segmentBudget()
+    {
+        return maxSizeInBytes / NUM_SEGMENTS;
+    }
+
+    private Segment segmentFor( final BlockKey key )
+    {
+        final int h = key.hashCode();
+        return segments[ ((h ^ (h >>> 16)) & 0x7fffffff) % NUM_SEGMENTS ];
+    }
+
+    static long sizeInBytes( final Object block )
+    {
+        if ( block instanceof byte[] ) {
+            return (( byte[] ) block).length;
+        } else if ( block instanceof short[] ) {
+            return 2L * (( short[] ) block).length;
+        } else if ( block instanceof float[] ) {
+            return 4L * (( float[] ) block).length;
+        }
+        throw new IllegalArgumentException( "Unsupported block type " + block.getClass().getName() );
+    }
+
+    private static final class Segment
+    {
+        private final LinkedHashMap< BlockKey, Object > map = new LinkedHashMap< BlockKey, Object >( 64, 0.75f, true );
+        private long sizeInBytes = 0;
+
+        synchronized Object get( final BlockKey key )
+        {
+            return map.get( key );
+        }
+
+        synchronized void put( final BlockKey key, final Object block, final long budget )
+        {
+            final long size = sizeInBytes( block );
+            if ( size > budget ) {
+                return;
+            }
+            final Object old = map.put( key, block );
+            sizeInBytes += size;
+            if ( old != null ) {
+                sizeInBytes -= sizeInBytes( old );
+            }
+            evict( budget );
+        }
+
+        synchronized void evict( final long budget )
+        {
+            for ( final Iterator< Map.Entry< BlockKey, Object > > it = map.entrySet().iterator(); sizeInBytes > budget && it.hasNext(); ) {
+                sizeInBytes -= sizeInBytes( it.next().getValue() );
+                it.remove();
+            }
+        }
+
+        synchronized long getSizeInBytes()
+        {
+            return sizeInBytes;
+        }
+    }
+
+    private static final class BlockKey
+    {
+        private final String filePath;
+        private final long x, y, z;
+
+        BlockKey( final String filePath, final long x, final long y, final long z )
+        {
+            this.filePath = filePath;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+
+        @Override
+        public boolean equals( final Object o )
+        {
+            if ( !(o instanceof BlockKey) ) {
+                return false;
+            }
+            final BlockKey k = ( BlockKey ) o;
+            return k.x == x && k.y == y && k.z == z && k.filePath.equals( filePath );
+        }
+
+        @Override
+        public int hashCode()
+        {
+            long h = filePath.hashCode();
+            h = h * 31 + x;
+            h = h * 31 + y;
+            h = h * 31 + z;
+            return ( int ) (h ^ (h >>> 32));
+        }
+    }
+}
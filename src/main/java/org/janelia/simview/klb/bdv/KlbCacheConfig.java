@@ -0,0 +1,265 @@
+package org.janelia.simview.klb.bdv;
+
+import mpicbg.spim.data.XmlHelpers;
+import org.jdom2.Element;
+import spim.Threads;
+
+/**
+ * Sizing and priority policy of the caches of a {@link KlbImgLoader}.
+ * <p>
+ * Controls the number of fetcher threads of the BigDataViewer cell
+ * cache (independently of the compute threads), the memory budget of
+ * decoded cells, the budget of the KLB block cache and the order in
+ * which queued cells of different resolution levels are fetched.
+ * <p>
+ * A configuration is stored in the dataset XML as a Cache element of
+ * the ImageLoader. System properties (see {@link #applySystemProperties})
+ * take precedence, so that a render server can cap all datasets it
+ * opens, without the caps being written to datasets it saves:
+ * <pre>
+ * -Dklb.cache.fetcherThreads=4 -Dklb.cache.maxSize=8g
+ * -Dklb.cache.blockCacheSize=512m -Dklb.cache.priority=COARSEST_FIRST
+ * </pre>
+ */
+public class KlbCacheConfig
+{
+    public static final String XML_ELEMENT = "Cache";
+    public static final String PROPERTY_PREFIX = "klb.cache.";
+
+    /**
+     * Fetch priority of the cells of a resolution level, 0 being fetched
+     * first.
+     */
+    public enum Priority
+    {
+        /**
+         * Coarser levels first, one priority per level (the default).
+         */
+        COARSE_FIRST,
+
+        /**
+         * The coarsest level first, all others in the order they are
+         * requested.
+         */
+        COARSEST_FIRST,
+
+        /**
+         * All levels in the order they are requested.
+         */
+        UNIFORM,
+
+        /**
+         * Finer levels first, one priority per level.
+         */
+        FINE_FIRST;
+
+        /**
+         * Returns the priority of level, in 0 ... numLevels - 1.
+         */
+        public int getPriority( final int level, final int numLevels )
+        {
+            switch ( this ) {
+                case COARSEST_FIRST:
+                    return level == numLevels - 1 || numLevels < 2 ? 0 : 1;
+                case UNIFORM:
+                    return 0;
+                case FINE_FIRST:
+                    return level;
+                default:
+                    return numLevels - 1 - level;
+            }
+        }
+    }
+
+    private int numFetcherThreads = 0;
+    private long maxSizeInBytes = 0;
+    private long blockCacheSizeInBytes = 0;
+    private Priority priority = Priority.COARSE_FIRST;
+
+    /**
+     * Returns the number of fetcher threads, 0 meaning one per
+     * available processor.
+     */
+    public int getNumFetcherThreads()
+    {
+        return numFetcherThreads;
+    }
+
+    public void setNumFetcherThreads( final int numFetcherThreads )
+    {
+        this.numFetcherThreads = Math.max( 0, numFetcherThreads );
+    }
+
+    /**
+     * Returns the number of fetcher threads to start.
+     */
+    public int getEffectiveNumFetcherThreads()
+    {
+        return numFetcherThreads > 0 ? numFetcherThreads : Threads.numThreads();
+    }
+
+    /**
+     * Returns the memory budget of decoded cells, 0 meaning that they
+     * are only bounded by the heap.
+     */
+    public long getMaxSizeInBytes()
+    {
+        return maxSizeInBytes;
+    }
+
+    public void setMaxSizeInBytes( final long maxSizeInBytes )
+    {
+        this.maxSizeInBytes = Math.max( 0, maxSizeInBytes );
+    }
+
+    /**
+     * Returns the budget of the KLB block cache, 0 (the default) disabling
+     * it and -1 meaning 1/16 of the maximum heap size. The block cache
+     * holds decoded blocks through strong references, including arrays
+     * that are also cells of the cell cache, so its budget is not given
+     * back under memory pressure like the softly referenced cell cache.
+     */
+    public long getBlockCacheSizeInBytes()
+    {
+        return blockCacheSizeInBytes;
+    }
+
+    public void setBlockCacheSizeInBytes( final long blockCacheSizeInBytes )
+    {
+        this.blockCacheSizeInBytes = Math.max( -1, blockCacheSizeInBytes );
+    }
+
+    public long getEffectiveBlockCacheSizeInBytes()
+    {
+        return blockCacheSizeInBytes >= 0 ? blockCacheSizeInBytes : Runtime.getRuntime().maxMemory() / 16;
+    }
+
+    public Priority getPriority()
+    {
+        return priority;
+    }
+
+    public void setPriority( final Priority priority )
+    {
+        this.priority = priority == null ? Priority.COARSE_FIRST : priority;
+    }
+
+    public KlbCacheConfig copy()
+    {
+        final KlbCacheConfig c = new KlbCacheConfig();
+        c.numFetcherThreads = numFetcherThreads;
+        c.maxSizeInBytes = maxSizeInBytes;
+        c.blockCacheSizeInBytes = blockCacheSizeInBytes;
+        c.priority = priority;
+        return c;
+    }
+
+    /**
+     * Overrides settings with the system properties klb.cache.fetcherThreads,
+     * klb.cache.maxSize, klb.cache.blockCacheSize (sizes in bytes, optionally
+     * suffixed with k, m or g) and klb.cache.priority that are set. Malformed
+     * values are reported and ignored.
+     *
+     * @return this configuration
+     */
+    public KlbCacheConfig applySystemProperties()
+    {
+        for ( final String name : new String[] { "fetcherThreads", "maxSize", "blockCacheSize", "priority" } ) {
+            final String value = System.getProperty( PROPERTY_PREFIX + name );
+            if ( value != null ) {
+                set( name, value, "system property " + PROPERTY_PREFIX + name );
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Sets the setting name from text, reporting and ignoring malformed
+     * values so that a dataset can always be opened.
+     */
+    private void set( final String name, final String text, final String source )
+    {
+        try {
+            if ( "fetcherThreads".equals( name ) ) {
+                setNumFetcherThreads( Integer.parseInt( text.trim() ) );
+            } else if ( "maxSize".equals( name ) ) {
+                setMaxSizeInBytes( parseSize( text ) );
+            } else if ( "blockCacheSize".equals( name ) ) {
+                setBlockCacheSizeInBytes( parseSize( text ) );
+            } else if ( "priority".equals( name ) ) {
+                setPriority( Priority.valueOf( text.trim().toUpperCase() ) );
+            }
+        } catch ( IllegalArgumentException ex ) {
+            // includes NumberFormatException
+            System.err.println( "Ignoring " + source + " '" + text + "': " + ex.getMessage() );
+        }
+    }
+
+    /**
+     * Returns whether all settings are the defaults.
+     */
+    public boolean isDefault()
+    {
+        return numFetcherThreads == 0 && maxSizeInBytes == 0 && blockCacheSizeInBytes == 0 && priority == Priority.COARSE_FIRST;
+    }
+
+    public Element toXml()
+    {
+        final Element elem = new Element( XML_ELEMENT );
+        if ( numFetcherThreads > 0 ) {
+            elem.addContent( XmlHelpers.intElement( "fetcherThreads", numFetcherThreads ) );
+        }
+        if ( maxSizeInBytes > 0 ) {
+            elem.addContent( XmlHelpers.textElement( "maxSize", Long.toString( maxSizeInBytes ) ) );
+        }
+        if ( blockCacheSizeInBytes != 0 ) {
+            elem.addContent( XmlHelpers.textElement( "blockCacheSize", Long.toString( blockCacheSizeInBytes ) ) );
+        }
+        if ( priority != Priority.COARSE_FIRST ) {
+            elem.addContent( XmlHelpers.textElement( "priority", priority.name() ) );
+        }
+        return elem;
+    }
+
+    /**
+     * Reads a configuration from a Cache element, null yields the
+     * default configuration. Malformed settings are reported and keep
+     * their defaults.
+     */
+    public static KlbCacheConfig fromXml( final Element elem )
+    {
+        final KlbCacheConfig config = new KlbCacheConfig();
+        if ( elem == null ) {
+            return config;
+        }
+        for ( final String name : new String[] { "fetcherThreads", "maxSize", "blockCacheSize", "priority" } ) {
+            if ( elem.getChild( name ) != null ) {
+                config.set( name, elem.getChildTextTrim( name ), XML_ELEMENT + "/" + name );
+            }
+        }
+        return config;
+    }
+
+    /**
+     * Parses a size in bytes like "1073741824", "512m" or "8g".
+     */
+    public static long parseSize( final String text )
+    {
+        final String s = text.trim().toLowerCase();
+        if ( s.isEmpty() ) {
+            throw new NumberFormatException( "Empty size" );
+        }
+        final char unit = s.charAt( s.length() - 1 );
+        final int shift = unit == 'k' ? 10 : unit == 'm' ? 20 : unit == 'g' ? 30 : unit == 't' ? 40 : 0;
+        return Long.parseLong( shift == 0 ? s : s.substring( 0, s.length() - 1 ).trim() ) << shift;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "fetcherThreads=" + getEffectiveNumFetcherThreads()
+                + ", maxSize=" + maxSizeInBytes
+                + ", blockCacheSize=" + getEffectiveBlockCacheSizeInBytes()
+                + ", priority=" + priority;
+    }
+}
@@ -0,0 +1,136 @@
+package org.janelia.simview.klb.bdv;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accounts for the decoded cells held by the BigDataViewer cell cache
+ * and enforces its memory budget.
+ * <p>
+ * The cell cache holds cells through soft references and cannot evict
+ * single cells. Every array loaded into it is registered here and
+ * tracked through a weak reference, so that the occupancy drops when
+ * the garbage collector has reclaimed it. When the occupancy exceeds the
+ * budget, the whole cache is cleared: this is a full flush, not an
+ * eviction of the oldest cells. Visible cells are then reloaded from the
+ * faster tiers, coarse levels first. Arrays registered before a clear no
+ * longer count, whether or not they have been reclaimed yet.
+ */
+final class KlbCacheLedger
+{
+    private final Runnable clearCache;
+    private final ReferenceQueue< Object > queue = new ReferenceQueue< Object >();
+    private final Set< Entry > entries = Collections.newSetFromMap( new ConcurrentHashMap< Entry, Boolean >() );
+    private final AtomicLong sizeInBytes = new AtomicLong();
+    private final AtomicLong numLoaded = new AtomicLong(), numClears = new AtomicLong();
+    private final AtomicBoolean clearing = new AtomicBoolean();
+    private volatile long maxSizeInBytes;
+
+    KlbCacheLedger( final long maxSizeInBytes, final Runnable clearCache )
+    {
+        this.maxSizeInBytes = maxSizeInBytes;
+        this.clearCache = clearCache;
+    }
+
+    long getMaxSizeInBytes()
+    {
+        return maxSizeInBytes;
+    }
+
+    void setMaxSizeInBytes( final long maxSizeInBytes )
+    {
+        this.maxSizeInBytes = Math.max( 0, maxSizeInBytes );
+    }
+
+    /**
+     * Registers an array of the given size loaded into the cache, and
+     * flushes the cache if the arrays that have not been reclaimed exceed
+     * the budget.
+     *
+     * @return array
+     */
+    < A > A register( final A array, final long bytes )
+    {
+        expunge();
+        entries.add( new Entry( array, bytes, queue ) );
+        final long size = sizeInBytes.addAndGet( bytes );
+        numLoaded.incrementAndGet();
+        final long max = maxSizeInBytes;
+        if ( max > 0 && size > max && clearing.compareAndSet( false, true ) ) {
+            try {
+                forgetAll();
+                numClears.incrementAndGet();
+                KlbMetrics.getInstance().recordCacheClear();
+                clearCache.run();
+            } finally {
+                clearing.set( false );
+            }
+        }
+        return array;
+    }
+
+    /**
+     * Returns the number of bytes of registered arrays that have not
+     * been reclaimed yet.
+     */
+    long getSizeInBytes()
+    {
+        expunge();
+        return sizeInBytes.get();
+    }
+
+    int getNumCells()
+    {
+        expunge();
+        return entries.size();
+    }
+
+    long getNumLoaded()
+    {
+        return numLoaded.get();
+    }
+
+    long getNumClears()
+    {
+        return numClears.get();
+    }
+
+    /**
+     * Stops accounting for all registered arrays, which the cleared
+     * cache no longer holds.
+     */
+    private void forgetAll()
+    {
+        for ( final Entry e : entries ) {
+            if ( entries.remove( e ) ) {
+                sizeInBytes.addAndGet( -e.bytes );
+            }
+        }
+    }
+
+    private void expunge()
+    {
+        Object ref;
+        while ( (ref = queue.poll()) != null ) {
+            if ( entries.remove( ref ) ) {
+                sizeInBytes.addAndGet( -(( Entry ) ref).bytes );
+            }
+        }
+    }
+
+    private static final class Entry extends WeakReference< Object >
+    {
+        final long bytes;
+
+        Entry( final Object referent, final long bytes, final ReferenceQueue< Object > queue )
+        {
+            super( referent, queue );
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,391 @@
+package org.janelia.simview.klb.bdv;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Off-heap store of LZ-compressed cells, an intermediate tier between
+ * the heap-resident cell cache and decoding KLB files.
+ * <p>
+ * Cells are byte-shuffled (low bytes first, then high bytes), compressed
+ * with {@link KlbLz} and appended to a ring of direct ByteBuffer slabs.
+ * When the ring wraps around, the oldest slab is reused and all cells
+ * stored in it are dropped. Restoring a cell from the store is much
+ * cheaper than decoding bzip2-compressed KLB blocks.
+ */
+public class KlbCompressedCellStore
+{
+    private final int slabSize;
+    private final Slab[] slabs;
+    private int currentSlab = 0;
+    private final HashMap< CellKey, Entry > index = new HashMap< CellKey, Entry >();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile boolean released = false;
+
+    private long storedRawBytes = 0, storedCompressedBytes = 0;
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+    private static final ThreadLocal< byte[][] > scratch = new ThreadLocal< byte[][] >()
+    {
+        @Override
+        protected byte[][] initialValue()
+        {
+            return new byte[ 2 ][ 0 ];
+        }
+    };
+
+    /**
+     * @param maxSizeInBytes off-heap budget, 0 disables the store
+     */
+    public KlbCompressedCellStore( final long maxSizeInBytes )
+    {
+        this( maxSizeInBytes, 8 << 20 );
+    }
+
+    /**
+     * @param maxSizeInBytes off-heap budget, 0 disables the store
+     * @param slabSize       size of a single slab, the unit of eviction
+     */
+    public KlbCompressedCellStore( final long maxSizeInBytes, final int slabSize )
+    {
+        this.slabSize = slabSize;
+        final int numSlabs = maxSizeInBytes <= 0 ? 0 : ( int ) Math.max( 2, maxSizeInBytes / slabSize );
+        slabs = new Slab[ numSlabs ];
+    }
+
+    public boolean isEnabled()
+    {
+        return slabs.length > 0 && !released;
+    }
+
+    /**
+     * Drops all cells and the slabs holding them, so that their direct
+     * memory can be reclaimed. The store stays empty and disabled
+     * afterwards.
+     */
+    public void release()
+    {
+        lock.writeLock().lock();
+        try {
+            released = true;
+            index.clear();
+            Arrays.fill( slabs, null );
+            currentSlab = 0;
+            storedRawBytes = 0;
+            storedCompressedBytes = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the off-heap budget in bytes.
+     */
+    public long getMaxSizeInBytes()
+    {
+        return ( long ) slabs.length * slabSize;
+    }
+
+    /**
+     * Returns the number of off-heap bytes allocated so far.
+     */
+    public long getAllocatedBytes()
+    {
+        lock.readLock().lock();
+        try {
+            long size = 0;
+            for ( final Slab slab : slabs ) {
+                if ( slab != null ) {
+                    size += slabSize;
+                }
+            }
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of compressed bytes of the cells currently stored.
+     */
+    public long getOccupiedBytes()
+    {
+        lock.readLock().lock();
+        try {
+            return storedCompressedBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the uncompressed size divided by the compressed size of the
+     * cells currently stored.
+     */
+    public double getCompressionRatio()
+    {
+        lock.readLock().lock();
+        try {
+            return storedCompressedBytes == 0 ? 0 : ( double ) storedRawBytes / storedCompressedBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getNumCells()
+    {
+        lock.readLock().lock();
+        try {
+            return index.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getNumHits()
+    {
+        return hits.get();
+    }
+
+    public long getNumMisses()
+    {
+        return misses.get();
+    }
+
+    public void resetStatistics()
+    {
+        hits.set( 0 );
+        misses.set( 0 );
+    }
+
+    /**
+     * Restores the cell at the given position into dst, a primitive
+     * array of the cell's size. Returns false if the cell is not stored.
+     */
+    boolean get( final int timePoint, final int viewSetup, final int level, final long[] offset, final Object dst )
+    {
+        final CellKey key = new CellKey( timePoint, viewSetup, level, offset );
+        final byte[][] buffers = scratch.get();
+        final Entry entry;
+        lock.readLock().lock();
+        try {
+            entry = index.get( key );
+            if ( entry == null || entry.rawLength != rawLength( dst ) ) {
+                misses.incrementAndGet();
+                return false;
+            }
+            if ( buffers[ 0 ].length < entry.length ) {
+                buffers[ 0 ] = new byte[ entry.length ];
+            }
+            final ByteBuffer b = slabs[ entry.slab ].buffer.duplicate();
+            b.position( entry.offset );
+            b.get( buffers[ 0 ], 0, entry.length );
+        } finally {
+            lock.readLock().unlock();
+        }
+        if ( buffers[ 1 ].length < entry.rawLength ) {
+            buffers[ 1 ] = new byte[ entry.rawLength ];
+        }
+        KlbLz.decompress( buffers[ 0 ], entry.length, buffers[ 1 ], entry.rawLength );
+        unshuffle( buffers[ 1 ], dst );
+        hits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Compresses and stores the cell at the given position. data is a
+     * primitive array (byte[], short[], float[]).
+     */
+    void put( final int timePoint, final int viewSetup, final int level, final long[] offset, final Object data )
+    {
+        final int rawLength = rawLength( data );
+        final byte[][] buffers = scratch.get();
+        if ( buffers[ 1 ].length < rawLength ) {
+            buffers[ 1 ] = new byte[ rawLength ];
+        }
+        if ( buffers[ 0 ].length < KlbLz.maxCompressedLength( rawLength ) ) {
+            buffers[ 0 ] = new byte[ KlbLz.maxCompressedLength( rawLength ) ];
+        }
+        shuffle( data, buffers[ 1 ] );
+        final int length = KlbLz.compress( buffers[ 1 ], rawLength, buffers[ 0 ] );
+        if ( length > slabSize ) {
+            return;
+        }
+
+        final CellKey key = new CellKey( timePoint, viewSetup, level, offset );
+        lock.writeLock().lock();
+        try {
+            if ( released ) {
+                return;
+            }
+            Slab slab = slabs[ currentSlab ];
+            if ( slab == null ) {
+                slab = slabs[ currentSlab ] = new Slab( slabSize );
+            }
+            if ( slabSize - slab.used < length ) {
+                currentSlab = (currentSlab + 1) % slabs.length;
+                slab = slabs[ currentSlab ];
+                if ( slab == null ) {
+                    slab = slabs[ currentSlab ] = new Slab( slabSize );
+                } else {
+                    evict( slab );
+                }
+            }
+            final ByteBuffer b = slab.buffer.duplicate();
+            b.position( slab.used );
+            b.put( buffers[ 0 ], 0, length );
+            final Entry old = index.put( key, new Entry( currentSlab, slab.used, length, rawLength ) );
+            if ( old != null ) {
+                storedRawBytes -= old.rawLength;
+                storedCompressedBytes -= old.length;
+            }
+            slab.used += length;
+            slab.keys.add( key );
+            storedRawBytes += rawLength;
+            storedCompressedBytes += length;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drops all cells stored in slab and marks it empty.
+     * Requires the write lock.
+     */
+    private void evict( final Slab slab )
+    {
+        for ( final CellKey key : slab.keys ) {
+            final Entry entry = index.get( key );
+            if ( entry != null && slabs[ entry.slab ] == slab ) {
+                index.remove( key );
+                storedRawBytes -= entry.rawLength;
+                storedCompressedBytes -= entry.length;
+            }
+        }
+        slab.keys.clear();
+        slab.used = 0;
+    }
+
+    private static int rawLength( final Object data )
+    {
+        return ( int ) KlbBlockCache.sizeInBytes( data );
+    }
+
+    /**
+     * Writes the bytes of data to out, grouped by significance (all
+     * lowest bytes first), which compresses much better for 16 and 32
+     * bit images.
+     */
+    private static void shuffle( final Object data, final byte[] out )
+    {
+        if ( data instanceof byte[] ) {
+            final byte[] a = ( byte[] ) data;
+            System.arraycopy( a, 0, out, 0, a.length );
+        } else if ( data instanceof short[] ) {
+            final short[] a = ( short[] ) data;
+            final int n = a.length;
+            for ( int i = 0; i < n; ++i ) {
+                final short v = a[ i ];
+                out[ i ] = ( byte ) v;
+                out[ n + i ] = ( byte ) (v >>> 8);
+            }
+        } else {
+            final float[] a = ( float[] ) data;
+            final int n = a.length;
+            for ( int i = 0; i < n; ++i ) {
+                final int v = Float.floatToRawIntBits( a[ i ] );
+                out[ i ] = ( byte ) v;
+                out[ n + i ] = ( byte ) (v >>> 8);
+                out[ 2 * n + i ] = ( byte ) (v >>> 16);
+                out[ 3 * n + i ] = ( byte ) (v >>> 24);
+            }
+        }
+    }
+
+    private static void unshuffle( final byte[] in, final Object data )
+    {
+        if ( data instanceof byte[] ) {
+            final byte[] a = ( byte[] ) data;
+            System.arraycopy( in, 0, a, 0, a.length );
+        } else if ( data instanceof short[] ) {
+            final short[] a = ( short[] ) data;
+            final int n = a.length;
+            for ( int i = 0; i < n; ++i ) {
+                a[ i ] = ( short ) ((in[ i ] & 0xff) | ((in[ n + i ] & 0xff) << 8));
+            }
+        } else {
+            final float[] a = ( float[] ) data;
+            final int n = a.length;
+            for ( int i = 0; i < n; ++i ) {
+                a[ i ] = Float.intBitsToFloat( (in[ i ] & 0xff) | ((in[ n + i ] & 0xff) << 8) | ((in[ 2 * n + i ] & 0xff) << 16) | ((in[ 3 * n + i ] & 0xff) << 24) );
+            }
+        }
+    }
+
+    private static final class Slab
+    {
+        final ByteBuffer buffer;
+        final List< CellKey > keys = new ArrayList< CellKey >();
+        int used = 0;
+
+        Slab( final int size )
+        {
+            buffer = ByteBuffer.allocateDirect( size );
+        }
+    }
+
+    private static final class Entry
+    {
+        final int slab, offset, length, rawLength;
+
+        Entry( final int slab, final int offset, final int length, final int rawLength )
+        {
+            this.slab = slab;
+            this.offset = offset;
+            this.length = length;
+            this.rawLength = rawLength;
+        }
+    }
+
+    private static final class CellKey
+    {
+        private final int timePoint, viewSetup, level;
+        private final long x, y, z;
+
+        CellKey( final int timePoint, final int viewSetup, final int level, final long[] offset )
+        {
+            this.timePoint = timePoint;
+            this.viewSetup = viewSetup;
+            this.level = level;
+            x = offset[ 0 ];
+            y = offset[ 1 ];
+            z = offset[ 2 ];
+        }
+
+        @Override
+        public boolean equals( final Object o )
+        {
+            if ( !(o instanceof CellKey) ) {
+                return false;
+            }
+            final CellKey k = ( CellKey ) o;
+            return k.timePoint == timePoint && k.viewSetup == viewSetup && k.level == level && k.x == x && k.y == y && k.z == z;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            long h = (timePoint * 31 + viewSetup) * 31 + level;
+            h = h * 31 + x;
+            h = h * 31 + y;
+            h = h * 31 + z;
+            return ( int ) (h ^ (h >>> 32));
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package org.janelia.simview.klb.bdv;
+
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Binary sidecar index of a KLB dataset, usually stored next to the
+ * dataset XML.
+ * <p>
+ * Holds one fixed-size record per (time point, ViewSetup, level) file
+ * with the file's header data (type, image dimensions, block dimensions,
+ * sampling), size and modification time, or whether the file was missing
+ * when the index was written. The index is memory-mapped on load and
+ * records are decoded on access, so opening a dataset does not depend
+ * on the number of files.
+ */
+public class KlbDatasetIndex
+{
+    private static final long MAGIC = 0x4b4c424944583031L; // "KLBIDX01"
+    private static final int HEADER_SIZE = 8 + 4 * 4;
+    private static final int RECORD_SIZE = 2 + 3 * 8 + 3 * 4 + 3 * 4 + 8 + 8;
+
+    private static final byte UNKNOWN = 0, PRESENT = 1, MISSING = 2;
+    private static final byte TYPE_UNKNOWN = 0, TYPE_UINT8 = 1, TYPE_UINT16 = 2, TYPE_FLOAT32 = 3;
+
+    private final ByteBuffer records;
+    private final int firstTimePoint, lastTimePoint, numViewSetups, numLevels;
+
+    private KlbDatasetIndex( final ByteBuffer records, final int firstTimePoint, final int lastTimePoint, final int numViewSetups, final int numLevels )
+    {
+        this.records = records;
+        this.firstTimePoint = firstTimePoint;
+        this.lastTimePoint = lastTimePoint;
+        this.numViewSetups = numViewSetups;
+        this.numLevels = numLevels;
+    }
+
+    /**
+     * Memory-maps an index file written by {@link #write}.
+     *
+     * @param file index file
+     * @return index
+     * @throws IOException if the file cannot be read or is not a KLB dataset index
+     */
+    public static KlbDatasetIndex load( final File file ) throws IOException
+    {
+        final RandomAccessFile raf = new RandomAccessFile( file, "r" );
+        try {
+            final FileChannel channel = raf.getChannel();
+            final ByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+            if ( buffer.capacity() < HEADER_SIZE || buffer.getLong( 0 ) != MAGIC ) {
+                throw new IOException( "Not a KLB dataset index: " + file );
+            }
+            final int firstTimePoint = buffer.getInt( 8 );
+            final int lastTimePoint = buffer.getInt( 12 );
+            final int numViewSetups = buffer.getInt( 16 );
+            final int numLevels = buffer.getInt( 20 );
+            final long numRecords = ( long ) (lastTimePoint - firstTimePoint + 1) * numViewSetups * numLevels;
+            if ( buffer.capacity() != HEADER_SIZE + numRecords * RECORD_SIZE ) {
+                throw new IOException( "Truncated KLB dataset index: " + file );
+            }
+            buffer.position( HEADER_SIZE );
+            return new KlbDatasetIndex( buffer.slice(), firstTimePoint, lastTimePoint, numViewSetups, numLevels );
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Probes the headers of all files of the dataset defined by resolver
+     * and writes them to an index file.
+     *
+     * @param resolver dataset
+     * @param file     index file
+     * @throws IOException if the index cannot be written
+     */
+    public static void write( final KlbPartitionResolver resolver, final File file ) throws IOException
+    {
+        final int firstTimePoint = resolver.getFirstTimePoint();
+        final int lastTimePoint = resolver.getLastTimePoint();
+        final int numViewSetups = resolver.getNumViewSetups();
+        final int numLevels = resolver.getMaxNumResolutionLevels();
+
+        final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file ), 1 << 16 ) );
+        try {
+            out.writeLong( MAGIC );
+            out.writeInt( firstTimePoint );
+            out.writeInt( lastTimePoint );
+            out.writeInt( numViewSetups );
+            out.writeInt( numLevels );
+            for ( int t = firstTimePoint; t <= lastTimePoint; ++t ) {
+                for ( int setup = 0; setup < numViewSetups; ++setup ) {
+                    for ( int level = 0; level < numLevels; ++level ) {
+                        KlbFileHeader header = null;
+                        byte status = UNKNOWN;
+                        if ( new File( resolver.getFilePath( t, setup, level ) ).exists() ) {
+                            try {
+                                header = resolver.readHeader( t, setup, level );
+                                status = PRESENT;
+                            } catch ( IOException ex ) {
+                                // unreadable, leave to be probed on access
+                            }
+                        } else {
+                            status = MISSING;
+                        }
+                        writeRecord( out, status, header );
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeRecord( final DataOutputStream out, final byte status, final KlbFileHeader header ) throws IOException
+    {
+        final byte type = header == null ? TYPE_UNKNOWN : typeCode( header.dataType );
+        out.writeByte( type == TYPE_UNKNOWN && status == PRESENT ? UNKNOWN : status );
+        out.writeByte( type );
+        for ( int d = 0; d < 3; ++d ) {
+            out.writeLong( header == null ? 0 : header.imageSize[ d ] );
+        }
+        for ( int d = 0; d < 3; ++d ) {
+            out.writeInt( header == null ? 0 : header.blockSize[ d ] );
+        }
+        for ( int d = 0; d < 3; ++d ) {
+            out.writeFloat( header == null ? 0 : header.pixelSpacing[ d ] );
+        }
+        out.writeLong( header == null ? 0 : header.fileSize );
+        out.writeLong( header == null ? 0 : header.lastModified );
+    }
+
+    private static byte typeCode( final Object type )
+    {
+        if ( type instanceof UnsignedByteType ) {
+            return TYPE_UINT8;
+        } else if ( type instanceof UnsignedShortType ) {
+            return TYPE_UINT16;
+        } else if ( type instanceof FloatType ) {
+            return TYPE_FLOAT32;
+        }
+        return TYPE_UNKNOWN;
+    }
+
+    private static Object typeFromCode( final byte code )
+    {
+        switch ( code ) {
+            case TYPE_UINT8:
+                return new UnsignedByteType();
+            case TYPE_UINT16:
+                return new UnsignedShortType();
+            case TYPE_FLOAT32:
+                return new FloatType();
+            default:
+                return null;
+        }
+    }
+
+    private int recordOffset( final int timePoint, final int viewSetup, final int level )
+    {
+        if ( timePoint < firstTimePoint || timePoint > lastTimePoint || viewSetup < 0 || viewSetup >= numViewSetups || level < 0 || level >= numLevels ) {
+            return -1;
+        }
+        return (((timePoint - firstTimePoint) * numViewSetups + viewSetup) * numLevels + level) * RECORD_SIZE;
+    }
+
+    /**
+     * Returns whether the file defined by time point, ViewSetup index and
+     * level was missing when the index was written.
+     *
+     * @param timePoint time point
+     * @param viewSetup ViewSetup index
+     * @param level     resolution level
+     * @return whether or not the file is recorded as missing
+     */
+    public boolean isMissing( final int timePoint, final int viewSetup, final int level )
+    {
+        final int offset = recordOffset( timePoint, viewSetup, level );
+        return offset >= 0 && records.get( offset ) == MISSING;
+    }
+
+    /**
+     * Returns the recorded header of the file defined by time point,
+     * ViewSetup index and level, or null if it is not in the index.
+     *
+     * @param timePoint time point
+     * @param viewSetup ViewSetup index
+     * @param level     resolution level
+     * @return recorded header or null
+     */
+    KlbFileHeader getHeader( final int timePoint, final int viewSetup, final int level )
+    {
+        final int offset = recordOffset( timePoint, viewSetup, level );
+        if ( offset < 0 || records.get( offset ) != PRESENT ) {
+            return null;
+        }
+        // absolute gets only, the buffer is shared between threads
+        int pos = offset + 2;
+        final long[] imageSize = new long[ 3 ];
+        for ( int d = 0; d < 3; ++d, pos += 8 ) {
+            imageSize[ d ] = records.getLong( pos );
+        }
+        final int[] blockSize = new int[ 3 ];
+        for ( int d = 0; d < 3; ++d, pos += 4 ) {
+            blockSize[ d ] = records.getInt( pos );
+        }
+        final float[] pixelSpacing = new float[ 3 ];
+        for ( int d = 0; d < 3; ++d, pos += 4 ) {
+            pixelSpacing[ d ] = records.getFloat( pos );
+        }
+        final long fileSize = records.getLong( pos );
+        final long lastModified = records.getLong( pos + 8 );
+        return new KlbFileHeader( imageSize, blockSize, pixelSpacing, typeFromCode( records.get( offset + 1 ) ), fileSize, lastModified );
+    }
+}
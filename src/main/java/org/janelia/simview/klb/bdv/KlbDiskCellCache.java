@@ -0,0 +1,497 @@
+package org.janelia.simview.klb.bdv;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent cache of decoded (uncompressed) cells on local disk.
+ * <p>
+ * Cells of every KLB file (i.e. every time point, ViewSetup and level)
+ * are stored in a memory-mapped scratch file of fixed-size slots, one
+ * slot per cell of the file's KLB block grid, plus a table of which
+ * slots have been written. Scratch files are named after the path and
+ * modification time of their source file, so they are reused across
+ * viewer restarts and never served for a rewritten source file.
+ * <p>
+ * The cache is bounded by a disk budget, counting written slots only
+ * (scratch files are sparse). When it is exceeded, least recently
+ * opened scratch files are deleted.
+ * <p>
+ * The data of a cell is forced to disk before the cell is marked as
+ * written, so that a crash never leaves cells marked whose data is
+ * missing.
+ * <p>
+ * Hits are copied from the mapping into the primitive array of the
+ * cell: the cell cache of the BigDataViewer holds array-backed cells
+ * only, so reads cannot be zero-copy. The copy is served from the page
+ * cache and replaces decompression, which is what the cache saves.
+ * <p>
+ * Only cells that match the KLB block grid are cached.
+ */
+public class KlbDiskCellCache
+{
+    private static final long MAGIC = 0x4b4c4243454c4c31L; // "KLBCELL1"
+    private static final int HEADER_SIZE = 64;
+    private static final int PRESENT_COUNT_OFFSET = 56;
+    private static final long WINDOW_SIZE = 1L << 28;
+    private static final String SUFFIX = ".cells";
+
+    private final File directory;
+    private volatile long maxSizeInBytes;
+
+    // guarded by this
+    private final HashMap< String, ScratchFile > openFiles = new HashMap< String, ScratchFile >();
+    private final HashMap< String, Usage > usage = new HashMap< String, Usage >();
+    private long totalBytes = 0;
+
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+    /**
+     * @param directory      scratch directory on local disk, created if necessary
+     * @param maxSizeInBytes disk budget
+     */
+    public KlbDiskCellCache( final File directory, final long maxSizeInBytes )
+    {
+        this.directory = directory;
+        this.maxSizeInBytes = maxSizeInBytes;
+        directory.mkdirs();
+        final File[] files = directory.listFiles( new FileFilter()
+        {
+            @Override
+            public boolean accept( final File f )
+            {
+                return f.isFile() && f.getName().endsWith( SUFFIX );
+            }
+        } );
+        if ( files != null ) {
+            for ( final File f : files ) {
+                final long bytes = readUsedBytes( f );
+                if ( bytes < 0 ) {
+                    f.delete();
+                } else {
+                    usage.put( f.getName(), new Usage( bytes, f.lastModified() ) );
+                    totalBytes += bytes;
+                }
+            }
+        }
+    }
+
+    public File getDirectory()
+    {
+        return directory;
+    }
+
+    public long getMaxSizeInBytes()
+    {
+        return maxSizeInBytes;
+    }
+
+    public synchronized void setMaxSizeInBytes( final long maxSizeInBytes )
+    {
+        this.maxSizeInBytes = maxSizeInBytes;
+        evict( null );
+    }
+
+    /**
+     * Returns the number of bytes of written cells on disk.
+     */
+    public synchronized long getSizeInBytes()
+    {
+        return totalBytes;
+    }
+
+    public long getNumHits()
+    {
+        return hits.get();
+    }
+
+    public long getNumMisses()
+    {
+        return misses.get();
+    }
+
+    public void resetStatistics()
+    {
+        hits.set( 0 );
+        misses.set( 0 );
+    }
+
+    /**
+     * Reads the cell at offset of the given source file into dst, a
+     * primitive array of the cell's size. Returns false if the cell is
+     * not cached.
+     */
+    boolean get( final String filePath, final KlbFileHeader header, final int[] dimensions, final long[] offset, final Object dst )
+    {
+        final long slot = slotIndex( header, dimensions, offset );
+        if ( slot >= 0 ) {
+            final ScratchFile f = open( filePath, header, bytesPerElement( dst ) );
+            if ( f != null && f.isPresent( slot ) && f.read( slot, dst ) ) {
+                hits.incrementAndGet();
+                return true;
+            }
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Writes the cell at offset of the given source file. data is a
+     * primitive array (byte[], short[], float[]).
+     */
+    void put( final String filePath, final KlbFileHeader header, final int[] dimensions, final long[] offset, final Object data )
+    {
+        final long slot = slotIndex( header, dimensions, offset );
+        if ( slot < 0 ) {
+            return;
+        }
+        final ScratchFile f = open( filePath, header, bytesPerElement( data ) );
+        if ( f != null && f.write( slot, data ) ) {
+            synchronized ( this ) {
+                final Usage u = usage.get( f.name );
+                if ( u != null ) {
+                    u.bytes += f.slotBytes;
+                    totalBytes += f.slotBytes;
+                }
+                evict( f.name );
+            }
+        }
+    }
+
+    /**
+     * Deletes all scratch files.
+     */
+    public synchronized void clear()
+    {
+        final long max = maxSizeInBytes;
+        maxSizeInBytes = 0;
+        evict( null );
+        maxSizeInBytes = max;
+    }
+
+    /**
+     * Returns the slot of the cell at offset, or -1 if the cell does not
+     * match the KLB block grid.
+     */
+    private static long slotIndex( final KlbFileHeader header, final int[] dimensions, final long[] offset )
+    {
+        long slot = 0;
+        for ( int d = 2; d >= 0; --d ) {
+            final int cellSize = header.blockSize[ d ];
+            if ( offset[ d ] % cellSize != 0 || dimensions[ d ] != Math.min( cellSize, header.imageSize[ d ] - offset[ d ] ) ) {
+                return -1;
+            }
+            final long numCells = (header.imageSize[ d ] + cellSize - 1) / cellSize;
+            slot = slot * numCells + offset[ d ] / cellSize;
+        }
+        return slot;
+    }
+
+    private static int bytesPerElement( final Object data )
+    {
+        return data instanceof byte[] ? 1 : (data instanceof short[] ? 2 : 4);
+    }
+
+    private synchronized ScratchFile open( final String filePath, final KlbFileHeader header, final int bytesPerElement )
+    {
+        if ( maxSizeInBytes <= 0 ) {
+            return null;
+        }
+        final String name = scratchFileName( filePath, header.lastModified, bytesPerElement );
+        ScratchFile f = openFiles.get( name );
+        if ( f == null ) {
+            try {
+                f = new ScratchFile( name, new File( directory, name ), header, bytesPerElement );
+            } catch ( IOException ex ) {
+                return null;
+            }
+            openFiles.put( name, f );
+            Usage u = usage.get( name );
+            if ( u == null ) {
+                u = new Usage( 0, 0 );
+                usage.put( name, u );
+            }
+            // the file may have been recreated
+            totalBytes -= u.bytes;
+            u.bytes = f.usedBytes();
+            totalBytes += u.bytes;
+            // the modification time of a scratch file is its last access time
+            u.lastAccess = System.currentTimeMillis();
+            f.file.setLastModified( u.lastAccess );
+        }
+        return f;
+    }
+
+    /**
+     * Deletes least recently accessed scratch files until the budget is
+     * met, never the file named keep. Requires the lock.
+     */
+    private void evict( final String keep )
+    {
+        while ( totalBytes > maxSizeInBytes ) {
+            String oldest = null;
+            long oldestAccess = Long.MAX_VALUE;
+            for ( final Map.Entry< String, Usage > e : usage.entrySet() ) {
+                if ( !e.getKey().equals( keep ) && e.getValue().lastAccess < oldestAccess ) {
+                    oldest = e.getKey();
+                    oldestAccess = e.getValue().lastAccess;
+                }
+            }
+            if ( oldest == null ) {
+                return;
+            }
+            totalBytes -= usage.remove( oldest ).bytes;
+            final ScratchFile f = openFiles.remove( oldest );
+            if ( f != null ) {
+                f.close();
+            }
+            new File( directory, oldest ).delete();
+        }
+    }
+
+    private static String scratchFileName( final String filePath, final long lastModified, final int bytesPerElement )
+    {
+        // 64 bit FNV-1a hash of the source path
+        long h = 0xcbf29ce484222325L;
+        for ( int i = 0; i < filePath.length(); ++i ) {
+            h ^= filePath.charAt( i );
+            h *= 0x100000001b3L;
+        }
+        return String.format( "%016x-%x-%d%s", h, lastModified, bytesPerElement, SUFFIX );
+    }
+
+    /**
+     * Returns the number of bytes used by the written cells of a scratch
+     * file, or -1 if it is not a valid scratch file.
+     */
+    private static long readUsedBytes( final File file )
+    {
+        try {
+            final RandomAccessFile raf = new RandomAccessFile( file, "r" );
+            try {
+                final ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE ).order( ByteOrder.nativeOrder() );
+                raf.getChannel().read( header, 0 );
+                if ( header.getLong( 0 ) != MAGIC ) {
+                    return -1;
+                }
+                final Layout layout = new Layout( header );
+                return layout.dataOffset + header.getLong( PRESENT_COUNT_OFFSET ) * layout.slotBytes;
+            } finally {
+                raf.close();
+            }
+        } catch ( IOException ex ) {
+            return -1;
+        }
+    }
+
+    private static final class Usage
+    {
+        long bytes;
+        long lastAccess;
+
+        Usage( final long bytes, final long lastAccess )
+        {
+            this.bytes = bytes;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    /**
+     * Slot layout of a scratch file, derived from its header.
+     */
+    private static class Layout
+    {
+        final int bytesPerElement;
+        final long[] imageSize = new long[ 3 ];
+        final int[] cellSize = new int[ 3 ];
+        final long numCells, slotBytes, dataOffset;
+
+        Layout( final ByteBuffer header )
+        {
+            bytesPerElement = header.getInt( 8 );
+            for ( int d = 0; d < 3; ++d ) {
+                imageSize[ d ] = header.getLong( 16 + 8 * d );
+                cellSize[ d ] = header.getInt( 40 + 4 * d );
+            }
+            long n = 1, s = bytesPerElement;
+            for ( int d = 0; d < 3; ++d ) {
+                n *= (imageSize[ d ] + cellSize[ d ] - 1) / cellSize[ d ];
+                s *= cellSize[ d ];
+            }
+            numCells = n;
+            slotBytes = s;
+            // presence table, padded to 8 bytes
+            dataOffset = HEADER_SIZE + (numCells + 7) / 8 * 8;
+        }
+    }
+
+    private static final class ScratchFile extends Layout
+    {
+        final String name;
+        final File file;
+        private final RandomAccessFile raf;
+        private final MappedByteBuffer meta;
+        private final MappedByteBuffer[] windows;
+        private final long slotsPerWindow;
+
+        ScratchFile( final String name, final File file, final KlbFileHeader header, final int bytesPerElement ) throws IOException
+        {
+            super( createHeader( header, bytesPerElement ) );
+            this.name = name;
+            this.file = file;
+            boolean valid = false;
+            if ( file.exists() ) {
+                final ByteBuffer existing = ByteBuffer.allocate( HEADER_SIZE ).order( ByteOrder.nativeOrder() );
+                final RandomAccessFile r = new RandomAccessFile( file, "r" );
+                try {
+                    r.getChannel().read( existing, 0 );
+                } finally {
+                    r.close();
+                }
+                final ByteBuffer expected = createHeader( header, bytesPerElement );
+                existing.limit( PRESENT_COUNT_OFFSET ).position( 0 );
+                expected.limit( PRESENT_COUNT_OFFSET ).position( 0 );
+                valid = existing.equals( expected ) && file.length() == dataOffset + numCells * slotBytes;
+                if ( !valid ) {
+                    file.delete();
+                }
+            }
+            if ( numCells > Integer.MAX_VALUE - HEADER_SIZE ) {
+                throw new IOException( "Too many cells" );
+            }
+            raf = new RandomAccessFile( file, "rw" );
+            if ( !valid ) {
+                raf.setLength( dataOffset + numCells * slotBytes );
+            }
+            final FileChannel channel = raf.getChannel();
+            meta = channel.map( FileChannel.MapMode.READ_WRITE, 0, dataOffset );
+            meta.order( ByteOrder.nativeOrder() );
+            if ( !valid ) {
+                final ByteBuffer h = createHeader( header, bytesPerElement );
+                h.position( 0 ).limit( HEADER_SIZE );
+                meta.put( h );
+            }
+            slotsPerWindow = Math.max( 1, WINDOW_SIZE / slotBytes );
+            windows = new MappedByteBuffer[ ( int ) ((numCells + slotsPerWindow - 1) / slotsPerWindow) ];
+        }
+
+        private static ByteBuffer createHeader( final KlbFileHeader header, final int bytesPerElement )
+        {
+            final ByteBuffer b = ByteBuffer.allocate( HEADER_SIZE ).order( ByteOrder.nativeOrder() );
+            b.putLong( 0, MAGIC );
+            b.putInt( 8, bytesPerElement );
+            for ( int d = 0; d < 3; ++d ) {
+                b.putLong( 16 + 8 * d, header.imageSize[ d ] );
+                b.putInt( 40 + 4 * d, header.blockSize[ d ] );
+            }
+            return b;
+        }
+
+        synchronized long usedBytes()
+        {
+            return dataOffset + meta.getLong( PRESENT_COUNT_OFFSET ) * slotBytes;
+        }
+
+        synchronized boolean isPresent( final long slot )
+        {
+            return meta.get( HEADER_SIZE + ( int ) slot ) != 0;
+        }
+
+        /**
+         * Returns the window that holds the slot, mapping it if necessary.
+         */
+        private synchronized MappedByteBuffer window( final long slot ) throws IOException
+        {
+            final int w = ( int ) (slot / slotsPerWindow);
+            if ( windows[ w ] == null ) {
+                final long first = w * slotsPerWindow;
+                final long count = Math.min( slotsPerWindow, numCells - first );
+                windows[ w ] = raf.getChannel().map( FileChannel.MapMode.READ_WRITE, dataOffset + first * slotBytes, count * slotBytes );
+            }
+            return windows[ w ];
+        }
+
+        /**
+         * Returns a view of the slot's bytes.
+         */
+        private synchronized ByteBuffer slot( final long slot ) throws IOException
+        {
+            final int w = ( int ) (slot / slotsPerWindow);
+            final ByteBuffer b = window( slot ).duplicate();
+            final int pos = ( int ) ((slot - w * slotsPerWindow) * slotBytes);
+            b.position( pos );
+            b.limit( pos + ( int ) slotBytes );
+            return b.slice().order( ByteOrder.nativeOrder() );
+        }
+
+        /**
+         * Reads the slot into dst. Returns false if the file was closed
+         * concurrently.
+         */
+        boolean read( final long slot, final Object dst )
+        {
+            try {
+                final ByteBuffer b = slot( slot );
+                if ( dst instanceof byte[] ) {
+                    b.get( ( byte[] ) dst );
+                } else if ( dst instanceof short[] ) {
+                    b.asShortBuffer().get( ( short[] ) dst );
+                } else {
+                    b.asFloatBuffer().get( ( float[] ) dst );
+                }
+                return true;
+            } catch ( IOException ex ) {
+                return false;
+            }
+        }
+
+        /**
+         * Writes data to the slot. Returns whether the slot was written
+         * for the first time.
+         */
+        synchronized boolean write( final long slot, final Object data )
+        {
+            if ( isPresent( slot ) ) {
+                return false;
+            }
+            try {
+                final ByteBuffer b = slot( slot );
+                if ( data instanceof byte[] ) {
+                    b.put( ( byte[] ) data );
+                } else if ( data instanceof short[] ) {
+                    b.asShortBuffer().put( ( short[] ) data );
+                } else {
+                    b.asFloatBuffer().put( ( float[] ) data );
+                }
+                // flushes the dirty pages of the window, i.e. mostly this slot
+                window( slot ).force();
+            } catch ( IOException ex ) {
+                return false;
+            }
+            // mark present only after the data is on disk
+            meta.put( HEADER_SIZE + ( int ) slot, ( byte ) 1 );
+            meta.putLong( PRESENT_COUNT_OFFSET, meta.getLong( PRESENT_COUNT_OFFSET ) + 1 );
+            return true;
+        }
+
+        synchronized void close()
+        {
+            try {
+                raf.close();
+            } catch ( IOException ex ) {
+                // ignore
+            }
+        }
+    }
+}
@@ -1,12 +1,11 @@
 package org.janelia.simview.klb.bdv;
 
 import bdv.export.Downsample;
-import bdv.export.ExportMipmapInfo;
-import bdv.export.ProposeMipmaps;
 import bdv.spimdata.SpimDataMinimal;
 import bdv.spimdata.XmlIoSpimDataMinimal;
 import mpicbg.spim.data.SpimDataException;
 import mpicbg.spim.data.SpimDataIOException;
+import mpicbg.spim.data.XmlHelpers;
 import mpicbg.spim.data.generic.sequence.AbstractSequenceDescription;
 import mpicbg.spim.data.generic.sequence.BasicViewSetup;
 import mpicbg.spim.data.generic.sequence.ImgLoaderHints;
@@ -19,6 +18,7 @@ import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
 import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.RealType;
 import org.janelia.simview.klb.KLB;
 import org.scijava.command.Command;
@@ -38,17 +38,45 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.nio.ShortBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Plugin( type = Command.class, menuPath = "Plugins>BigDataViewer>Generate KLB Dataset resolution levels" )
 public class KlbDownsampler< T extends RealType< T > & NativeType< T > > implements Command
 {
-    private final KLB klb = KLB.newInstance();
     private final Map<Integer, Integer> numResolutionLevels = new HashMap<Integer, Integer>();
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+    private long maxMemory = Runtime.getRuntime().maxMemory() / 4 * 3;
+    private int slabDepth = 0;
+    private int numReaders = 2;
+    private int numWriters = 2;
+    private long watchInterval = 0;
+    private long watchIdleTimeout = 0;
+    private KlbDownsamplingJournal journal = null;
+    private KlbPyramidPlanner planner = null;
+    private KlbPyramidPlanner activePlanner = null;
+    private boolean statistics = true;
+    private boolean projections = false;
+    private boolean writeIndex = false;
+    private int[] statisticsBlockSize = KlbImageStatistics.DEFAULT_BLOCK_SIZE.clone();
+    private Set< Integer > timePointIds = null;
+    private Set< Integer > viewSetupIds = null;
+    private int shardIndex = 0;
+    private int numShards = 1;
+    private int numFailed = 0;
 
     @Parameter
     private File xmlFile;
@@ -56,6 +84,12 @@ public class KlbDownsampler< T extends RealType< T > & NativeType< T > > impleme
     @Parameter
     private boolean skipFirst = false;
 
+    @Parameter
+    private boolean streaming = false;
+
+    @Parameter
+    private boolean incremental = false;
+
     @Parameter
     private LogService log;
 
@@ -73,37 +107,162 @@ public class KlbDownsampler< T extends RealType< T > & NativeType< T > > impleme
     public void process( final File xmlFile, final boolean skipFirst ) 
     {
         this.skipFirst = skipFirst;
+        this.xmlFile = xmlFile;
+        if ( log == null ) {
+            log = new StderrLogService();
+        }
         final String filePath = xmlFile.getAbsolutePath();
 
-        SpimDataMinimal data = null;
-        int resolutionLevels = 1;
+        activePlanner = planner != null ? planner : readPyramidPlan( xmlFile );
+        numFailed = 0;
+        if ( numShards > 1 ) {
+            log.info( String.format( "Shard %d of %d, the dataset XML is updated by the merge step", shardIndex, numShards ) );
+        }
+
+        try {
+            // shards keep separate journals, since they run as independent processes
+            journal = new KlbDownsamplingJournal( new File( numShards > 1
+                    ? String.format( "%s.shard-%d-of-%d.journal", filePath, shardIndex, numShards )
+                    : filePath + ".journal" ) );
+        } catch ( IOException e ) {
+            log.warn( "Cannot read downsampling journal, interrupted jobs will not be detected", e );
+            journal = null;
+        }
+
+        // in watch mode, the dataset XML is reloaded every round to pick up new time points
+        long lastActive = System.currentTimeMillis();
+        boolean first = true;
+        while ( true ) {
+            SpimDataMinimal data = null;
+            try {
+                data = new XmlIoSpimDataMinimal().load( filePath );
+            } catch ( SpimDataException e ) {
+                e.printStackTrace();
+            }
+
+            int numProcessed = 0;
+            if ( data != null ) {
+                try {
+                    numProcessed = process( data.getSequenceDescription(), true );
+                } finally {
+                    // every round loads a new loader, which owns a cell cache with fetcher threads
+                    (( KlbImgLoader ) data.getSequenceDescription().getImgLoader()).close();
+                }
+            }
+
+            if ( numShards <= 1 && (first || numProcessed > 0) ) {
+                updateXML();
+            }
+            first = false;
+
+            if ( watchInterval <= 0 ) {
+                break;
+            }
+            final long now = System.currentTimeMillis();
+            if ( numProcessed > 0 ) {
+                lastActive = now;
+            } else if ( watchIdleTimeout > 0 && now - lastActive > watchIdleTimeout ) {
+                log.info( "No new time points, stopped watching." );
+                break;
+            }
+            try {
+                Thread.sleep( watchInterval );
+            } catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Merge step after all shards of a sharded run are done: checks that
+     * the resolution levels of all selected images exist and, if so,
+     * records them in the dataset XML. Must be run with the same pyramid
+     * plan and selection as the shards.
+     *
+     * @return false if resolution levels are missing, the XML is then left unchanged
+     */
+    public boolean merge( final File xmlFile )
+    {
+        this.xmlFile = xmlFile;
+        if ( log == null ) {
+            log = new StderrLogService();
+        }
+        activePlanner = planner != null ? planner : readPyramidPlan( xmlFile );
+        final SpimDataMinimal data;
         try {
-            data = new XmlIoSpimDataMinimal().load( filePath );
+            data = new XmlIoSpimDataMinimal().load( xmlFile.getAbsolutePath() );
         } catch ( SpimDataException e ) {
-            e.printStackTrace();
+            log.error( "Cannot load " + xmlFile, e );
+            return false;
         }
+        process( data.getSequenceDescription(), false );
 
-        if ( data != null ) {
-            process( data.getSequenceDescription() );
+        final KlbImgLoader loader = ( KlbImgLoader ) data.getSequenceDescription().getImgLoader();
+        loader.close();
+        final KlbPartitionResolver resolver = loader.getResolver();
+        int numMissing = 0;
+        for ( final int[] job : selectJobs( data.getSequenceDescription() ) ) {
+            if ( !new File( resolver.getFilePath( job[ 0 ], job[ 1 ], 0 ) ).isFile() ) {
+                continue;
+            }
+            for ( int level = 1; level < getNumResolutionLevels( job[ 1 ] ); ++level ) {
+                if ( !new File( resolver.getFilePath( job[ 0 ], job[ 1 ], level ) ).isFile() ) {
+                    log.warn( String.format( "Time point %d, ViewSetupId %d: level %d is missing", job[ 0 ], job[ 1 ], level ) );
+                    ++numMissing;
+                }
+            }
+        }
+        if ( numMissing > 0 ) {
+            log.error( String.format( "%d resolution levels are missing, dataset XML not updated.", numMissing ) );
+            return false;
         }
-        
         updateXML();
-        
+        log.info( "Dataset XML updated." );
+        return true;
     }
 
-    private void process( final AbstractSequenceDescription< ?, ?, ? > seq )
+    /**
+     * Returns the (time point, ViewSetup) pairs of seq processed by this
+     * shard: of all selected pairs in time point, then ViewSetup order,
+     * every numShards-th starting at shardIndex. Shards given the same
+     * dataset and selection thus split it without coordination.
+     */
+    private List< int[] > selectJobs( final AbstractSequenceDescription< ?, ?, ? > seq )
+    {
+        final List< int[] > jobs = new ArrayList< int[] >();
+        int index = 0;
+        for ( final TimePoint tp : seq.getTimePoints().getTimePointsOrdered() ) {
+            if ( timePointIds != null && !timePointIds.contains( tp.getId() ) ) {
+                continue;
+            }
+            for ( final BasicViewSetup viewSetup : seq.getViewSetupsOrdered() ) {
+                if ( viewSetupIds != null && !viewSetupIds.contains( viewSetup.getId() ) ) {
+                    continue;
+                }
+                if ( index++ % numShards == shardIndex ) {
+                    jobs.add( new int[]{ tp.getId(), viewSetup.getId() } );
+                }
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * Plans the resolution levels of all ViewSetups of seq and, if run,
+     * downsamples the images selected for this shard. Returns the number
+     * of images that were downsampled (neither skipped nor failed).
+     */
+    private int process( final AbstractSequenceDescription< ?, ?, ? > seq, final boolean run )
     {
         if ( log == null ) {
             log = new StderrLogService();
         }
-        final int numThreads = Runtime.getRuntime().availableProcessors();
-
         final KlbImgLoader loader = ( KlbImgLoader ) seq.getImgLoader();
         final KlbPartitionResolver resolver = loader.getResolver();
 
 
         // calculate dimensions, sampling, and relative downsampling factors for each level
-        final Map< Integer, ExportMipmapInfo > proposedDownsampling = ProposeMipmaps.proposeMipmaps( seq );
         final Map< Integer, long[][] > dimensions = new HashMap< Integer, long[][] >();
         final Map< Integer, int[][] > relativeScaling = new HashMap< Integer, int[][] >();
         final Map< Integer, double[][] > sampling = new HashMap< Integer, double[][] >();
@@ -114,7 +273,13 @@ public class KlbDownsampler< T extends RealType< T > & NativeType< T > > impleme
             final Dimensions dimsObj = seq.getViewSetupsOrdered().get( viewSetupId ).getSize();
             final int numDims = dimsObj.numDimensions();
 
-            final int[][] scales = proposedDownsampling.get( viewSetupId ).getExportResolutions();
+            // absolute factors of every level, made relative to the previous level below
+            final int[][] absolute = activePlanner.getResolutions( viewSetup );
+            KlbPyramidPlan.validate( absolute );
+            final int[][] scales = new int[ absolute.length ][];
+            for ( int level = 0; level < absolute.length; ++level ) {
+                scales[ level ] = absolute[ level ].clone();
+            }
             final long[][] dims = new long[ scales.length ][ numDims ];
             final double[][] smpl = new double[ scales.length ][ numDims ];
             dimsObj.dimensions( dims[ 0 ] );
@@ -122,7 +287,7 @@ public class KlbDownsampler< T extends RealType< T > & NativeType< T > > impleme
 
             for ( int level = 1; level < scales.length; ++level ) {  // scaling[0] is full sampling
                 for ( int dim = 0; dim < numDims; ++dim ) {
-                    scales[ level ][ dim ] /= scales[ level - 1 ][ dim ];
+                    scales[ level ][ dim ] = absolute[ level ][ dim ] / absolute[ level - 1 ][ dim ];
                     dims[ level ][ dim ] = dims[ level - 1 ][ dim ] / scales[ level ][ dim ];
                     smpl[ level ][ dim ] = smpl[ level - 1 ][ dim ] * scales[ level ][ dim ];
                 }
@@ -176,11 +341,25 @@ public class KlbDownsampler< T extends RealType< T > & NativeType< T > > impleme
         }
 
 
+        // KLB block sizes of the final levels
+        final Map< Integer, long[][] > blockSizes = new HashMap< Integer, long[][] >();
+        for ( final BasicViewSetup viewSetup : viewSetups ) {
+            blockSizes.put( viewSetup.getId(), activePlanner.getBlockSizes( viewSetup, dimensions.get( viewSetup.getId() ) ) );
+        }
+
+        // aggregation kernels
+        final Map< Integer, KlbDownsamplingKernel > kernels = new HashMap< Integer, KlbDownsamplingKernel >();
+        for ( final BasicViewSetup viewSetup : viewSetups ) {
+            final KlbDownsamplingKernel kernel = activePlanner.getKernel( viewSetup );
+            kernels.put( viewSetup.getId(), kernel == null ? KlbDownsamplingKernel.MEAN : kernel );
+        }
+
+
         // show results
         log.info( "Downsampling factors and image dimensions" );
         for ( final BasicViewSetup viewSetup : viewSetups ) {
             final int viewSetupId = viewSetup.getId();
-            log.info( String.format( "ViewSetupId %d", viewSetupId ) );
+            log.info( String.format( "ViewSetupId %d, kernel %s", viewSetupId, kernels.get( viewSetupId ) ) );
             final long[][] dims = dimensions.get( viewSetupId );
             final double[][] smpl = sampling.get( viewSetupId );
             final int[][] scales = relativeScaling.get( viewSetupId );
@@ -188,66 +367,474 @@ public class KlbDownsampler< T extends RealType< T > & NativeType< T > > impleme
                 log.info( String.format( "  Level %d image dimensions      %s", level, Arrays.toString( dims[ level ] ) ) );
                 log.info( String.format( "          sampling              %s", Arrays.toString( smpl[ level ] ) ) );
                 log.info( String.format( "          relative downsampling %s", Arrays.toString( scales[ level ] ) ) );
+                if ( blockSizes.get( viewSetupId ) != null && blockSizes.get( viewSetupId )[ level ] != null ) {
+                    log.info( String.format( "          KLB block size        %s", Arrays.toString( blockSizes.get( viewSetupId )[ level ] ) ) );
+                }
             }
         }
 
 
-        // downsample images
-        log.info( "Starting downsampling" );
-        final long[] klbDims = { 0, 0, 0, 1, 1 };
-        final float[] klbSampling = { 1, 1, 1, 1, 1 };
-        for ( final TimePoint tp : seq.getTimePoints().getTimePointsOrdered() ) {
-            final int t = tp.getId();
-            log.info( String.format( "Time point %d", t ) );
-            for ( final BasicViewSetup viewSetup : viewSetups ) {
-                final int viewSetupId = viewSetup.getId();
-                final int[][] scales = relativeScaling.get( viewSetupId );
-                final long[][] dims = dimensions.get( viewSetupId );
-                final double[][] smpl = sampling.get( viewSetupId );
-
-                final T type = ( T ) loader.getSetupImgLoader( viewSetupId ).getImageType();
-                final ImgFactory< T > imageFactory = new ArrayImgFactory< T >();
-                RandomAccessibleInterval currentImage = loader.getSetupImgLoader( viewSetupId ).getImage( t, ImgLoaderHints.LOAD_COMPLETELY );
-                final long[] currentDims = new long[ currentImage.numDimensions() ];
-                currentImage.dimensions( currentDims );
-
-                log.info( String.format( "  ViewSetupId %d", viewSetupId ) );
-                log.debug( String.format( "  Level %d", 0 ) );
-                log.debug( String.format( "     image dimensions      %s", Arrays.toString( currentDims ) ) );
-                log.debug( String.format( "     sampling              %s", Arrays.toString( smpl[ 0 ] ) ) );
-
-                for ( int level = 1; level < scales.length; ++level ) {
-                    final Img< T > downsampledImage = imageFactory.create( dims[ level ], type );
-                    downsampledImage.dimensions( currentDims );
-
-                    log.info( String.format( "    Level %d", level ) );
-                    log.debug( String.format( "     image dimensions      %s", Arrays.toString( currentDims ) ) );
-                    log.debug( String.format( "     sampling              %s", Arrays.toString( smpl[ level ] ) ) );
-                    log.debug( String.format( "     relative downsampling %s", Arrays.toString( scales[ level ] ) ) );
-
-                    Downsample.downsample( currentImage, downsampledImage, scales[ level ] );
-
-                    final ByteBuffer buffer = convertToBytes( downsampledImage );
-                    final String filePath = resolver.getFilePath( t, viewSetupId, level );
-                    log.debug( filePath );
-
-                    klbDims[ 0 ] = currentDims[ 0 ];
-                    klbDims[ 1 ] = currentDims[ 1 ];
-                    klbDims[ 2 ] = currentDims[ 2 ];
-                    klbSampling[ 0 ] = ( float ) smpl[ level ][ 0 ];
-                    klbSampling[ 1 ] = ( float ) smpl[ level ][ 1 ];
-                    klbSampling[ 2 ] = ( float ) smpl[ level ][ 2 ];
-                    try {
-                        klb.writeFull( buffer.array(), filePath, klbDims, type, klbSampling, null, null, null );
-                    } catch ( IOException e ) {
-                        log.error( e );
+        if ( !run ) {
+            return 0;
+        }
+
+        // downsample images, one job per (time point, ViewSetup)
+        final List< int[] > jobs = selectJobs( seq );
+        final int numJobs = jobs.size();
+        if ( numJobs == 0 ) {
+            log.info( "No images selected." );
+            return 0;
+        }
+        final int numWorkers = Math.max( 1, Math.min( numThreads, numJobs ) );
+        final int memoryPermits = ( int ) Math.max( 1, Math.min( Integer.MAX_VALUE, maxMemory >> 20 ) );
+        log.info( String.format( "Starting downsampling of %d images, %d readers, %d in parallel, %d writers, memory ceiling %d MB",
+                numJobs, numReaders, numWorkers, numWriters, memoryPermits ) );
+
+        final Pipeline pipeline = new Pipeline( loader, resolver, numJobs, numWorkers, memoryPermits );
+        for ( final int[] job : jobs ) {
+            final int t = job[ 0 ], viewSetupId = job[ 1 ];
+            pipeline.submit( new Job( t, viewSetupId, relativeScaling.get( viewSetupId ), dimensions.get( viewSetupId ), sampling.get( viewSetupId ), blockSizes.get( viewSetupId ), kernels.get( viewSetupId ) ) );
+        }
+        pipeline.await();
+        numFailed += pipeline.numFailed.get();
+        log.info( String.format( "Done. %d images downsampled, %d skipped, %d failed.",
+                pipeline.numProcessed.get() - pipeline.numFailed.get(), pipeline.numSkipped.get(), pipeline.numFailed.get() ) );
+        // failed jobs do not count, so that permanently failing images let watch mode time out
+        return pipeline.numProcessed.get() - pipeline.numFailed.get();
+    }
+
+    /**
+     * Downsampling of one time point and ViewSetup.
+     */
+    private final class Job
+    {
+        final int t, viewSetupId;
+        final int[][] scales;
+        final long[][] dims;
+        final double[][] smpl;
+        final long[][] blockSizes;
+        final KlbDownsamplingKernel kernel;
+        long sourceLastModified;
+        int permits = 0;
+
+        // the downsampler and every level being written hold a reference, the last one finishes the job
+        final AtomicInteger numReferences = new AtomicInteger( 1 );
+        volatile boolean failed = false;
+
+        Job( final int t, final int viewSetupId, final int[][] scales, final long[][] dims, final double[][] smpl, final long[][] blockSizes,
+                final KlbDownsamplingKernel kernel )
+        {
+            this.blockSizes = blockSizes;
+            this.kernel = kernel;
+            this.t = t;
+            this.viewSetupId = viewSetupId;
+            this.scales = scales;
+            this.dims = dims;
+            this.smpl = smpl;
+        }
+    }
+
+    /**
+     * Stages of the downsampling of a sequence, each with its own pool of
+     * threads: readers load full resolution images, downsamplers compute
+     * the resolution levels of an image and hand each level to the
+     * writers as soon as it is computed. Reading, downsampling and
+     * writing of different images (and levels) thus overlap. Levels of
+     * array backed images are computed in parallel chunks on a pool of
+     * numThreads threads shared by all downsamplers.
+     * <p>
+     * Hand-offs are bounded: at most numWorkers loaded images wait for or
+     * occupy a downsampler, and at most 2 * numWriters levels wait for or
+     * occupy a writer. Jobs additionally hold memory permits from before
+     * loading until their last level is written. In streaming mode, jobs
+     * read and write slabs in the downsampler stage.
+     */
+    private final class Pipeline
+    {
+        final KlbImgLoader loader;
+        final KlbPartitionResolver resolver;
+        final ExecutorService readers, downsamplers, writers, computation;
+        final KlbParallelDownsampler parallelDownsampler;
+        final Semaphore memory, loaded, writing;
+        final int memoryPermits;
+        final CountDownLatch finished;
+        final boolean skipCurrent = incremental || watchInterval > 0;
+        final AtomicInteger numProcessed = new AtomicInteger(), numSkipped = new AtomicInteger(), numFailed = new AtomicInteger();
+        final ThreadLocal< KLB > klbs;
+        final ThreadLocal< KlbArrayWriter > arrayWriters = new ThreadLocal< KlbArrayWriter >()
+        {
+            @Override
+            protected KlbArrayWriter initialValue()
+            {
+                return new KlbArrayWriter();
+            }
+        };
+
+        Pipeline( final KlbImgLoader loader, final KlbPartitionResolver resolver, final int numJobs, final int numWorkers, final int memoryPermits )
+        {
+            this.loader = loader;
+            this.resolver = resolver;
+            this.memoryPermits = memoryPermits;
+            memory = new Semaphore( memoryPermits, true );
+            loaded = new Semaphore( numWorkers, true );
+            writing = new Semaphore( 2 * numWriters, true );
+            finished = new CountDownLatch( numJobs );
+            readers = Executors.newFixedThreadPool( numReaders );
+            downsamplers = Executors.newFixedThreadPool( numWorkers );
+            writers = Executors.newFixedThreadPool( numWriters );
+
+            // downsamplers split every level into chunks computed on a pool shared by all of them,
+            // so that all cores are used even for a single image
+            computation = Executors.newFixedThreadPool( numThreads );
+            parallelDownsampler = new KlbParallelDownsampler( computation, 4 * numThreads );
+
+            // readers and writers decode / encode with multiple threads each, downsampling
+            // in streaming mode uses the remaining share
+            final int numIoThreads = Math.max( 1, numThreads / (numReaders + numWriters) );
+            final int numStreamingThreads = Math.max( 1, numThreads / numWorkers );
+            loader.setNumCompleteReaderThreads( numIoThreads );
+            klbs = new ThreadLocal< KLB >()
+            {
+                @Override
+                protected KLB initialValue()
+                {
+                    final KLB klb = KLB.newInstance();
+                    klb.setNumThreads( streaming ? numStreamingThreads : numIoThreads );
+                    return klb;
+                }
+            };
+        }
+
+        void submit( final Job job )
+        {
+            readers.execute( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    read( job );
+                }
+            } );
+        }
+
+        /**
+         * Waits until all jobs are finished and shuts the stages down.
+         */
+        void await()
+        {
+            try {
+                finished.await();
+            } catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            }
+            readers.shutdownNow();
+            downsamplers.shutdownNow();
+            writers.shutdownNow();
+            computation.shutdownNow();
+        }
+
+        private void read( final Job job )
+        {
+            final File source = new File( resolver.getFilePath( job.t, job.viewSetupId, 0 ) );
+            job.sourceLastModified = source.lastModified();
+            if ( skipCurrent && canSkip( resolver, source, job.t, job.viewSetupId, job.dims.length ) ) {
+                numSkipped.incrementAndGet();
+                finished.countDown();
+                return;
+            }
+
+            boolean handedOver = false;
+            try {
+                final T type = ( T ) loader.getSetupImgLoader( job.viewSetupId ).getImageType();
+                final int slabDepth = streaming ? getSlabDepth( resolver, job.t, job.viewSetupId ) : 0;
+                long bytes = streaming
+                        ? KlbStreamingDownsampler.estimateMemory( job.dims, job.scales, Math.max( 1, type.getBitsPerPixel() / 8 ), slabDepth, job.kernel )
+                        : estimateMemory( job.dims, type );
+                if ( statistics ) {
+                    bytes += KlbImageStatistics.estimateMemory( job.dims[ 0 ], statisticsBlockSize, projections, streaming ? 1 : numThreads );
+                }
+                final int permits = Math.min( memoryPermits, ( int ) Math.min( Integer.MAX_VALUE, (bytes >> 20) + 1 ) );
+                memory.acquire( permits );
+                job.permits = permits;
+                loaded.acquire();
+                try {
+                    numProcessed.incrementAndGet();
+                    if ( journal != null ) {
+                        journal.started( job.t, job.viewSetupId );
+                    }
+                    final RandomAccessibleInterval< T > image = streaming
+                            ? null
+                            : ( RandomAccessibleInterval< T > ) loader.getSetupImgLoader( job.viewSetupId ).getImage( job.t, ImgLoaderHints.LOAD_COMPLETELY );
+                    downsamplers.execute( new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            try {
+                                if ( streaming ) {
+                                    job.failed |= !downsampleStreaming( resolver, klbs.get(), arrayWriters.get(), type,
+                                            job.t, job.viewSetupId, job.sourceLastModified, job.scales, job.dims, job.smpl, job.blockSizes, job.kernel, slabDepth );
+                                } else {
+                                    downsample( Pipeline.this, job, type, image );
+                                }
+                            } catch ( Exception e ) {
+                                fail( job, e );
+                            } finally {
+                                loaded.release();
+                                release( job );
+                            }
+                        }
+                    } );
+                    handedOver = true;
+                } finally {
+                    if ( !handedOver ) {
+                        loaded.release();
                     }
+                }
+            } catch ( Exception e ) {
+                fail( job, e );
+            } finally {
+                if ( !handedOver ) {
+                    release( job );
+                }
+            }
+        }
+
+        /**
+         * Hands a computed level to the writers, blocking while too many
+         * levels are waiting to be written.
+         */
+        void write( final Job job, final int level, final Img< T > image, final long[] klbDims, final float[] klbSampling, final T type )
+                throws InterruptedException
+        {
+            writing.acquire();
+            job.numReferences.incrementAndGet();
+            try {
+                writers.execute( new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try {
+                            final String filePath = resolver.getFilePath( job.t, job.viewSetupId, level );
+                            log.debug( filePath );
+                            final KLB klb = klbs.get();
+                            final long[] blockSize = job.blockSizes == null ? null : job.blockSizes[ level ];
+                            final Object data = KlbArrayWriter.getStorageArray( image );
+                            if ( data != null ) {
+                                arrayWriters.get().write( klb, data, level, filePath, klbDims, type, klbSampling, blockSize );
+                            } else {
+                                klb.writeFull( convertToBytes( image ).array(), filePath, klbDims, type, klbSampling, blockSize, null, null );
+                            }
+                        } catch ( Exception e ) {
+                            fail( job, e );
+                        } finally {
+                            writing.release();
+                            release( job );
+                        }
+                    }
+                } );
+            } catch ( RuntimeException e ) {
+                writing.release();
+                release( job );
+                throw e;
+            }
+        }
 
-                    currentImage = downsampledImage;
+        private void fail( final Job job, final Exception e )
+        {
+            job.failed = true;
+            log.error( String.format( "Time point %d, ViewSetupId %d failed", job.t, job.viewSetupId ), e );
+        }
+
+        /**
+         * Drops a reference to the job, the last one records it in the
+         * journal and releases its memory.
+         */
+        private void release( final Job job )
+        {
+            if ( job.numReferences.decrementAndGet() > 0 ) {
+                return;
+            }
+            if ( job.failed ) {
+                numFailed.incrementAndGet();
+            }
+            try {
+                if ( !job.failed && journal != null ) {
+                    journal.done( job.t, job.viewSetupId, job.sourceLastModified );
                 }
+            } catch ( IOException e ) {
+                log.error( String.format( "Time point %d, ViewSetupId %d: cannot write journal", job.t, job.viewSetupId ), e );
+            } finally {
+                memory.release( job.permits );
+                finished.countDown();
             }
         }
-        log.info( "Done." );
+    }
+
+    /**
+     * Returns whether a job can be skipped in incremental mode: its
+     * source does not exist (yet) or, in watch mode, changed within the
+     * last poll interval, or all of its outputs exist and are newer than
+     * the source and the journal does not record it as interrupted.
+     */
+    private boolean canSkip( final KlbPartitionResolver resolver, final File source, final int t, final int viewSetupId, final int numLevels )
+    {
+        if ( !source.isFile() ) {
+            return true;
+        }
+        final long sourceLastModified = source.lastModified();
+        if ( watchInterval > 0 && sourceLastModified > System.currentTimeMillis() - watchInterval ) {
+            // possibly still being written
+            return true;
+        }
+        if ( journal != null && journal.isInterrupted( t, viewSetupId ) ) {
+            return false;
+        }
+        final boolean done = journal != null && journal.isDone( t, viewSetupId, sourceLastModified );
+        for ( int level = 1; level < numLevels; ++level ) {
+            final File output = new File( resolver.getFilePath( t, viewSetupId, level ) );
+            if ( !output.isFile() || (!done && output.lastModified() < sourceLastModified) ) {
+                return false;
+            }
+        }
+        if ( statistics ) {
+            final File stats = KlbImageStatistics.getFile( source.getPath() );
+            if ( !stats.isFile() || (!done && stats.lastModified() < sourceLastModified) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Downsamples all resolution levels of one time point and ViewSetup
+     * from its full resolution image, handing each level to the writers
+     * of the pipeline.
+     */
+    private void downsample( final Pipeline pipeline, final Job job, final T type, final RandomAccessibleInterval< T > image )
+            throws InterruptedException
+    {
+        final ImgFactory< T > imageFactory = new ArrayImgFactory< T >();
+        RandomAccessibleInterval< T > currentImage = image;
+        final long[] currentDims = new long[ currentImage.numDimensions() ];
+        currentImage.dimensions( currentDims );
+
+        log.info( String.format( "Time point %d, ViewSetupId %d", job.t, job.viewSetupId ) );
+        log.debug( String.format( "  Level %d", 0 ) );
+        log.debug( String.format( "     image dimensions      %s", Arrays.toString( currentDims ) ) );
+        log.debug( String.format( "     sampling              %s", Arrays.toString( job.smpl[ 0 ] ) ) );
+
+        if ( statistics ) {
+            writeStatistics( pipeline.resolver.getFilePath( job.t, job.viewSetupId, 0 ),
+                    KlbImageStatistics.compute( image, job.sourceLastModified, statisticsBlockSize, projections, type instanceof IntegerType,
+                            pipeline.computation, numThreads ) );
+        }
+
+        for ( int level = 1; level < job.scales.length; ++level ) {
+            final Img< T > downsampledImage = imageFactory.create( job.dims[ level ], type );
+            downsampledImage.dimensions( currentDims );
+
+            log.debug( String.format( "  Time point %d, ViewSetupId %d, Level %d", job.t, job.viewSetupId, level ) );
+            log.debug( String.format( "     image dimensions      %s", Arrays.toString( currentDims ) ) );
+            log.debug( String.format( "     sampling              %s", Arrays.toString( job.smpl[ level ] ) ) );
+            log.debug( String.format( "     relative downsampling %s", Arrays.toString( job.scales[ level ] ) ) );
+
+            if ( !pipeline.parallelDownsampler.downsample( currentImage, downsampledImage, job.scales[ level ], job.kernel ) ) {
+                if ( job.kernel == KlbDownsamplingKernel.MEAN ) {
+                    Downsample.downsample( currentImage, downsampledImage, job.scales[ level ] );
+                } else {
+                    KlbParallelDownsampler.downsampleGeneric( currentImage, downsampledImage, job.scales[ level ], job.kernel );
+                }
+            }
+
+            final long[] klbDims = { currentDims[ 0 ], currentDims[ 1 ], currentDims[ 2 ], 1, 1 };
+            final float[] klbSampling = { ( float ) job.smpl[ level ][ 0 ], ( float ) job.smpl[ level ][ 1 ], ( float ) job.smpl[ level ][ 2 ], 1, 1 };
+            pipeline.write( job, level, downsampledImage, klbDims, klbSampling, type );
+
+            currentImage = downsampledImage;
+        }
+    }
+
+    /**
+     * Downsamples all resolution levels of one time point and ViewSetup
+     * in a single pass over z-slabs of the full resolution KLB file, see
+     * {@link KlbStreamingDownsampler}. Returns false on failure.
+     */
+    private boolean downsampleStreaming( final KlbPartitionResolver resolver, final KLB klb, final KlbArrayWriter writer, final T type,
+            final int t, final int viewSetupId, final long sourceLastModified, final int[][] scales, final long[][] dims, final double[][] smpl, final long[][] blockSizes,
+            final KlbDownsamplingKernel kernel, final int slabDepth )
+    {
+        log.info( String.format( "Time point %d, ViewSetupId %d (streaming, %d planes per slab)", t, viewSetupId, slabDepth ) );
+        final String[] filePaths = new String[ dims.length ];
+        for ( int level = 0; level < dims.length; ++level ) {
+            filePaths[ level ] = resolver.getFilePath( t, viewSetupId, level );
+        }
+        try {
+            final KlbStreamingDownsampler< T > downsampler = new KlbStreamingDownsampler< T >( klb, writer, type, kernel );
+            final KlbImageStatistics.Accumulator accumulator = statistics
+                    ? new KlbImageStatistics.Accumulator( dims[ 0 ], statisticsBlockSize, projections, type instanceof IntegerType, 0, ( int ) dims[ 0 ][ 2 ] )
+                    : null;
+            downsampler.setStatistics( accumulator );
+            downsampler.process( filePaths[ 0 ], dims, scales, smpl, filePaths, blockSizes, slabDepth );
+            if ( accumulator != null ) {
+                writeStatistics( filePaths[ 0 ], accumulator.getStatistics( sourceLastModified ) );
+            }
+            return true;
+        } catch ( IOException e ) {
+            log.error( e );
+            return false;
+        }
+    }
+
+    /**
+     * Returns the number of planes read at once in streaming mode: the
+     * KLB block depth of the full resolution file, times the slab depth
+     * set by the user, if any.
+     */
+    private int getSlabDepth( final KlbPartitionResolver resolver, final int t, final int viewSetupId )
+    {
+        final int[] blockSize = new int[ 3 ];
+        final int blockDepth = resolver.getBlockDimensions( t, viewSetupId, 0, blockSize ) ? Math.max( 1, blockSize[ 2 ] ) : 1;
+        return slabDepth > 0 ? Math.max( 1, slabDepth / blockDepth ) * blockDepth : blockDepth;
+    }
+
+    /**
+     * Writes the statistics sidecar of the image at imagePath. Failures
+     * are logged but do not fail the job.
+     */
+    private void writeStatistics( final String imagePath, final KlbImageStatistics stats )
+    {
+        final File file = KlbImageStatistics.getFile( imagePath );
+        try {
+            stats.write( file );
+        } catch ( IOException e ) {
+            log.warn( "Cannot write statistics " + file, e );
+        }
+    }
+
+    /**
+     * Estimates the peak heap usage of downsampling one image: the full
+     * resolution image and all levels, which are kept until written, and
+     * the reused byte buffers of all levels (none for 8 bit).
+     */
+    private static long estimateMemory( final long[][] dims, final NativeType< ? > type )
+    {
+        final long bytesPerPixel = Math.max( 1, type.getBitsPerPixel() / 8 );
+        long levels = 0;
+        for ( int level = 1; level < dims.length; ++level ) {
+            levels += bytesPerPixel * numElements( dims[ level ] );
+        }
+        return bytesPerPixel * numElements( dims[ 0 ] ) + (bytesPerPixel > 1 ? 2 : 1) * levels;
+    }
+
+    private static long numElements( final long[] dims )
+    {
+        long n = 1;
+        for ( final long d : dims ) {
+            n *= d;
+        }
+        return n;
     }
 
     private ByteBuffer convertToBytes( final IterableInterval< T > input )
@@ -272,11 +859,32 @@ public class KlbDownsampler< T extends RealType< T > & NativeType< T > > impleme
                 while ( cur.hasNext() )
                     shorts.put( ( short ) cur.next().getRealDouble() );
                 return bytes;
+            case 32:
+                final FloatBuffer floats = bytes.asFloatBuffer();
+                while ( cur.hasNext() )
+                    floats.put( cur.next().getRealFloat() );
+                return bytes;
             default:
                 throw new IllegalArgumentException( "Unknown or unsupported data type." );
         }
     }
     
+    /**
+     * Reads the pyramid plan stored in the dataset XML, or returns the
+     * default plan if there is none.
+     */
+    private KlbPyramidPlan readPyramidPlan( final File xmlFile )
+    {
+        try {
+            final Document doc = new SAXBuilder().build( xmlFile );
+            final Element imageLoaderElement = doc.getRootElement().getChild( "SequenceDescription" ).getChild( "ImageLoader" );
+            return KlbPyramidPlan.fromXml( imageLoaderElement.getChild( KlbPyramidPlan.XML_ELEMENT ) );
+        } catch ( final Exception e ) {
+            log.warn( "Cannot read pyramid plan, using the default", e );
+            return new KlbPyramidPlan();
+        }
+    }
+
     private void updateXML()
     {
     	//process the xml file
@@ -315,18 +923,332 @@ public class KlbDownsampler< T extends RealType< T > & NativeType< T > > impleme
         	resolverElement.addContent(resolutionTag);
         }         
         
+        // record the pyramid plan, unless the dataset never configured one
+        final Element imageLoaderElement = resolverElement.getParentElement();
+        if ( activePlanner instanceof KlbPyramidPlan
+                && (!(( KlbPyramidPlan ) activePlanner).isDefault() || imageLoaderElement.getChild( KlbPyramidPlan.XML_ELEMENT ) != null) ) {
+            imageLoaderElement.removeChildren( KlbPyramidPlan.XML_ELEMENT );
+            imageLoaderElement.addContent( (( KlbPyramidPlan ) activePlanner).toXml() );
+        }
+
+        // the index is written from the updated XML, without the previous index
+        if ( writeIndex ) {
+            imageLoaderElement.removeChildren( "IndexFile" );
+        }
+
         //replace xml with the new file
-        final XMLOutputter xout = new XMLOutputter(Format.getPrettyFormat());
-        try
-		{
-			xout.output( doc, new FileOutputStream( xmlFile.getAbsolutePath()) );
-		}
-		catch ( final Exception e )
-		{
-			throw new RuntimeException("Cannot print the new xml file");
-		}
+        writeDocument( doc );
+
+        if ( writeIndex ) {
+            final File indexFile = new File( xmlFile.getAbsolutePath() + ".index" );
+            try {
+                final SpimDataMinimal data = new XmlIoSpimDataMinimal().load( xmlFile.getAbsolutePath() );
+                final KlbImgLoader loader = ( KlbImgLoader ) data.getSequenceDescription().getImgLoader();
+                loader.close();
+                KlbDatasetIndex.write( loader.getResolver(), indexFile );
+            } catch ( final Exception e ) {
+                log.warn( "Cannot write dataset index", e );
+                return;
+            }
+            imageLoaderElement.addContent( XmlHelpers.pathElement( "IndexFile", indexFile, xmlFile.getAbsoluteFile().getParentFile() ) );
+            writeDocument( doc );
+        }
+    }
+
+    private void writeDocument( final Document doc )
+    {
+        final XMLOutputter xout = new XMLOutputter( Format.getPrettyFormat() );
+        try {
+            final FileOutputStream out = new FileOutputStream( xmlFile.getAbsolutePath() );
+            try {
+                xout.output( doc, out );
+            } finally {
+                out.close();
+            }
+        } catch ( final Exception e ) {
+            throw new RuntimeException( "Cannot print the new xml file" );
+        }
     }
     
+    public KlbPyramidPlanner getPyramidPlanner()
+    {
+        return planner;
+    }
+
+    /**
+     * Sets the planner of resolution levels. If null (the default), the
+     * plan stored in the dataset XML is used, or BigDataViewer's proposed
+     * mipmaps if there is none. Plans of type {@link KlbPyramidPlan} are
+     * stored in the dataset XML.
+     */
+    public void setPyramidPlanner( final KlbPyramidPlanner planner )
+    {
+        this.planner = planner;
+    }
+
+    public int getNumThreads()
+    {
+        return numThreads;
+    }
+
+    /**
+     * Sets the number of threads shared by all downsampling jobs, each
+     * job processing one time point and ViewSetup. Defaults to the
+     * number of available processors.
+     */
+    public void setNumThreads( final int numThreads )
+    {
+        this.numThreads = Math.max( 1, numThreads );
+    }
+
+    public int getNumReaders()
+    {
+        return numReaders;
+    }
+
+    /**
+     * Sets the number of threads loading full resolution images. Few
+     * readers (the default is 2) keep reads sequential on spinning disks.
+     */
+    public void setNumReaders( final int numReaders )
+    {
+        this.numReaders = Math.max( 1, numReaders );
+    }
+
+    public int getNumWriters()
+    {
+        return numWriters;
+    }
+
+    /**
+     * Sets the number of threads writing resolution levels, 2 by default.
+     */
+    public void setNumWriters( final int numWriters )
+    {
+        this.numWriters = Math.max( 1, numWriters );
+    }
+
+    public long getMaxMemory()
+    {
+        return maxMemory;
+    }
+
+    /**
+     * Sets the memory ceiling for concurrently running downsampling
+     * jobs. A job is started only when its estimated memory fits in the
+     * ceiling. Defaults to 3/4 of the maximum heap size.
+     */
+    public void setMaxMemory( final long maxMemoryInBytes )
+    {
+        this.maxMemory = maxMemoryInBytes;
+    }
+
+    public boolean isStreaming()
+    {
+        return streaming;
+    }
+
+    /**
+     * Enables streaming mode, in which all resolution levels are
+     * generated in one pass over z-slabs of the full resolution image
+     * instead of loading it completely. Memory then depends on the slab
+     * depth and the size of the downsampled levels only.
+     */
+    public void setStreaming( final boolean streaming )
+    {
+        this.streaming = streaming;
+    }
+
+    public int getSlabDepth()
+    {
+        return slabDepth;
+    }
+
+    /**
+     * Sets the number of planes read at once in streaming mode, rounded
+     * down to a multiple of the KLB block depth. 0 (the default) reads
+     * one layer of KLB blocks at a time.
+     */
+    public void setSlabDepth( final int slabDepth )
+    {
+        this.slabDepth = Math.max( 0, slabDepth );
+    }
+
+    public boolean isIncremental()
+    {
+        return incremental;
+    }
+
+    /**
+     * Enables incremental mode, in which images are skipped if all of
+     * their resolution levels exist and are newer than the full
+     * resolution file. Images whose processing was interrupted, as
+     * recorded in the journal next to the dataset XML, are redone.
+     */
+    public void setIncremental( final boolean incremental )
+    {
+        this.incremental = incremental;
+    }
+
+    public boolean isWriteIndex()
+    {
+        return writeIndex;
+    }
+
+    /**
+     * Enables writing a dataset index sidecar (see {@link KlbDatasetIndex})
+     * next to the dataset XML whenever the XML is updated, so that viewers
+     * skip probing file headers. Disabled by default.
+     */
+    public void setWriteIndex( final boolean writeIndex )
+    {
+        this.writeIndex = writeIndex;
+    }
+
+    public boolean isStatistics()
+    {
+        return statistics;
+    }
+
+    /**
+     * Enables the statistics sidecar (see {@link KlbImageStatistics})
+     * that is written next to every full resolution image, computed in
+     * the same pass as the resolution levels. Enabled by default.
+     */
+    public void setStatistics( final boolean statistics )
+    {
+        this.statistics = statistics;
+    }
+
+    public boolean isProjections()
+    {
+        return projections;
+    }
+
+    /**
+     * Enables maximum intensity projections along x, y and z in the
+     * statistics sidecar, disabled by default.
+     */
+    public void setProjections( final boolean projections )
+    {
+        this.projections = projections;
+    }
+
+    public int[] getStatisticsBlockSize()
+    {
+        return statisticsBlockSize.clone();
+    }
+
+    /**
+     * Sets the block size (x, y, z) of the per-block statistics, 64^3 by
+     * default.
+     */
+    public void setStatisticsBlockSize( final int[] blockSize )
+    {
+        for ( int d = 0; d < 3; ++d ) {
+            statisticsBlockSize[ d ] = Math.max( 1, blockSize[ d ] );
+        }
+    }
+
+    public long getWatchInterval()
+    {
+        return watchInterval;
+    }
+
+    /**
+     * Enables watch mode: after processing all available images, the
+     * dataset is checked for new full resolution files every
+     * intervalMillis, which are downsampled once they have not changed
+     * for one interval. Implies incremental mode. 0 (the default)
+     * disables watch mode.
+     *
+     * @param intervalMillis poll interval
+     * @param idleTimeoutMillis stop watching if no new images appeared for this long, 0 to watch until interrupted
+     */
+    public void setWatch( final long intervalMillis, final long idleTimeoutMillis )
+    {
+        this.watchInterval = Math.max( 0, intervalMillis );
+        this.watchIdleTimeout = Math.max( 0, idleTimeoutMillis );
+    }
+
+    /**
+     * Restricts processing to the given time point ids, null (the
+     * default) for all time points.
+     */
+    public void setTimePoints( final Collection< Integer > timePointIds )
+    {
+        this.timePointIds = timePointIds == null ? null : new HashSet< Integer >( timePointIds );
+    }
+
+    /**
+     * Restricts processing to the given ViewSetup ids, null (the default)
+     * for all ViewSetups.
+     */
+    public void setViewSetups( final Collection< Integer > viewSetupIds )
+    {
+        this.viewSetupIds = viewSetupIds == null ? null : new HashSet< Integer >( viewSetupIds );
+    }
+
+    public int getShardIndex()
+    {
+        return shardIndex;
+    }
+
+    public int getNumShards()
+    {
+        return numShards;
+    }
+
+    /**
+     * Makes this process one of numShards independent processes that
+     * split the selected images deterministically: of all selected
+     * (time point, ViewSetup) pairs in order, every numShards-th starting
+     * at index is processed by this process.
+     * Sharded runs keep a journal per shard and leave the dataset XML
+     * unchanged, which is updated by {@link #merge} once all shards are
+     * done.
+     *
+     * @param index shard of this process, 0 <= index < numShards
+     */
+    public void setShard( final int index, final int numShards )
+    {
+        if ( numShards < 1 || index < 0 || index >= numShards ) {
+            throw new IllegalArgumentException( String.format( "Invalid shard %d of %d", index, numShards ) );
+        }
+        this.shardIndex = index;
+        this.numShards = numShards;
+    }
+
+    /**
+     * Returns the number of images that failed in the last call of
+     * {@link #process}.
+     */
+    public int getNumFailed()
+    {
+        return numFailed;
+    }
+
+    /**
+     * Parses a list of ids and inclusive ranges like "0-99,120,200-210".
+     */
+    public static List< Integer > parseIds( final String text )
+    {
+        final List< Integer > ids = new ArrayList< Integer >();
+        for ( final String part : text.trim().split( "\\s*,\\s*" ) ) {
+            final int dash = part.indexOf( '-', 1 );
+            if ( dash < 0 ) {
+                ids.add( Integer.parseInt( part ) );
+            } else {
+                final int first = Integer.parseInt( part.substring( 0, dash ).trim() );
+                final int last = Integer.parseInt( part.substring( dash + 1 ).trim() );
+                for ( int id = first; id <= last; ++id ) {
+                    ids.add( id );
+                }
+            }
+        }
+        return ids;
+    }
+
     public int getNumResolutionLevels(int viewSetupId)
     {
     	return numResolutionLevels.get(viewSetupId).intValue();
@@ -341,18 +1263,126 @@ public class KlbDownsampler< T extends RealType< T > & NativeType< T > > impleme
         return maxNumResolutionLevels;
     }
 
+    private static final String USAGE = String.format( "%s%n%n%s%n",
+            "Usage: KlbDownsampler <dataset.xml> [options]",
+            "  timepoints=0-99,120     time point ids to process (default: all)\n" +
+            "  setups=0,2-3            ViewSetup ids to process (default: all)\n" +
+            "  shard=i/n               process shard i (0 <= i < n) of n independent processes;\n" +
+            "                          the dataset XML is not updated, run 'merge' once all are done\n" +
+            "  merge                   check that all levels exist and update the dataset XML\n" +
+            "  threads=n  memory=MB  readers=n  writers=n\n" +
+            "  incremental  watch=s[,idle]  streaming  slab=n  skipfirst\n" +
+            "  factors=1,1,1;2,2,1  anisotropic  mindim=n  maxlevels=n  blocksize=x,y,z;...  kernel=mean,2:mode\n" +
+            "  nostats  projections  statsblock=x,y,z\n" +
+            "  index                   write a dataset index next to the XML when it is updated\n" +
+            "Exits with status 1 if an image failed or the merge found missing levels." );
+
+    /**
+     * Headless batch entry point, run without arguments for the options.
+     * All shards and the merge step of a dataset must be given the same
+     * selection and plan.
+     */
     public static void main( final String[] args )
     {
+        System.setProperty( "java.awt.headless", "true" );
+        if ( args.length == 0 || "help".equals( args[ 0 ] ) || "-h".equals( args[ 0 ] ) || "--help".equals( args[ 0 ] ) ) {
+            System.out.print( USAGE );
+            System.exit( args.length == 0 ? 2 : 0 );
+        }
         final String filePath = args[ 0 ];
 
         boolean skipFirst = false;
+        boolean merge = false;
+        final KlbDownsampler downsampler = new KlbDownsampler();
+        KlbPyramidPlan plan = null;
         for ( int i = 1; i < args.length; ++i ) {
-            if ( "skipfirst".equals( args[ i ].toLowerCase() ) ) {
+            final String arg = args[ i ].toLowerCase();
+            if ( "skipfirst".equals( arg ) ) {
                 skipFirst = true;
+            } else if ( arg.startsWith( "factors=" ) ) {
+                // e.g. factors=1,1,1;2,2,1;4,4,2
+                plan = plan == null ? new KlbPyramidPlan() : plan;
+                plan.setFactors( KlbPyramidPlan.parse( arg.substring( 8 ) ) );
+            } else if ( "anisotropic".equals( arg ) ) {
+                plan = plan == null ? new KlbPyramidPlan() : plan;
+                plan.setAnisotropic( true );
+            } else if ( arg.startsWith( "mindim=" ) ) {
+                plan = plan == null ? new KlbPyramidPlan() : plan;
+                plan.setMinDimension( Integer.parseInt( arg.substring( 7 ) ) );
+            } else if ( arg.startsWith( "maxlevels=" ) ) {
+                plan = plan == null ? new KlbPyramidPlan() : plan;
+                plan.setMaxNumLevels( Integer.parseInt( arg.substring( 10 ) ) );
+            } else if ( arg.startsWith( "blocksize=" ) ) {
+                // per level, e.g. blocksize=64,64,8;64,64,16
+                plan = plan == null ? new KlbPyramidPlan() : plan;
+                plan.setBlockSizeList( KlbPyramidPlan.parse( arg.substring( 10 ) ) );
+            } else if ( arg.startsWith( "kernel=" ) ) {
+                // default kernel and per setup kernels, e.g. kernel=mean,2:mode
+                plan = plan == null ? new KlbPyramidPlan() : plan;
+                for ( final String value : arg.substring( 7 ).split( "," ) ) {
+                    final int colon = value.indexOf( ':' );
+                    if ( colon < 0 ) {
+                        plan.setKernel( KlbDownsamplingKernel.valueOf( value.trim().toUpperCase() ) );
+                    } else {
+                        plan.setKernel( Integer.parseInt( value.substring( 0, colon ).trim() ),
+                                KlbDownsamplingKernel.valueOf( value.substring( colon + 1 ).trim().toUpperCase() ) );
+                    }
+                }
+            } else if ( "incremental".equals( arg ) ) {
+                downsampler.setIncremental( true );
+            } else if ( arg.startsWith( "watch=" ) ) {
+                // poll interval and optional idle timeout in seconds, e.g. watch=30 or watch=30,3600
+                final String[] values = arg.substring( 6 ).split( "," );
+                downsampler.setWatch( Long.parseLong( values[ 0 ] ) * 1000, values.length > 1 ? Long.parseLong( values[ 1 ] ) * 1000 : 0 );
+            } else if ( "streaming".equals( arg ) ) {
+                downsampler.setStreaming( true );
+            } else if ( arg.startsWith( "slab=" ) ) {
+                downsampler.setSlabDepth( Integer.parseInt( arg.substring( 5 ) ) );
+            } else if ( arg.startsWith( "readers=" ) ) {
+                downsampler.setNumReaders( Integer.parseInt( arg.substring( 8 ) ) );
+            } else if ( arg.startsWith( "writers=" ) ) {
+                downsampler.setNumWriters( Integer.parseInt( arg.substring( 8 ) ) );
+            } else if ( arg.startsWith( "threads=" ) ) {
+                downsampler.setNumThreads( Integer.parseInt( arg.substring( 8 ) ) );
+            } else if ( arg.startsWith( "memory=" ) ) {
+                // in MB
+                downsampler.setMaxMemory( Long.parseLong( arg.substring( 7 ) ) << 20 );
+            } else if ( "nostats".equals( arg ) ) {
+                downsampler.setStatistics( false );
+            } else if ( "projections".equals( arg ) ) {
+                downsampler.setProjections( true );
+            } else if ( arg.startsWith( "statsblock=" ) ) {
+                // e.g. statsblock=64,64,32
+                downsampler.setStatisticsBlockSize( KlbPyramidPlan.parse( arg.substring( 11 ) )[ 0 ] );
+            } else if ( arg.startsWith( "timepoints=" ) ) {
+                downsampler.setTimePoints( parseIds( arg.substring( 11 ) ) );
+            } else if ( arg.startsWith( "setups=" ) ) {
+                downsampler.setViewSetups( parseIds( arg.substring( 7 ) ) );
+            } else if ( arg.startsWith( "shard=" ) ) {
+                // e.g. shard=3/16
+                final String[] values = arg.substring( 6 ).split( "/" );
+                if ( values.length != 2 ) {
+                    throw new IllegalArgumentException( "Expected shard=i/n, got '" + arg + "'" );
+                }
+                downsampler.setShard( Integer.parseInt( values[ 0 ].trim() ), Integer.parseInt( values[ 1 ].trim() ) );
+            } else if ( "merge".equals( arg ) ) {
+                merge = true;
+            } else if ( "index".equals( arg ) ) {
+                downsampler.setWriteIndex( true );
+            } else {
+                System.err.println( "Unknown option '" + args[ i ] + "'" );
+                System.err.print( USAGE );
+                System.exit( 2 );
             }
         }
 
-        new KlbDownsampler().process( new File( filePath ), skipFirst );
+        downsampler.setPyramidPlanner( plan );
+        if ( merge ) {
+            downsampler.skipFirst = skipFirst;
+            System.exit( downsampler.merge( new File( filePath ) ) ? 0 : 1 );
+        }
+        downsampler.process( new File( filePath ), skipFirst );
+        System.exit( downsampler.getNumFailed() > 0 ? 1 : 0 );
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,111 @@
+package org.janelia.simview.klb.bdv;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Append-only record of downsampling jobs, one per time point and
+ * ViewSetup, so that interrupted runs can be resumed.
+ * <p>
+ * A job is recorded as started before its first level is written and
+ * as done, with the modification time of its source file, after its
+ * last level is written. Jobs that were started but never completed
+ * have possibly incomplete outputs and must be redone.
+ */
+class KlbDownsamplingJournal
+{
+    private final File file;
+    private final HashSet< Long > started = new HashSet< Long >();
+    private final HashMap< Long, Long > done = new HashMap< Long, Long >();
+
+    /**
+     * Opens the journal, reading the entries of previous runs if the
+     * file exists.
+     */
+    KlbDownsamplingJournal( final File file ) throws IOException
+    {
+        this.file = file;
+        if ( file.exists() ) {
+            final BufferedReader reader = new BufferedReader( new FileReader( file ) );
+            try {
+                String line;
+                while ( (line = reader.readLine()) != null ) {
+                    final String[] fields = line.trim().split( "\\s+" );
+                    try {
+                        if ( fields.length == 3 && "started".equals( fields[ 0 ] ) ) {
+                            final long key = key( Integer.parseInt( fields[ 1 ] ), Integer.parseInt( fields[ 2 ] ) );
+                            started.add( key );
+                            done.remove( key );
+                        } else if ( fields.length == 4 && "done".equals( fields[ 0 ] ) ) {
+                            final long key = key( Integer.parseInt( fields[ 1 ] ), Integer.parseInt( fields[ 2 ] ) );
+                            started.remove( key );
+                            done.put( key, Long.parseLong( fields[ 3 ] ) );
+                        }
+                    } catch ( NumberFormatException e ) {
+                        // truncated last line of an interrupted run
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Returns whether the job was completed from a source file with the
+     * given modification time.
+     */
+    synchronized boolean isDone( final int timePoint, final int viewSetup, final long sourceLastModified )
+    {
+        final Long t = done.get( key( timePoint, viewSetup ) );
+        return t != null && t.longValue() == sourceLastModified;
+    }
+
+    /**
+     * Returns whether the job was started but not completed.
+     */
+    synchronized boolean isInterrupted( final int timePoint, final int viewSetup )
+    {
+        return started.contains( key( timePoint, viewSetup ) );
+    }
+
+    synchronized void started( final int timePoint, final int viewSetup ) throws IOException
+    {
+        append( String.format( "started %d %d%n", timePoint, viewSetup ) );
+        started.add( key( timePoint, viewSetup ) );
+    }
+
+    synchronized void done( final int timePoint, final int viewSetup, final long sourceLastModified ) throws IOException
+    {
+        append( String.format( "done %d %d %d%n", timePoint, viewSetup, sourceLastModified ) );
+        final long key = key( timePoint, viewSetup );
+        started.remove( key );
+        done.put( key, sourceLastModified );
+    }
+
+    private void append( final String line ) throws IOException
+    {
+        final Writer writer = new FileWriter( file, true );
+        try {
+            writer.write( line );
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static long key( final int timePoint, final int viewSetup )
+    {
+        return (( long ) timePoint << 32) | (viewSetup & 0xffffffffL);
+    }
+}
@@ -0,0 +1,145 @@
+package org.janelia.simview.klb.bdv;
+
+import java.util.Arrays;
+
+/**
+ * Aggregation of the voxels of a block into one voxel of a downsampled
+ * resolution level.
+ */
+public enum KlbDownsamplingKernel
+{
+    /**
+     * Average, rounded half up for integer types (the default).
+     */
+    MEAN,
+
+    /**
+     * Maximum, keeps sparse bright signal visible at coarse levels.
+     */
+    MAX,
+
+    /**
+     * Minimum.
+     */
+    MIN,
+
+    /**
+     * Most frequent value, for label images. Ties go to the smallest
+     * value.
+     */
+    MODE,
+
+    /**
+     * Center voxel of the block (nearest neighbor).
+     */
+    SUBSAMPLE;
+
+    /**
+     * Returns the index of the center voxel of a block of the given
+     * size, with voxels in x, y, z order.
+     */
+    static int centerIndex( final int[] factors )
+    {
+        return ((factors[ 2 ] / 2) * factors[ 1 ] + factors[ 1 ] / 2) * factors[ 0 ] + factors[ 0 ] / 2;
+    }
+
+    /**
+     * Aggregates the voxels of one block, in x, y, z order. May reorder
+     * samples.
+     */
+    double aggregate( final double[] samples, final int[] factors )
+    {
+        switch ( this ) {
+            case MAX: {
+                double max = samples[ 0 ];
+                for ( final double v : samples ) {
+                    max = Math.max( max, v );
+                }
+                return max;
+            }
+            case MIN: {
+                double min = samples[ 0 ];
+                for ( final double v : samples ) {
+                    min = Math.min( min, v );
+                }
+                return min;
+            }
+            case MODE:
+                return mode( samples, 0, samples.length );
+            case SUBSAMPLE:
+                return samples[ centerIndex( factors ) ];
+            default: {
+                double sum = 0;
+                for ( final double v : samples ) {
+                    sum += v;
+                }
+                return sum / samples.length;
+            }
+        }
+    }
+
+    /**
+     * Returns the most frequent value of a[from, to), sorting the range.
+     */
+    static int mode( final int[] a, final int from, final int to )
+    {
+        Arrays.sort( a, from, to );
+        int best = a[ from ], bestCount = 0;
+        for ( int i = from; i < to; ) {
+            int j = i + 1;
+            while ( j < to && a[ j ] == a[ i ] ) {
+                ++j;
+            }
+            if ( j - i > bestCount ) {
+                best = a[ i ];
+                bestCount = j - i;
+            }
+            i = j;
+        }
+        return best;
+    }
+
+    /**
+     * Returns the most frequent value of a[from, to), sorting the range.
+     */
+    static float mode( final float[] a, final int from, final int to )
+    {
+        Arrays.sort( a, from, to );
+        float best = a[ from ];
+        int bestCount = 0;
+        for ( int i = from; i < to; ) {
+            int j = i + 1;
+            while ( j < to && a[ j ] == a[ i ] ) {
+                ++j;
+            }
+            if ( j - i > bestCount ) {
+                best = a[ i ];
+                bestCount = j - i;
+            }
+            i = j;
+        }
+        return best;
+    }
+
+    /**
+     * Returns the most frequent value of a[from, to), sorting the range.
+     */
+    static double mode( final double[] a, final int from, final int to )
+    {
+        Arrays.sort( a, from, to );
+        double best = a[ from ];
+        int bestCount = 0;
+        for ( int i = from; i < to; ) {
+            int j = i + 1;
+            while ( j < to && a[ j ] == a[ i ] ) {
+                ++j;
+            }
+            if ( j - i > bestCount ) {
+                best = a[ i ];
+                bestCount = j - i;
+            }
+            i = j;
+        }
+        return best;
+    }
+}
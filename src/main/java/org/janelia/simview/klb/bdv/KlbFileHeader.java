@@ -0,0 +1,52 @@
+package org.janelia.simview.klb.bdv;
+
+import org.janelia.simview.klb.KLB;
+
+import java.io.File;
+
+/**
+ * Immutable snapshot of the header of a single KLB file, together with
+ * the file's size and modification time at the time the header was read.
+ */
+class KlbFileHeader
+{
+    final long[] imageSize;
+    final int[] blockSize;
+    final float[] pixelSpacing;
+    final Object dataType;
+    final long fileSize;
+    final long lastModified;
+
+    KlbFileHeader( final long[] imageSize, final int[] blockSize, final float[] pixelSpacing, final Object dataType, final long fileSize, final long lastModified )
+    {
+        this.imageSize = imageSize;
+        this.blockSize = blockSize;
+        this.pixelSpacing = pixelSpacing;
+        this.dataType = dataType;
+        this.fileSize = fileSize;
+        this.lastModified = lastModified;
+    }
+
+    KlbFileHeader( final KLB.Header header, final File file )
+    {
+        this(
+                new long[]{ header.imageSize[ 0 ], header.imageSize[ 1 ], header.imageSize[ 2 ] },
+                new int[]{ ( int ) header.blockSize[ 0 ], ( int ) header.blockSize[ 1 ], ( int ) header.blockSize[ 2 ] },
+                new float[]{ header.pixelSpacing[ 0 ], header.pixelSpacing[ 1 ], header.pixelSpacing[ 2 ] },
+                header.dataType,
+                file.length(),
+                file.lastModified() );
+    }
+
+    /**
+     * Returns whether the file on disk still has the size and
+     * modification time recorded when this header was read.
+     *
+     * @param file the KLB file this header was read from
+     * @return whether or not the header is still valid
+     */
+    boolean isCurrent( final File file )
+    {
+        return file.lastModified() == lastModified && file.length() == fileSize;
+    }
+}
@@ -0,0 +1,186 @@
+package org.janelia.simview.klb.bdv;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Precompiled file path template of a single ViewSetup.
+ * <p>
+ * The template is split once into literal segments and number slots
+ * (time point, resolution level), so that building a file path only
+ * appends the literals and zero-padded digits into a StringBuilder.
+ * Produces the same paths as the String.replaceAll/String.format based
+ * substitution in KlbPartitionResolver it replaces.
+ */
+final class KlbFilePathTemplate
+{
+    private static final int TIME = 0, LEVEL = 1;
+
+    private final Parts fullResolution, downsampled;
+
+    /**
+     * @param template        ViewSetup template path
+     * @param timeTag         time name tag (e.g. 'TM'), null if the dataset has no time tag
+     * @param timeMatch       tag and digits as found in the template (e.g. 'TM000042'), null if none
+     * @param resLvlTag       resolution level name tag, null if none
+     * @param resLvlMatch     tag and digits as found in the template, null if none
+     */
+    KlbFilePathTemplate( final String template, final String timeTag, final String timeMatch, final String resLvlTag, final String resLvlMatch )
+    {
+        // level 0
+        String fn = template;
+        if ( resLvlMatch != null ) {
+            fn = fn.replace( "." + resLvlMatch, "" );
+        }
+        Parts parts = new Parts( fn );
+        if ( timeMatch != null ) {
+            parts = parts.split( timeMatch, TIME, timeTag, timeMatch.length() - timeTag.length() );
+        }
+        fullResolution = parts;
+
+        // levels > 0
+        if ( resLvlMatch == null ) {
+            final int end = template.lastIndexOf( ".klb" );
+            fn = end < 0 ? template : template.substring( 0, end );
+            parts = new Parts( fn );
+            if ( timeMatch != null ) {
+                parts = parts.split( timeMatch, TIME, timeTag, timeMatch.length() - timeTag.length() );
+            }
+            parts = parts.append( LEVEL, ".RESLVL", 0, ".klb" );
+        } else {
+            parts = new Parts( template );
+            if ( timeMatch != null ) {
+                parts = parts.split( timeMatch, TIME, timeTag, timeMatch.length() - timeTag.length() );
+            }
+            parts = parts.split( resLvlMatch, LEVEL, resLvlTag, resLvlMatch.length() - resLvlTag.length() );
+        }
+        downsampled = parts;
+    }
+
+    /**
+     * Appends the path of the file defined by time point and
+     * resolution level to sb.
+     *
+     * @param timePoint time point
+     * @param level     resolution level
+     * @param sb        target
+     */
+    void build( final int timePoint, final int level, final StringBuilder sb )
+    {
+        final Parts parts = level == 0 ? fullResolution : downsampled;
+        final int numSlots = parts.slotKinds.length;
+        for ( int i = 0; i < numSlots; ++i ) {
+            sb.append( parts.literals[ i ] );
+            sb.append( parts.slotPrefixes[ i ] );
+            appendPadded( sb, parts.slotKinds[ i ] == TIME ? timePoint : level, parts.slotWidths[ i ] );
+        }
+        sb.append( parts.literals[ numSlots ] );
+    }
+
+    /**
+     * Appends value to sb, left-padded with zeros to width digits,
+     * equivalent to String.format("%0[width]d", value).
+     */
+    static void appendPadded( final StringBuilder sb, final int value, final int width )
+    {
+        if ( value < 0 ) {
+            sb.append( width > 0 ? String.format( "%0" + width + "d", value ) : Integer.toString( value ) );
+            return;
+        }
+        int numDigits = 1;
+        for ( int v = value; v >= 10; v /= 10 ) {
+            ++numDigits;
+        }
+        for ( int i = numDigits; i < width; ++i ) {
+            sb.append( '0' );
+        }
+        sb.append( value );
+    }
+
+    /**
+     * Literal segments interleaved with number slots:
+     * literals[0] slot[0] literals[1] ... slot[n-1] literals[n].
+     */
+    private static final class Parts
+    {
+        final String[] literals;
+        final int[] slotKinds;
+        final String[] slotPrefixes;
+        final int[] slotWidths;
+
+        Parts( final String literal )
+        {
+            this( new String[]{ literal }, new int[ 0 ], new String[ 0 ], new int[ 0 ] );
+        }
+
+        Parts( final String[] literals, final int[] slotKinds, final String[] slotPrefixes, final int[] slotWidths )
+        {
+            this.literals = literals;
+            this.slotKinds = slotKinds;
+            this.slotPrefixes = slotPrefixes;
+            this.slotWidths = slotWidths;
+        }
+
+        /**
+         * Replaces every occurrence of match in the literal segments by
+         * a new slot.
+         */
+        Parts split( final String match, final int kind, final String prefix, final int width )
+        {
+            final List< String > newLiterals = new ArrayList< String >();
+            final List< int[] > newSlots = new ArrayList< int[] >();
+            final List< String > newPrefixes = new ArrayList< String >();
+            for ( int i = 0; i < literals.length; ++i ) {
+                final String literal = literals[ i ];
+                int start = 0;
+                for ( int pos = literal.indexOf( match ); pos >= 0 && !match.isEmpty(); pos = literal.indexOf( match, start ) ) {
+                    newLiterals.add( literal.substring( start, pos ) );
+                    newSlots.add( new int[]{ kind, width } );
+                    newPrefixes.add( prefix );
+                    start = pos + match.length();
+                }
+                newLiterals.add( literal.substring( start ) );
+                if ( i < slotKinds.length ) {
+                    newSlots.add( new int[]{ slotKinds[ i ], slotWidths[ i ] } );
+                    newPrefixes.add( slotPrefixes[ i ] );
+                }
+            }
+            return create( newLiterals, newSlots, newPrefixes );
+        }
+
+        /**
+         * Appends a slot and a trailing literal.
+         */
+        Parts append( final int kind, final String prefix, final int width, final String suffix )
+        {
+            final List< String > newLiterals = new ArrayList< String >();
+            final List< int[] > newSlots = new ArrayList< int[] >();
+            final List< String > newPrefixes = new ArrayList< String >();
+            for ( int i = 0; i < slotKinds.length; ++i ) {
+                newLiterals.add( literals[ i ] );
+                newSlots.add( new int[]{ slotKinds[ i ], slotWidths[ i ] } );
+                newPrefixes.add( slotPrefixes[ i ] );
+            }
+            newLiterals.add( literals[ literals.length - 1 ] );
+            newSlots.add( new int[]{ kind, width } );
+            newPrefixes.add( prefix );
+            newLiterals.add( suffix );
+            return create( newLiterals, newSlots, newPrefixes );
+        }
+
+        private static Parts create( final List< String > literals, final List< int[] > slots, final List< String > prefixes )
+        {
+            final int[] kinds = new int[ slots.size() ];
+            final int[] widths = new int[ slots.size() ];
+            for ( int i = 0; i < kinds.length; ++i ) {
+                kinds[ i ] = slots.get( i )[ 0 ];
+                widths[ i ] = slots.get( i )[ 1 ];
+            }
+            return new Parts(
+                    literals.toArray( new String[ literals.size() ] ),
+                    kinds,
+                    prefixes.toArray( new String[ prefixes.size() ] ),
+                    widths );
+        }
+    }
+}
@@ -0,0 +1,417 @@
+package org.janelia.simview.klb.bdv;
+
+import net.imglib2.Cursor;
+import net.imglib2.IterableInterval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.AbstractCell;
+import net.imglib2.img.cell.CellImg;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import org.janelia.simview.klb.KLB;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Parallel conversion of images to float and normalization to 0...1,
+ * used by {@link KlbImgLoader.KlbSetupImgLoader#getFloatImage}.
+ * <p>
+ * Images are split into chunks of their flat iteration order that run
+ * on a shared executor. Conversion computes min and max in the same
+ * pass, so that normalizing takes only one more pass. Array backed
+ * images (uint8, uint16, float32) are processed with primitive loops.
+ * <p>
+ * Completely loaded images are best read with {@link #read}, which
+ * decodes KLB files straight into float arrays.
+ */
+class KlbFloatConverter
+{
+    private final ExecutorService executor;
+    private final int numTasks;
+
+    /**
+     * @param executor executor shared by all conversions
+     * @param numTasks number of chunks images are split into
+     */
+    KlbFloatConverter( final ExecutorService executor, final int numTasks )
+    {
+        this.executor = executor;
+        this.numTasks = Math.max( 1, numTasks );
+    }
+
+    /**
+     * Copies input into output, which has the same dimensions, and
+     * returns { min, max } of the converted values.
+     */
+    < T extends RealType< T > > float[] convert( final RandomAccessibleInterval< T > input, final Img< FloatType > output )
+            throws InterruptedException
+    {
+        final Object in = input instanceof Img ? KlbArrayWriter.getStorageArray( ( Img< ? > ) input ) : null;
+        final Object out = KlbArrayWriter.getStorageArray( output );
+        final boolean sameOrder = Views.iterable( input ).iterationOrder().equals( output.iterationOrder() );
+        final long size = output.size();
+        final List< Callable< float[] > > tasks = new ArrayList< Callable< float[] > >();
+        for ( int i = 0; i < numTasks; ++i ) {
+            final long from = size * i / numTasks;
+            final long to = size * (i + 1) / numTasks;
+            tasks.add( new Callable< float[] >()
+            {
+                @Override
+                public float[] call()
+                {
+                    if ( in != null && out instanceof float[] ) {
+                        return convert( in, ( int ) from, ( float[] ) out, ( int ) from, ( int ) (to - from) );
+                    }
+                    float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+                    if ( sameOrder ) {
+                        final Cursor< T > c = Views.iterable( input ).cursor();
+                        final Cursor< FloatType > o = output.cursor();
+                        c.jumpFwd( from );
+                        o.jumpFwd( from );
+                        for ( long j = from; j < to; ++j ) {
+                            final float f = c.next().getRealFloat();
+                            o.next().set( f );
+                            if ( f > max ) {
+                                max = f;
+                            }
+                            if ( f < min ) {
+                                min = f;
+                            }
+                        }
+                    } else {
+                        final Cursor< T > c = Views.iterable( input ).localizingCursor();
+                        final RandomAccess< FloatType > o = output.randomAccess();
+                        c.jumpFwd( from );
+                        for ( long j = from; j < to; ++j ) {
+                            final float f = c.next().getRealFloat();
+                            o.setPosition( c );
+                            o.get().set( f );
+                            if ( f > max ) {
+                                max = f;
+                            }
+                            if ( f < min ) {
+                                min = f;
+                            }
+                        }
+                    }
+                    return new float[]{ min, max };
+                }
+            } );
+        }
+        return reduce( runAll( executor, tasks ) );
+    }
+
+    /**
+     * Converts length values of src (byte[], short[] or float[]) from
+     * srcOffset on into dst from dstOffset on, returns { min, max }.
+     */
+    private static float[] convert( final Object src, final int srcOffset, final float[] dst, final int dstOffset, final int length )
+    {
+        if ( src instanceof byte[] ) {
+            final byte[] a = ( byte[] ) src;
+            int lo = 255, hi = 0;
+            for ( int i = 0; i < length; ++i ) {
+                final int v = a[ srcOffset + i ] & 0xff;
+                dst[ dstOffset + i ] = v;
+                lo = Math.min( lo, v );
+                hi = Math.max( hi, v );
+            }
+            return length == 0 ? new float[]{ Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY } : new float[]{ lo, hi };
+        } else if ( src instanceof short[] ) {
+            final short[] a = ( short[] ) src;
+            int lo = 65535, hi = 0;
+            for ( int i = 0; i < length; ++i ) {
+                final int v = a[ srcOffset + i ] & 0xffff;
+                dst[ dstOffset + i ] = v;
+                lo = Math.min( lo, v );
+                hi = Math.max( hi, v );
+            }
+            return length == 0 ? new float[]{ Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY } : new float[]{ lo, hi };
+        } else if ( src instanceof float[] ) {
+            if ( src != dst || srcOffset != dstOffset ) {
+                System.arraycopy( src, srcOffset, dst, dstOffset, length );
+            }
+            return minMax( dst, dstOffset, dstOffset + length );
+        }
+        throw new IllegalArgumentException( "Unknown or unsupported data type." );
+    }
+
+    /**
+     * Converts length values of src from srcOffset on into dst from
+     * dstOffset on in parallel chunks, returns { min, max }.
+     */
+    private float[] convertParallel( final Object src, final int srcOffset, final float[] dst, final int dstOffset, final int length )
+            throws InterruptedException
+    {
+        final List< Callable< float[] > > tasks = new ArrayList< Callable< float[] > >();
+        for ( int i = 0; i < numTasks; ++i ) {
+            final int from = ( int ) (( long ) length * i / numTasks);
+            final int to = ( int ) (( long ) length * (i + 1) / numTasks);
+            tasks.add( new Callable< float[] >()
+            {
+                @Override
+                public float[] call()
+                {
+                    return convert( src, srcOffset + from, dst, dstOffset + from, to - from );
+                }
+            } );
+        }
+        return reduce( runAll( executor, tasks ) );
+    }
+
+    /**
+     * Reads a KLB file straight into a float image, without cursors.
+     * float32 data is decoded into the backing arrays. uint8 and uint16
+     * data is decoded slab by slab into a reused buffer and converted
+     * in parallel primitive loops. Images of more than 2^31 - 1 voxels
+     * become CellImgs of z-slabs, each decoded into its own cell.
+     *
+     * @param klb       KLB instance, confined to the calling thread
+     * @param dims      image dimensions (x, y, z)
+     * @param blockDims KLB block dimensions, slabs are multiples of the block depth
+     * @param type      pixel type of the file
+     * @param minMax    receives { min, max } of the image
+     */
+    Img< FloatType > read( final KLB klb, final String filePath, final long[] dims, final int[] blockDims, final NativeType< ? > type, final float[] minMax )
+            throws IOException, InterruptedException
+    {
+        final long planeSize = dims[ 0 ] * dims[ 1 ];
+        if ( planeSize > Integer.MAX_VALUE ) {
+            throw new IllegalArgumentException( "Planes must be smaller than 2^31 voxels" );
+        }
+        // slabs of ~64 MB of source data, a multiple of the KLB block depth
+        final int blockDepth = Math.max( 1, blockDims[ 2 ] );
+        final long bytesPerPixel = Math.max( 1, type.getBitsPerPixel() / 8 );
+        final int slab = ( int ) Math.min( dims[ 2 ], Math.max( 1, (64L << 20) / (planeSize * bytesPerPixel * blockDepth) ) * blockDepth );
+
+        minMax[ 0 ] = Float.POSITIVE_INFINITY;
+        minMax[ 1 ] = Float.NEGATIVE_INFINITY;
+        if ( planeSize * dims[ 2 ] <= Integer.MAX_VALUE ) {
+            final float[] data = new float[ ( int ) (planeSize * dims[ 2 ]) ];
+            if ( type instanceof FloatType ) {
+                readSlab( klb, filePath, dims, 0, ( int ) dims[ 2 ], data );
+                accumulate( minMax, convertParallel( data, 0, data, 0, data.length ) );
+            } else {
+                Object buffer = null;
+                for ( int z0 = 0; z0 < dims[ 2 ]; z0 += slab ) {
+                    final int n = ( int ) Math.min( slab, dims[ 2 ] - z0 );
+                    if ( buffer == null || n != slab ) {
+                        buffer = createBuffer( type, ( int ) (n * planeSize) );
+                    }
+                    readSlab( klb, filePath, dims, z0, n, buffer );
+                    accumulate( minMax, convertParallel( buffer, 0, data, ( int ) (z0 * planeSize), ( int ) (n * planeSize) ) );
+                }
+            }
+            return ArrayImgs.floats( data, dims[ 0 ], dims[ 1 ], dims[ 2 ] );
+        }
+
+        final int cellDepth = ( int ) Math.min( slab, Integer.MAX_VALUE / planeSize );
+        final CellImg< FloatType, ?, ? > img = new CellImgFactory< FloatType >( ( int ) dims[ 0 ], ( int ) dims[ 1 ], cellDepth ).create( dims, new FloatType() );
+        final Cursor< ? extends AbstractCell< ? > > cells = img.getCells().cursor();
+        final long[] cellMin = new long[ 3 ];
+        final int[] cellDims = new int[ 3 ];
+        Object buffer = null;
+        while ( cells.hasNext() ) {
+            final AbstractCell< ? > cell = cells.next();
+            cell.min( cellMin );
+            cell.dimensions( cellDims );
+            final float[] data = ( float[] ) (( ArrayDataAccess< ? > ) cell.getData()).getCurrentStorageArray();
+            final int z0 = ( int ) cellMin[ 2 ], n = cellDims[ 2 ];
+            if ( type instanceof FloatType ) {
+                readSlab( klb, filePath, dims, z0, n, data );
+                accumulate( minMax, convertParallel( data, 0, data, 0, data.length ) );
+            } else {
+                if ( buffer == null || n != cellDepth ) {
+                    buffer = createBuffer( type, ( int ) (n * planeSize) );
+                }
+                readSlab( klb, filePath, dims, z0, n, buffer );
+                accumulate( minMax, convertParallel( buffer, 0, data, 0, ( int ) (n * planeSize) ) );
+            }
+        }
+        return img;
+    }
+
+    private static Object createBuffer( final NativeType< ? > type, final int numElements )
+    {
+        if ( type instanceof UnsignedByteType ) {
+            return new byte[ numElements ];
+        } else if ( type instanceof UnsignedShortType ) {
+            return new short[ numElements ];
+        }
+        throw new IllegalArgumentException( "Unknown or unsupported data type." );
+    }
+
+    private static void readSlab( final KLB klb, final String filePath, final long[] dims, final int z0, final int n, final Object buffer )
+            throws IOException
+    {
+        final long[] min = { 0, 0, z0, 0, 0 };
+        final long[] max = { dims[ 0 ] - 1, dims[ 1 ] - 1, z0 + n - 1, 0, 0 };
+        if ( buffer instanceof byte[] ) {
+            klb.readROIinPlace( filePath, min, max, ( byte[] ) buffer );
+        } else if ( buffer instanceof short[] ) {
+            klb.readROIinPlace( filePath, min, max, ( short[] ) buffer );
+        } else {
+            klb.readROIinPlace( filePath, min, max, ( float[] ) buffer );
+        }
+    }
+
+    private static void accumulate( final float[] minMax, final float[] m )
+    {
+        minMax[ 0 ] = Math.min( minMax[ 0 ], m[ 0 ] );
+        minMax[ 1 ] = Math.max( minMax[ 1 ], m[ 1 ] );
+    }
+
+    /**
+     * Returns { min, max } of img.
+     */
+    float[] minMax( final IterableInterval< FloatType > img )
+            throws InterruptedException
+    {
+        final Object array = img instanceof Img ? KlbArrayWriter.getStorageArray( ( Img< ? > ) img ) : null;
+        final long size = img.size();
+        final List< Callable< float[] > > tasks = new ArrayList< Callable< float[] > >();
+        for ( int i = 0; i < numTasks; ++i ) {
+            final long from = size * i / numTasks;
+            final long to = size * (i + 1) / numTasks;
+            tasks.add( new Callable< float[] >()
+            {
+                @Override
+                public float[] call()
+                {
+                    if ( array instanceof float[] ) {
+                        return minMax( ( float[] ) array, ( int ) from, ( int ) to );
+                    }
+                    float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+                    final Cursor< FloatType > c = img.cursor();
+                    c.jumpFwd( from );
+                    for ( long j = from; j < to; ++j ) {
+                        final float f = c.next().get();
+                        if ( f > max ) {
+                            max = f;
+                        }
+                        if ( f < min ) {
+                            min = f;
+                        }
+                    }
+                    return new float[]{ min, max };
+                }
+            } );
+        }
+        return reduce( runAll( executor, tasks ) );
+    }
+
+    private static float[] minMax( final float[] a, final int from, final int to )
+    {
+        float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+        for ( int i = from; i < to; ++i ) {
+            final float f = a[ i ];
+            if ( f > max ) {
+                max = f;
+            }
+            if ( f < min ) {
+                min = f;
+            }
+        }
+        return new float[]{ min, max };
+    }
+
+    /**
+     * Maps img in place from [ min, max ] to [ 0, 1 ].
+     */
+    void normalize( final IterableInterval< FloatType > img, final float min, final float max )
+            throws InterruptedException
+    {
+        final float scale = ( float ) (1.0 / (max - min));
+        final Object array = img instanceof Img ? KlbArrayWriter.getStorageArray( ( Img< ? > ) img ) : null;
+        final long size = img.size();
+        final List< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+        for ( int i = 0; i < numTasks; ++i ) {
+            final long from = size * i / numTasks;
+            final long to = size * (i + 1) / numTasks;
+            tasks.add( new Callable< Void >()
+            {
+                @Override
+                public Void call()
+                {
+                    if ( array instanceof float[] ) {
+                        final float[] a = ( float[] ) array;
+                        for ( int j = ( int ) from; j < to; ++j ) {
+                            a[ j ] = (a[ j ] - min) * scale;
+                        }
+                    } else {
+                        final Cursor< FloatType > c = img.cursor();
+                        c.jumpFwd( from );
+                        for ( long j = from; j < to; ++j ) {
+                            final FloatType t = c.next();
+                            t.set( (t.get() - min) * scale );
+                        }
+                    }
+                    return null;
+                }
+            } );
+        }
+        runAll( executor, tasks );
+    }
+
+    private static float[] reduce( final List< float[] > minMax )
+    {
+        final float[] result = { Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY };
+        for ( final float[] m : minMax ) {
+            result[ 0 ] = Math.min( result[ 0 ], m[ 0 ] );
+            result[ 1 ] = Math.max( result[ 1 ], m[ 1 ] );
+        }
+        return result;
+    }
+
+    /**
+     * Runs tasks on executor and returns their results. The calling
+     * thread runs every task that no worker has started yet, so that
+     * calls from within tasks of the same executor cannot deadlock and
+     * a busy executor does not stall the caller. If interrupted, tasks
+     * not started yet are cancelled.
+     */
+    static < R > List< R > runAll( final ExecutorService executor, final List< Callable< R > > tasks )
+            throws InterruptedException
+    {
+        final List< FutureTask< R > > futures = new ArrayList< FutureTask< R > >( tasks.size() );
+        for ( final Callable< R > task : tasks ) {
+            final FutureTask< R > future = new FutureTask< R >( task );
+            futures.add( future );
+            executor.execute( future );
+        }
+        try {
+            for ( final FutureTask< R > future : futures ) {
+                if ( Thread.interrupted() ) {
+                    throw new InterruptedException();
+                }
+                // no-op if a worker started it already
+                future.run();
+            }
+            final List< R > results = new ArrayList< R >( futures.size() );
+            for ( final FutureTask< R > future : futures ) {
+                results.add( future.get() );
+            }
+            return results;
+        } catch ( ExecutionException e ) {
+            throw new RuntimeException( e.getCause() );
+        } finally {
+            for ( final FutureTask< R > future : futures ) {
+                future.cancel( false );
+            }
+        }
+    }
+}
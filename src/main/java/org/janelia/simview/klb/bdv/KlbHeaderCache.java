@@ -0,0 +1,96 @@
+package org.janelia.simview.klb.bdv;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded, thread-safe LRU cache of KLB file headers, keyed by
+ * time point, ViewSetup index and resolution level.
+ * <p>
+ * Lookups and insertions only hold the lock for the map operation,
+ * headers are read from disk by the caller without holding it.
+ */
+class KlbHeaderCache
+{
+    private final LinkedHashMap< Key, KlbFileHeader > map;
+    private int capacity;
+
+    KlbHeaderCache( final int capacity )
+    {
+        this.capacity = capacity;
+        map = new LinkedHashMap< Key, KlbFileHeader >( 16, 0.75f, true )
+        {
+            @Override
+            protected boolean removeEldestEntry( final Map.Entry< Key, KlbFileHeader > eldest )
+            {
+                return size() > KlbHeaderCache.this.capacity;
+            }
+        };
+    }
+
+    synchronized KlbFileHeader get( final int timePoint, final int viewSetup, final int level )
+    {
+        return map.get( new Key( timePoint, viewSetup, level ) );
+    }
+
+    synchronized void put( final int timePoint, final int viewSetup, final int level, final KlbFileHeader header )
+    {
+        map.put( new Key( timePoint, viewSetup, level ), header );
+    }
+
+    synchronized void remove( final int timePoint, final int viewSetup, final int level )
+    {
+        map.remove( new Key( timePoint, viewSetup, level ) );
+    }
+
+    synchronized void clear()
+    {
+        map.clear();
+    }
+
+    synchronized int size()
+    {
+        return map.size();
+    }
+
+    synchronized int getCapacity()
+    {
+        return capacity;
+    }
+
+    synchronized void setCapacity( final int capacity )
+    {
+        this.capacity = capacity;
+        while ( map.size() > capacity ) {
+            map.remove( map.keySet().iterator().next() );
+        }
+    }
+
+    private static final class Key
+    {
+        private final int timePoint, viewSetup, level;
+
+        Key( final int timePoint, final int viewSetup, final int level )
+        {
+            this.timePoint = timePoint;
+            this.viewSetup = viewSetup;
+            this.level = level;
+        }
+
+        @Override
+        public boolean equals( final Object o )
+        {
+            if ( !(o instanceof Key) ) {
+                return false;
+            }
+            final Key k = ( Key ) o;
+            return k.timePoint == timePoint && k.viewSetup == viewSetup && k.level == level;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (timePoint * 31 + viewSetup) * 31 + level;
+        }
+    }
+}
@@ -0,0 +1,701 @@
+package org.janelia.simview.klb.bdv;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.RealType;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Aggregate statistics of the full resolution image of one time point
+ * and ViewSetup, computed by {@link KlbDownsampler} while it generates
+ * the resolution levels and stored in a small sidecar file next to the
+ * image (see {@link #getFile}).
+ * <p>
+ * Holds the min, max, mean and a histogram of the volume, the min, max
+ * and mean of every block of a coarse grid, and optionally the maximum
+ * intensity projections along x, y and z. Display ranges, percentiles
+ * and thumbnails can thus be obtained without reading voxels.
+ * <p>
+ * The histogram has at most {@value #NUM_BINS} bins of width 2^n. Bins
+ * of integer images start at width 1 and are exact as long as the
+ * values span fewer than {@value #NUM_BINS} levels. Non-finite values
+ * are ignored.
+ */
+public class KlbImageStatistics
+{
+    public static final String FILE_SUFFIX = ".stats";
+    public static final int NUM_BINS = 4096;
+    public static final int[] DEFAULT_BLOCK_SIZE = { 64, 64, 64 };
+
+    private static final long MAGIC = 0x4b4c425354415431L; // "KLBSTAT1"
+    private static final int FLOAT_BIN_EXPONENT = -24;
+
+    private final long[] dimensions;
+    private final long sourceLastModified;
+    private final long count;
+    private final double min, max, sum;
+    private final int binExponent;
+    private final double firstBin;
+    private final long[] histogram;
+    private final int[] blockSize;
+    private final int[] numBlocks;
+    private final float[] blockMin, blockMax, blockMean;
+    private final float[][] projections;
+
+    private KlbImageStatistics( final long[] dimensions, final long sourceLastModified, final long count, final double min, final double max, final double sum,
+            final int binExponent, final double firstBin, final long[] histogram,
+            final int[] blockSize, final float[] blockMin, final float[] blockMax, final float[] blockMean, final float[][] projections )
+    {
+        this.dimensions = dimensions;
+        this.sourceLastModified = sourceLastModified;
+        this.count = count;
+        this.min = min;
+        this.max = max;
+        this.sum = sum;
+        this.binExponent = binExponent;
+        this.firstBin = firstBin;
+        this.histogram = histogram;
+        this.blockSize = blockSize;
+        this.numBlocks = new int[ 3 ];
+        for ( int d = 0; d < 3; ++d ) {
+            numBlocks[ d ] = ( int ) ((dimensions[ d ] + blockSize[ d ] - 1) / blockSize[ d ]);
+        }
+        this.blockMin = blockMin;
+        this.blockMax = blockMax;
+        this.blockMean = blockMean;
+        this.projections = projections;
+    }
+
+    /**
+     * Returns the sidecar file of the image at imagePath.
+     */
+    public static File getFile( final String imagePath )
+    {
+        return new File( imagePath + FILE_SUFFIX );
+    }
+
+    public long[] getDimensions()
+    {
+        return dimensions.clone();
+    }
+
+    /**
+     * Returns the modification time of the image when the statistics
+     * were computed.
+     */
+    public long getSourceLastModified()
+    {
+        return sourceLastModified;
+    }
+
+    /**
+     * Returns the number of finite voxels.
+     */
+    public long getCount()
+    {
+        return count;
+    }
+
+    public double getMin()
+    {
+        return min;
+    }
+
+    public double getMax()
+    {
+        return max;
+    }
+
+    public double getMean()
+    {
+        return count == 0 ? Double.NaN : sum / count;
+    }
+
+    /**
+     * Returns the voxel counts of the histogram bins, bin i covering
+     * [ getHistogramMin() + i * getHistogramBinWidth(), getHistogramMin() + (i + 1) * getHistogramBinWidth() ).
+     */
+    public long[] getHistogram()
+    {
+        return histogram.clone();
+    }
+
+    public double getHistogramMin()
+    {
+        return Math.scalb( firstBin, binExponent );
+    }
+
+    public double getHistogramBinWidth()
+    {
+        return Math.scalb( 1.0, binExponent );
+    }
+
+    /**
+     * Returns the value below which the fraction p of voxels falls,
+     * interpolated linearly within histogram bins, e.g. p = 0.001 and
+     * p = 0.999 for a display range that ignores outliers.
+     */
+    public double getPercentile( final double p )
+    {
+        if ( count == 0 ) {
+            return Double.NaN;
+        }
+        final double target = Math.max( 0, Math.min( 1, p ) ) * count;
+        final double width = getHistogramBinWidth();
+        long cumulative = 0;
+        for ( int i = 0; i < histogram.length; ++i ) {
+            if ( histogram[ i ] > 0 && cumulative + histogram[ i ] >= target ) {
+                final double value = getHistogramMin() + (i + (target - cumulative) / histogram[ i ]) * width;
+                return Math.max( min, Math.min( max, value ) );
+            }
+            cumulative += histogram[ i ];
+        }
+        return max;
+    }
+
+    public int[] getBlockSize()
+    {
+        return blockSize.clone();
+    }
+
+    public int[] getNumBlocks()
+    {
+        return numBlocks.clone();
+    }
+
+    /**
+     * Returns the index of block (bx, by, bz) into the block arrays.
+     */
+    public int getBlockIndex( final int bx, final int by, final int bz )
+    {
+        return bx + numBlocks[ 0 ] * (by + numBlocks[ 1 ] * bz);
+    }
+
+    /**
+     * Returns the minimum of every block, NaN for blocks without finite
+     * voxels. The array must not be modified.
+     */
+    public float[] getBlockMin()
+    {
+        return blockMin;
+    }
+
+    /**
+     * Returns the maximum of every block. The array must not be modified.
+     */
+    public float[] getBlockMax()
+    {
+        return blockMax;
+    }
+
+    /**
+     * Returns the mean of every block. The array must not be modified.
+     */
+    public float[] getBlockMean()
+    {
+        return blockMean;
+    }
+
+    /**
+     * Returns the min and max of the blocks overlapping the interval
+     * [ min, max ] of the image, a conservative range of its voxels.
+     */
+    public double[] getRange( final long[] min, final long[] max )
+    {
+        final int[] b0 = new int[ 3 ], b1 = new int[ 3 ];
+        for ( int d = 0; d < 3; ++d ) {
+            b0[ d ] = ( int ) Math.max( 0, Math.min( numBlocks[ d ] - 1, min[ d ] / blockSize[ d ] ) );
+            b1[ d ] = ( int ) Math.max( 0, Math.min( numBlocks[ d ] - 1, max[ d ] / blockSize[ d ] ) );
+        }
+        double lo = Double.POSITIVE_INFINITY, hi = Double.NEGATIVE_INFINITY;
+        for ( int bz = b0[ 2 ]; bz <= b1[ 2 ]; ++bz ) {
+            for ( int by = b0[ 1 ]; by <= b1[ 1 ]; ++by ) {
+                for ( int bx = b0[ 0 ]; bx <= b1[ 0 ]; ++bx ) {
+                    final int i = getBlockIndex( bx, by, bz );
+                    if ( !Float.isNaN( blockMin[ i ] ) ) {
+                        lo = Math.min( lo, blockMin[ i ] );
+                        hi = Math.max( hi, blockMax[ i ] );
+                    }
+                }
+            }
+        }
+        return lo > hi ? new double[]{ Double.NaN, Double.NaN } : new double[]{ lo, hi };
+    }
+
+    public boolean hasProjections()
+    {
+        return projections != null;
+    }
+
+    /**
+     * Returns the maximum intensity projection along axis (0 = x, 1 = y,
+     * 2 = z) as a flat 2D image over the remaining two axes, the lower
+     * one varying fastest, or null if projections were not computed.
+     * The array must not be modified.
+     */
+    public float[] getProjection( final int axis )
+    {
+        return projections == null ? null : projections[ axis ];
+    }
+
+    /**
+     * Reads statistics from a sidecar file written by {@link #write}.
+     *
+     * @throws IOException if the file cannot be read or is not a statistics sidecar
+     */
+    public static KlbImageStatistics read( final File file ) throws IOException
+    {
+        final DataInputStream in = new DataInputStream( new BufferedInputStream( new GZIPInputStream( new FileInputStream( file ), 1 << 16 ) ) );
+        try {
+            if ( in.readLong() != MAGIC ) {
+                throw new IOException( "Not a KLB statistics file: " + file );
+            }
+            final long[] dimensions = new long[ 3 ];
+            for ( int d = 0; d < 3; ++d ) {
+                dimensions[ d ] = in.readLong();
+            }
+            final long sourceLastModified = in.readLong();
+            final long count = in.readLong();
+            final double min = in.readDouble();
+            final double max = in.readDouble();
+            final double sum = in.readDouble();
+            final int binExponent = in.readInt();
+            final double firstBin = in.readDouble();
+            final long[] histogram = new long[ in.readInt() ];
+            for ( int i = 0; i < histogram.length; ++i ) {
+                histogram[ i ] = in.readLong();
+            }
+            final int[] blockSize = new int[ 3 ];
+            for ( int d = 0; d < 3; ++d ) {
+                blockSize[ d ] = in.readInt();
+            }
+            final int numBlocks = in.readInt();
+            final float[] blockMin = readFloats( in, numBlocks );
+            final float[] blockMax = readFloats( in, numBlocks );
+            final float[] blockMean = readFloats( in, numBlocks );
+            float[][] projections = null;
+            if ( in.readBoolean() ) {
+                projections = new float[][]{
+                        readFloats( in, ( int ) (dimensions[ 1 ] * dimensions[ 2 ]) ),
+                        readFloats( in, ( int ) (dimensions[ 0 ] * dimensions[ 2 ]) ),
+                        readFloats( in, ( int ) (dimensions[ 0 ] * dimensions[ 1 ]) ) };
+            }
+            return new KlbImageStatistics( dimensions, sourceLastModified, count, min, max, sum,
+                    binExponent, firstBin, histogram, blockSize, blockMin, blockMax, blockMean, projections );
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the statistics to a gzip compressed sidecar file, replacing
+     * it atomically.
+     */
+    public void write( final File file ) throws IOException
+    {
+        final File tmp = new File( file.getPath() + ".tmp" );
+        final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new GZIPOutputStream( new FileOutputStream( tmp ), 1 << 16 ) ) );
+        try {
+            out.writeLong( MAGIC );
+            for ( int d = 0; d < 3; ++d ) {
+                out.writeLong( dimensions[ d ] );
+            }
+            out.writeLong( sourceLastModified );
+            out.writeLong( count );
+            out.writeDouble( min );
+            out.writeDouble( max );
+            out.writeDouble( sum );
+            out.writeInt( binExponent );
+            out.writeDouble( firstBin );
+            out.writeInt( histogram.length );
+            for ( final long c : histogram ) {
+                out.writeLong( c );
+            }
+            for ( int d = 0; d < 3; ++d ) {
+                out.writeInt( blockSize[ d ] );
+            }
+            out.writeInt( blockMin.length );
+            writeFloats( out, blockMin );
+            writeFloats( out, blockMax );
+            writeFloats( out, blockMean );
+            out.writeBoolean( projections != null );
+            if ( projections != null ) {
+                for ( final float[] projection : projections ) {
+                    writeFloats( out, projection );
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if ( !tmp.renameTo( file ) ) {
+            file.delete();
+            if ( !tmp.renameTo( file ) ) {
+                throw new IOException( "Cannot write " + file );
+            }
+        }
+    }
+
+    private static float[] readFloats( final DataInputStream in, final int n ) throws IOException
+    {
+        final float[] values = new float[ n ];
+        for ( int i = 0; i < n; ++i ) {
+            values[ i ] = in.readFloat();
+        }
+        return values;
+    }
+
+    private static void writeFloats( final DataOutputStream out, final float[] values ) throws IOException
+    {
+        for ( final float v : values ) {
+            out.writeFloat( v );
+        }
+    }
+
+    /**
+     * Estimates the heap usage of {@link #compute} in bytes.
+     */
+    static long estimateMemory( final long[] dims, final int[] blockSize, final boolean projections, final int numTasks )
+    {
+        long numBlocks = 1;
+        for ( int d = 0; d < 3; ++d ) {
+            numBlocks *= (dims[ d ] + blockSize[ d ] - 1) / blockSize[ d ];
+        }
+        long bytes = numTasks * (8L * NUM_BINS + 8 * dims[ 0 ] * dims[ 1 ]) + 2 * 32 * numBlocks;
+        if ( projections ) {
+            bytes += 2 * 4 * (dims[ 1 ] * dims[ 2 ] + dims[ 0 ] * dims[ 2 ]) + (numTasks + 1) * 4 * dims[ 0 ] * dims[ 1 ];
+        }
+        return bytes;
+    }
+
+    /**
+     * Computes the statistics of a 3D image in memory, splitting it into
+     * block aligned slabs that are processed in parallel on executor.
+     * Array backed uint8, uint16 and float32 images are read directly,
+     * others through a RandomAccess.
+     */
+    static KlbImageStatistics compute( final RandomAccessibleInterval< ? extends RealType< ? > > image, final long sourceLastModified,
+            final int[] blockSize, final boolean projections, final boolean integral, final ExecutorService executor, final int numTasks )
+            throws InterruptedException
+    {
+        final long[] dims = { image.dimension( 0 ), image.dimension( 1 ), image.dimension( 2 ) };
+        final Object array = image instanceof Img ? KlbArrayWriter.getStorageArray( ( Img< ? > ) image ) : null;
+        final int numSlabs = ( int ) ((dims[ 2 ] + blockSize[ 2 ] - 1) / blockSize[ 2 ]);
+        final int n = Math.max( 1, Math.min( numTasks, numSlabs ) );
+        final List< Callable< Accumulator > > tasks = new ArrayList< Callable< Accumulator > >();
+        for ( int i = 0; i < n; ++i ) {
+            final int z0 = ( int ) Math.min( dims[ 2 ], ( long ) numSlabs * i / n * blockSize[ 2 ] );
+            final int z1 = ( int ) Math.min( dims[ 2 ], ( long ) numSlabs * (i + 1) / n * blockSize[ 2 ] );
+            tasks.add( new Callable< Accumulator >()
+            {
+                @Override
+                public Accumulator call()
+                {
+                    final Accumulator accumulator = new Accumulator( dims, blockSize, projections, integral, z0, z1 );
+                    final double[] plane = new double[ ( int ) (dims[ 0 ] * dims[ 1 ]) ];
+                    final RandomAccess< ? extends RealType< ? > > access = array == null ? image.randomAccess() : null;
+                    for ( int z = z0; z < z1; ++z ) {
+                        if ( array != null ) {
+                            toDouble( array, ( long ) z * plane.length, plane );
+                        } else {
+                            access.setPosition( z, 2 );
+                            int i = 0;
+                            for ( int y = 0; y < dims[ 1 ]; ++y ) {
+                                access.setPosition( y, 1 );
+                                access.setPosition( 0, 0 );
+                                for ( int x = 0; x < dims[ 0 ]; ++x, ++i ) {
+                                    plane[ i ] = access.get().getRealDouble();
+                                    access.fwd( 0 );
+                                }
+                            }
+                        }
+                        accumulator.addPlane( plane, z );
+                    }
+                    return accumulator;
+                }
+            } );
+        }
+        final Accumulator all = new Accumulator( dims, blockSize, projections, integral, 0, ( int ) dims[ 2 ] );
+        for ( final Future< Accumulator > future : executor.invokeAll( tasks ) ) {
+            try {
+                all.merge( future.get() );
+            } catch ( ExecutionException e ) {
+                throw new RuntimeException( e.getCause() );
+            }
+        }
+        return all.getStatistics( sourceLastModified );
+    }
+
+    private static void toDouble( final Object src, final long offset, final double[] dst )
+    {
+        final int o = ( int ) offset;
+        if ( src instanceof byte[] ) {
+            final byte[] a = ( byte[] ) src;
+            for ( int i = 0; i < dst.length; ++i ) {
+                dst[ i ] = a[ o + i ] & 0xff;
+            }
+        } else if ( src instanceof short[] ) {
+            final short[] a = ( short[] ) src;
+            for ( int i = 0; i < dst.length; ++i ) {
+                dst[ i ] = a[ o + i ] & 0xffff;
+            }
+        } else {
+            final float[] a = ( float[] ) src;
+            for ( int i = 0; i < dst.length; ++i ) {
+                dst[ i ] = a[ o + i ];
+            }
+        }
+    }
+
+    /**
+     * Accumulates the statistics of the planes z0 <= z < z1 of an image,
+     * pushed in any order. Accumulators of disjoint block aligned slabs
+     * are merged into one covering the whole image.
+     */
+    static final class Accumulator
+    {
+        private final long[] dims;
+        private final int width, height, z0, z1;
+        private final int[] blockSize;
+        private final int nbx, nby, bz0;
+        private final double[] bMin, bMax, bSum;
+        private final long[] bCount;
+        private final float[] projX, projY, projZ;
+        private double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY, sum = 0;
+        private long count = 0;
+
+        // histogram bins [ k * 2^exponent, (k + 1) * 2^exponent ) for firstBin <= k < firstBin + NUM_BINS
+        private int exponent;
+        private double scale, firstBin = 0;
+        private long[] bins = new long[ NUM_BINS ];
+
+        /**
+         * @param dims       image dimensions
+         * @param blockSize  block size of the per-block statistics
+         * @param projection whether to compute maximum intensity projections
+         * @param integral   whether the image has integer values
+         * @param z0         first plane, a multiple of the block depth
+         * @param z1         last plane + 1
+         */
+        Accumulator( final long[] dims, final int[] blockSize, final boolean projection, final boolean integral, final int z0, final int z1 )
+        {
+            this.dims = dims;
+            this.blockSize = blockSize;
+            this.z0 = z0;
+            this.z1 = z1;
+            width = ( int ) dims[ 0 ];
+            height = ( int ) dims[ 1 ];
+            nbx = (width + blockSize[ 0 ] - 1) / blockSize[ 0 ];
+            nby = (height + blockSize[ 1 ] - 1) / blockSize[ 1 ];
+            bz0 = z0 / blockSize[ 2 ];
+            final int nbz = Math.max( 0, (z1 + blockSize[ 2 ] - 1) / blockSize[ 2 ] - bz0 );
+            final int numBlocks = nbx * nby * nbz;
+            bMin = new double[ numBlocks ];
+            bMax = new double[ numBlocks ];
+            bSum = new double[ numBlocks ];
+            bCount = new long[ numBlocks ];
+            Arrays.fill( bMin, Double.POSITIVE_INFINITY );
+            Arrays.fill( bMax, Double.NEGATIVE_INFINITY );
+            if ( projection ) {
+                projX = new float[ height * (z1 - z0) ];
+                projY = new float[ width * (z1 - z0) ];
+                projZ = new float[ width * height ];
+                Arrays.fill( projX, Float.NEGATIVE_INFINITY );
+                Arrays.fill( projY, Float.NEGATIVE_INFINITY );
+                Arrays.fill( projZ, Float.NEGATIVE_INFINITY );
+            } else {
+                projX = projY = projZ = null;
+            }
+            exponent = integral ? 0 : FLOAT_BIN_EXPONENT;
+            scale = Math.scalb( 1.0, -exponent );
+        }
+
+        /**
+         * Adds plane z, width * height values with x varying fastest.
+         */
+        void addPlane( final double[] plane, final int z )
+        {
+            final int bzOffset = (z / blockSize[ 2 ] - bz0) * nby * nbx;
+            final int pz = z - z0;
+            for ( int y = 0, i = 0; y < height; ++y ) {
+                final int byOffset = bzOffset + (y / blockSize[ 1 ]) * nbx;
+                for ( int bx = 0; bx < nbx; ++bx ) {
+                    final int xEnd = Math.min( width, (bx + 1) * blockSize[ 0 ] );
+                    double lo = Double.POSITIVE_INFINITY, hi = Double.NEGATIVE_INFINITY, s = 0;
+                    long c = 0;
+                    for ( int x = bx * blockSize[ 0 ]; x < xEnd; ++x, ++i ) {
+                        final double v = plane[ i ];
+                        if ( Double.isNaN( v ) || Double.isInfinite( v ) ) {
+                            continue;
+                        }
+                        if ( v < lo ) {
+                            lo = v;
+                        }
+                        if ( v > hi ) {
+                            hi = v;
+                        }
+                        s += v;
+                        ++c;
+                        final double k = Math.floor( v * scale );
+                        final double j = k - firstBin;
+                        if ( j >= 0 && j < NUM_BINS ) {
+                            ++bins[ ( int ) j ];
+                        } else {
+                            // fit replaces bins
+                            final double fitted = fit( k, 0 );
+                            ++bins[ ( int ) (fitted - firstBin) ];
+                        }
+                        if ( projZ != null ) {
+                            final float f = ( float ) v;
+                            final int ix = y + pz * height, iy = x + pz * width, iz = x + y * width;
+                            if ( f > projX[ ix ] ) {
+                                projX[ ix ] = f;
+                            }
+                            if ( f > projY[ iy ] ) {
+                                projY[ iy ] = f;
+                            }
+                            if ( f > projZ[ iz ] ) {
+                                projZ[ iz ] = f;
+                            }
+                        }
+                    }
+                    if ( c > 0 ) {
+                        final int b = byOffset + bx;
+                        bMin[ b ] = Math.min( bMin[ b ], lo );
+                        bMax[ b ] = Math.max( bMax[ b ], hi );
+                        bSum[ b ] += s;
+                        bCount[ b ] += c;
+                        min = Math.min( min, lo );
+                        max = Math.max( max, hi );
+                        sum += s;
+                        count += c;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Coarsens the histogram by at least 2^shift and moves its bins so
+         * that they cover the occupied bins and bin k (NaN for none) of
+         * the current width. Returns k in the new bin width.
+         */
+        private double fit( final double k, final int shift )
+        {
+            double lo = Double.NaN, hi = Double.NaN;
+            for ( int j = 0; j < NUM_BINS; ++j ) {
+                if ( bins[ j ] != 0 ) {
+                    if ( Double.isNaN( lo ) ) {
+                        lo = firstBin + j;
+                    }
+                    hi = firstBin + j;
+                }
+            }
+            if ( !Double.isNaN( k ) ) {
+                lo = Double.isNaN( lo ) ? k : Math.min( lo, k );
+                hi = Double.isNaN( hi ) ? k : Math.max( hi, k );
+            }
+            int s = shift;
+            if ( Double.isNaN( lo ) ) {
+                exponent += s;
+                scale = Math.scalb( 1.0, -exponent );
+                return k;
+            }
+            double f = Math.scalb( 1.0, -s );
+            lo = Math.floor( lo * f );
+            hi = Math.floor( hi * f );
+            while ( hi - lo >= NUM_BINS ) {
+                lo = Math.floor( lo / 2 );
+                hi = Math.floor( hi / 2 );
+                ++s;
+            }
+            f = Math.scalb( 1.0, -s );
+            // center the occupied bins, leaving room on both sides
+            final double first = lo - Math.floor( (NUM_BINS - 1 - (hi - lo)) / 2 );
+            final long[] moved = new long[ NUM_BINS ];
+            for ( int j = 0; j < NUM_BINS; ++j ) {
+                if ( bins[ j ] != 0 ) {
+                    moved[ ( int ) (Math.floor( (firstBin + j) * f ) - first) ] += bins[ j ];
+                }
+            }
+            bins = moved;
+            firstBin = first;
+            exponent += s;
+            scale = Math.scalb( 1.0, -exponent );
+            return Math.floor( k * f );
+        }
+
+        /**
+         * Merges the statistics of another accumulator of the same image,
+         * whose planes lie within those of this one.
+         */
+        void merge( final Accumulator other )
+        {
+            min = Math.min( min, other.min );
+            max = Math.max( max, other.max );
+            sum += other.sum;
+            count += other.count;
+
+            if ( other.exponent > exponent ) {
+                fit( Double.NaN, other.exponent - exponent );
+            }
+            for ( int j = 0; j < NUM_BINS; ++j ) {
+                final long c = other.bins[ j ];
+                if ( c != 0 ) {
+                    double k = Math.floor( Math.scalb( other.firstBin + j, other.exponent - exponent ) );
+                    if ( !(k - firstBin >= 0 && k - firstBin < NUM_BINS) ) {
+                        k = fit( k, 0 );
+                    }
+                    bins[ ( int ) (k - firstBin) ] += c;
+                }
+            }
+
+            final int offset = (other.bz0 - bz0) * nby * nbx;
+            for ( int b = 0; b < other.bMin.length; ++b ) {
+                bMin[ offset + b ] = Math.min( bMin[ offset + b ], other.bMin[ b ] );
+                bMax[ offset + b ] = Math.max( bMax[ offset + b ], other.bMax[ b ] );
+                bSum[ offset + b ] += other.bSum[ b ];
+                bCount[ offset + b ] += other.bCount[ b ];
+            }
+
+            if ( projZ != null && other.projZ != null ) {
+                System.arraycopy( other.projX, 0, projX, (other.z0 - z0) * height, other.projX.length );
+                System.arraycopy( other.projY, 0, projY, (other.z0 - z0) * width, other.projY.length );
+                for ( int i = 0; i < projZ.length; ++i ) {
+                    projZ[ i ] = Math.max( projZ[ i ], other.projZ[ i ] );
+                }
+            }
+        }
+
+        KlbImageStatistics getStatistics( final long sourceLastModified )
+        {
+            final float[] blockMin = new float[ bMin.length ], blockMax = new float[ bMin.length ], blockMean = new float[ bMin.length ];
+            for ( int b = 0; b < bMin.length; ++b ) {
+                final boolean empty = bCount[ b ] == 0;
+                blockMin[ b ] = empty ? Float.NaN : ( float ) bMin[ b ];
+                blockMax[ b ] = empty ? Float.NaN : ( float ) bMax[ b ];
+                blockMean[ b ] = empty ? Float.NaN : ( float ) (bSum[ b ] / bCount[ b ]);
+            }
+            return new KlbImageStatistics( dims.clone(), sourceLastModified, count,
+                    count == 0 ? Double.NaN : min, count == 0 ? Double.NaN : max, sum,
+                    exponent, firstBin, bins.clone(), blockSize.clone(), blockMin, blockMax, blockMean,
+                    projZ == null ? null : new float[][]{ projX, projY, projZ } );
+        }
+    }
+}
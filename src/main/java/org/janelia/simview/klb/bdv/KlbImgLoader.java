@@ -27,33 +27,106 @@ import net.imglib2.view.Views;
 import org.janelia.simview.klb.KLB;
 import spim.Threads;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class KlbImgLoader implements ViewerImgLoader, MultiResolutionImgLoader
 {
     private final KlbPartitionResolver resolver;
     private final AbstractSequenceDescription< BasicViewSetup, BasicViewDescription< BasicViewSetup >, KlbImgLoader > seq;
     private final VolatileGlobalCellCache cache;
+    private final KlbTimePrefetcher prefetcher;
+    private final KlbBlockCache blockCache;
+    private final KlbCacheLedger cacheLedger;
+    private final KlbCacheConfig cacheConfig;
+    private volatile KlbCacheConfig datasetCacheConfig;
+    private volatile KlbCacheConfig.Priority cachePriority;
+    private KlbCompressedCellStore compressedCellStore = new KlbCompressedCellStore( 0 );
+    private KlbDiskCellCache diskCellCache = null;
+    private volatile KlbMappedImageStore mappedImageStore = null;
     private final HashMap< Integer, KlbSetupImgLoader > setupImgLoaders = new HashMap< Integer, KlbSetupImgLoader >();
+    private File indexFile = null;
+    private volatile KlbPyramidPlan pyramidPlan = null;
+    private ExecutorService executor = null;
+    private boolean ownExecutor = false;
+    private boolean closed = false;
+    private KlbFloatConverter floatConverter = null;
+    private final Map< Long, KlbImageStatistics > statistics = new LinkedHashMap< Long, KlbImageStatistics >( 16, 0.75f, true )
+    {
+        @Override
+        protected boolean removeEldestEntry( final Map.Entry< Long, KlbImageStatistics > eldest )
+        {
+            return size() > 256;
+        }
+    };
+
+    /**
+     * KLB instances used to load images completely and directly, one per calling thread. Each uses
+     * numCompleteReaderThreads threads to read an image, whereas the KLB instances in the BigDataViewer
+     * use 1 thread each.
+     */
+    private final ThreadLocal< KLB > completeReaders = new ThreadLocal< KLB >()
+    {
+        @Override
+        protected KLB initialValue()
+        {
+            return KLB.newInstance();
+        }
+    };
+    private volatile int numCompleteReaderThreads = Threads.numThreads();
 
     public KlbImgLoader( final KlbPartitionResolver resolver, final AbstractSequenceDescription< ?, ?, ? > seq )
+    {
+        this( resolver, seq, new KlbCacheConfig().applySystemProperties() );
+        datasetCacheConfig = new KlbCacheConfig();
+    }
+
+    /**
+     * @param cacheConfig sizing and priority policy of the caches, see
+     *                    {@link KlbCacheConfig}
+     */
+    public KlbImgLoader( final KlbPartitionResolver resolver, final AbstractSequenceDescription< ?, ?, ? > seq, final KlbCacheConfig cacheConfig )
     {
         this.resolver = resolver;
         this.seq = ( AbstractSequenceDescription< BasicViewSetup, BasicViewDescription< BasicViewSetup >, KlbImgLoader > ) seq;
+        this.cacheConfig = cacheConfig.copy();
+        datasetCacheConfig = cacheConfig.copy();
+        final int numFetcherThreads = cacheConfig.getEffectiveNumFetcherThreads();
+        cachePriority = cacheConfig.getPriority();
+        blockCache = new KlbBlockCache( cacheConfig.getEffectiveBlockCacheSizeInBytes() );
         cache = new VolatileGlobalCellCache(
                 seq.getTimePoints().size(),
                 resolver.getNumViewSetups(),
                 resolver.getMaxNumResolutionLevels(),
-                Threads.numThreads()
+                numFetcherThreads
         );
+        cacheLedger = new KlbCacheLedger( cacheConfig.getMaxSizeInBytes(), new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                cache.clearCache();
+            }
+        } );
+        final List< TimePoint > timePoints = seq.getTimePoints().getTimePointsOrdered();
+        final int[] timePointIds = new int[ timePoints.size() ];
+        for ( int i = 0; i < timePointIds.length; ++i ) {
+            timePointIds[ i ] = timePoints.get( i ).getId();
+        }
+        prefetcher = new KlbTimePrefetcher( cache, timePointIds, Math.max( 1, numFetcherThreads / 4 ) );
         for ( final BasicViewSetup viewSetup : seq.getViewSetupsOrdered() ) {
             final int id = viewSetup.getId();
             final Type type = this.resolver.getViewSetupImageType( id );
@@ -65,6 +138,9 @@ public class KlbImgLoader implements ViewerImgLoader, MultiResolutionImgLoader
                 setupImgLoaders.put( id, new KlbSetupImgLoader( id, new KlbVolatileArrayLoaderFloat32( this.resolver ) ) );
             else
                 throw new UnsupportedOperationException( "Unknown or unsupported type" );
+            setupImgLoaders.get( id ).arrayLoader.setBlockCache( blockCache );
+            setupImgLoaders.get( id ).arrayLoader.setCacheLedger( cacheLedger );
+            setupImgLoaders.get( id ).arrayLoader.setCompressedCellStore( compressedCellStore );
         }
     }
 
@@ -73,6 +149,35 @@ public class KlbImgLoader implements ViewerImgLoader, MultiResolutionImgLoader
         return resolver;
     }
 
+    /**
+     * Returns the dataset index sidecar file that is referenced from
+     * the dataset XML, or null if there is none.
+     */
+    public File getIndexFile()
+    {
+        return indexFile;
+    }
+
+    public void setIndexFile( final File indexFile )
+    {
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * Returns the pyramid plan the resolution levels were generated with,
+     * as recorded in the dataset XML by {@link KlbDownsampler}, or null if
+     * there is none. It is written back when the dataset is saved.
+     */
+    public KlbPyramidPlan getPyramidPlan()
+    {
+        return pyramidPlan;
+    }
+
+    public void setPyramidPlan( final KlbPyramidPlan pyramidPlan )
+    {
+        this.pyramidPlan = pyramidPlan;
+    }
+
     @Override
     public KlbSetupImgLoader getSetupImgLoader( final int viewSetupId )
     {
@@ -85,12 +190,328 @@ public class KlbImgLoader implements ViewerImgLoader, MultiResolutionImgLoader
         return cache;
     }
 
+    /**
+     * Returns the current cache configuration. The number of fetcher
+     * threads is fixed at construction, the other settings follow the
+     * setters of this loader and of the block cache.
+     */
+    public KlbCacheConfig getCacheConfig()
+    {
+        final KlbCacheConfig config = cacheConfig.copy();
+        config.setMaxSizeInBytes( cacheLedger.getMaxSizeInBytes() );
+        if ( blockCache.getMaxSizeInBytes() != cacheConfig.getEffectiveBlockCacheSizeInBytes() ) {
+            config.setBlockCacheSizeInBytes( blockCache.getMaxSizeInBytes() );
+        }
+        config.setPriority( cachePriority );
+        return config;
+    }
+
+    /**
+     * Returns the cache configuration stored in the dataset XML. It
+     * excludes system property overrides and changes made through the
+     * setters of this loader, which only apply to this JVM.
+     */
+    public KlbCacheConfig getDatasetCacheConfig()
+    {
+        return datasetCacheConfig.copy();
+    }
+
+    /**
+     * Sets the cache configuration to store in the dataset XML. It takes
+     * effect when the dataset is opened again.
+     */
+    public void setDatasetCacheConfig( final KlbCacheConfig config )
+    {
+        datasetCacheConfig = config == null ? new KlbCacheConfig() : config.copy();
+    }
+
+    /**
+     * Sets the memory budget of decoded cells in the cell cache, 0 to
+     * leave them bounded by the heap only. Exceeding it flushes the
+     * whole cache. The budget should exceed the cells of one screen of
+     * all visible sources, otherwise the cache is cleared on every
+     * repaint.
+     */
+    public void setMaxCacheSizeInBytes( final long maxSizeInBytes )
+    {
+        cacheLedger.setMaxSizeInBytes( maxSizeInBytes );
+    }
+
+    /**
+     * Sets the order in which queued cells of different resolution
+     * levels are fetched, for images created from now on.
+     */
+    public void setCachePriority( final KlbCacheConfig.Priority priority )
+    {
+        cachePriority = priority == null ? KlbCacheConfig.Priority.COARSE_FIRST : priority;
+    }
+
+    /**
+     * Returns the number of bytes of decoded cells loaded into the cell
+     * cache since it was last cleared that have not been reclaimed yet.
+     */
+    public long getCacheSizeInBytes()
+    {
+        return cacheLedger.getSizeInBytes();
+    }
+
+    /**
+     * Returns the number of decoded cells loaded into the cell cache
+     * since it was last cleared that have not been reclaimed yet.
+     */
+    public int getNumCachedCells()
+    {
+        return cacheLedger.getNumCells();
+    }
+
+    /**
+     * Returns the number of cells loaded into the cell cache.
+     */
+    public long getNumLoadedCells()
+    {
+        return cacheLedger.getNumLoaded();
+    }
+
+    /**
+     * Returns the number of times the cell cache was cleared to meet
+     * its budget.
+     */
+    public long getNumCacheClears()
+    {
+        return cacheLedger.getNumClears();
+    }
+
+    /**
+     * Returns the cache of decompressed KLB blocks shared by all
+     * ViewSetups and resolution levels. It is disabled unless a budget
+     * is set, -1 meaning 1/16 of the maximum heap size.
+     */
+    public KlbBlockCache getBlockCache()
+    {
+        return blockCache;
+    }
+
+    public KlbCompressedCellStore getCompressedCellStore()
+    {
+        return compressedCellStore;
+    }
+
+    /**
+     * Sets up an off-heap tier of compressed cells of the given size for
+     * all ViewSetups, replacing the current one. 0 disables the tier
+     * (the default).
+     *
+     * @param maxSizeInBytes off-heap budget
+     */
+    public void setCompressedCellStoreSize( final long maxSizeInBytes )
+    {
+        final KlbCompressedCellStore old = compressedCellStore;
+        compressedCellStore = new KlbCompressedCellStore( maxSizeInBytes );
+        for ( final KlbSetupImgLoader setupImgLoader : setupImgLoaders.values() ) {
+            setupImgLoader.arrayLoader.setCompressedCellStore( compressedCellStore );
+        }
+        old.release();
+    }
+
+    public int getNumCompleteReaderThreads()
+    {
+        return numCompleteReaderThreads;
+    }
+
+    /**
+     * Sets the number of threads used to read an image that is loaded
+     * completely (ImgLoaderHints.LOAD_COMPLETELY). Complete loads may be
+     * issued concurrently from several threads, in which case the
+     * number should be reduced accordingly.
+     */
+    public void setNumCompleteReaderThreads( final int numThreads )
+    {
+        numCompleteReaderThreads = Math.max( 1, numThreads );
+    }
+
+    public KlbDiskCellCache getDiskCellCache()
+    {
+        return diskCellCache;
+    }
+
+    /**
+     * Sets up an on-disk cache of decoded cells for all ViewSetups,
+     * replacing the current one. Scratch files in directory are reused
+     * across sessions. A null directory or a budget of 0 disables the
+     * cache (the default).
+     *
+     * @param directory      scratch directory on local disk
+     * @param maxSizeInBytes disk budget
+     */
+    public void setDiskCellCache( final File directory, final long maxSizeInBytes )
+    {
+        diskCellCache = directory == null || maxSizeInBytes <= 0 ? null : new KlbDiskCellCache( directory, maxSizeInBytes );
+        for ( final KlbSetupImgLoader setupImgLoader : setupImgLoaders.values() ) {
+            setupImgLoader.arrayLoader.setDiskCellCache( diskCellCache );
+        }
+    }
+
+    public KlbMappedImageStore getMappedImageStore()
+    {
+        return mappedImageStore;
+    }
+
+    /**
+     * Sets the store that images loaded completely
+     * (ImgLoaderHints.LOAD_COMPLETELY) are decoded into instead of heap
+     * arrays, null (the default) to load them onto the heap. The images
+     * of the store are not backed by Java arrays, see
+     * {@link KlbMappedImageStore}.
+     */
+    public void setMappedImageStore( final KlbMappedImageStore store )
+    {
+        mappedImageStore = store;
+    }
+
+    /**
+     * Enables coalesced, block-aligned batch reads for all ViewSetups,
+     * see {@link KlbVolatileArrayLoader#setBatchDimensions}.
+     *
+     * @param batchDimensions batch dimensions in KLB blocks, or null to disable
+     */
+    public void setBatchDimensions( final int[] batchDimensions )
+    {
+        for ( final KlbSetupImgLoader setupImgLoader : setupImgLoaders.values() ) {
+            setupImgLoader.arrayLoader.setBatchDimensions( batchDimensions );
+        }
+    }
+
+    /**
+     * Returns the executor shared by all ViewSetups for parallel work on
+     * complete images, e.g. converting them to float. Unless set, it is
+     * created on first use with Threads.numThreads() daemon threads that
+     * exit when idle.
+     */
+    public synchronized ExecutorService getExecutorService()
+    {
+        if ( executor == null ) {
+            final int numThreads = Threads.numThreads();
+            final ThreadPoolExecutor pool = new ThreadPoolExecutor( numThreads, numThreads, 10, TimeUnit.SECONDS, new LinkedBlockingQueue< Runnable >(), new ThreadFactory()
+            {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread( final Runnable r )
+                {
+                    final Thread thread = new Thread( r, "klb-worker-" + count.incrementAndGet() );
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            } );
+            pool.allowCoreThreadTimeOut( true );
+            executor = pool;
+            ownExecutor = true;
+        }
+        return executor;
+    }
+
+    /**
+     * Shares an application's executor for parallel work on complete
+     * images instead of creating one. Calling threads help out with
+     * their own tasks, so nested use from tasks of the same executor is
+     * safe.
+     */
+    public synchronized void setExecutorService( final ExecutorService executor )
+    {
+        if ( ownExecutor ) {
+            this.executor.shutdown();
+        }
+        this.executor = executor;
+        ownExecutor = false;
+        floatConverter = null;
+    }
+
+    /**
+     * Stops the fetcher threads of the cell cache, the prefetcher and the
+     * executor created by this loader, clears the cell cache and releases
+     * the compressed cell store. The loader must not be used for cached
+     * images afterwards; a shared executor set by the application is left
+     * running.
+     */
+    public synchronized void close()
+    {
+        if ( closed ) {
+            return;
+        }
+        closed = true;
+        prefetcher.shutdown();
+        cache.getFetcherThreads().shutdown();
+        cache.clearCache();
+        compressedCellStore.release();
+        if ( ownExecutor ) {
+            executor.shutdown();
+            executor = null;
+            ownExecutor = false;
+            floatConverter = null;
+        }
+    }
+
+    private synchronized KlbFloatConverter getFloatConverter()
+    {
+        if ( floatConverter == null ) {
+            floatConverter = new KlbFloatConverter( getExecutorService(), 2 * Threads.numThreads() );
+        }
+        return floatConverter;
+    }
+
+    /**
+     * Returns the statistics of the full resolution image of a time point
+     * and ViewSetup from its sidecar file written by {@link KlbDownsampler},
+     * or null if there is none or the image changed since. Statistics are
+     * cached once read, so that repeated queries need no I/O beyond
+     * checking the modification time of the image.
+     */
+    public KlbImageStatistics getStatistics( final int timePointId, final int viewSetupId )
+    {
+        final String imagePath = resolver.getFilePath( timePointId, viewSetupId, 0 );
+        final long lastModified = new File( imagePath ).lastModified();
+        final Long key = (( long ) timePointId << 32) | (viewSetupId & 0xffffffffL);
+        synchronized ( statistics ) {
+            final KlbImageStatistics stats = statistics.get( key );
+            if ( stats != null && stats.getSourceLastModified() == lastModified ) {
+                return stats;
+            }
+        }
+        final File file = KlbImageStatistics.getFile( imagePath );
+        if ( !file.isFile() ) {
+            return null;
+        }
+        try {
+            final KlbImageStatistics stats = KlbImageStatistics.read( file );
+            if ( stats.getSourceLastModified() != lastModified ) {
+                return null;
+            }
+            synchronized ( statistics ) {
+                statistics.put( key, stats );
+            }
+            return stats;
+        } catch ( IOException e ) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the time-axis prefetcher used for volatile (viewer) images.
+     * Prefetching is disabled until a depth is set.
+     */
+    public KlbTimePrefetcher getPrefetcher()
+    {
+        return prefetcher;
+    }
+
 
     public class KlbSetupImgLoader< T extends RealType< T > & NativeType< T >, V extends Volatile< T > & NativeType< V >, A extends AbstractVolatileArray< A > > implements ViewerSetupImgLoader< T, V >, MultiResolutionSetupImgLoader< T >
     {
         private final int viewSetupId;
-        private final long[] imageSize = new long[ 3 ];
-        private final int[] blockSize = new int[ 3 ];
+
+        // per level image and block dimensions, read from file headers on first use
+        private final long[][] levelImageSizes;
+        private final int[][] levelBlockSizes;
         private final KlbVolatileArrayLoader< T, V, A > arrayLoader;
         private double[][] mipMapResolutions;
         private AffineTransform3D[] mipMapTransforms;
@@ -99,22 +520,38 @@ public class KlbImgLoader implements ViewerImgLoader, MultiResolutionImgLoader
         private Constructor< T > typeConstructor;
         private Constructor< V > volatileTypeConstructor;
 
-        /**
-         * This instance of KLB is used to load images completely and directly. It will use all available threads to
-         * read the image, whereas the KLB instances in the BigDataViewer use 1 thread each.
-         */
-        private KLB klb;
-
         public KlbSetupImgLoader( final int viewSetupId, final KlbVolatileArrayLoader< T, V, A > arrayLoader )
         {
             this.viewSetupId = viewSetupId;
             this.arrayLoader = arrayLoader;
+            levelImageSizes = new long[ resolver.getNumResolutionLevels( viewSetupId ) ][];
+            levelBlockSizes = new int[ levelImageSizes.length ][];
+        }
+
+        /**
+         * Returns the statistics of the full resolution image of a time
+         * point, see {@link KlbImgLoader#getStatistics}.
+         */
+        public KlbImageStatistics getStatistics( final int timePointId )
+        {
+            return KlbImgLoader.this.getStatistics( timePointId, viewSetupId );
+        }
+
+        /**
+         * Returns the kernel the resolution levels of this ViewSetup were
+         * aggregated with, as recorded in the pyramid plan of the dataset
+         * XML, or MEAN if no plan is recorded.
+         */
+        public KlbDownsamplingKernel getDownsamplingKernel()
+        {
+            final KlbPyramidPlan plan = pyramidPlan;
+            return plan == null ? KlbDownsamplingKernel.MEAN : plan.getKernel( seq.getViewSetups().get( viewSetupId ) );
         }
 
         @Override
         public Dimensions getImageSize( final int timePointId, final int level )
         {
-            return seq.getViewSetups().get( viewSetupId ).getSize();
+            return new FinalDimensions( getLevelImageSize( level ).clone() );
         }
 
         @Override
@@ -133,11 +570,14 @@ public class KlbImgLoader implements ViewerImgLoader, MultiResolutionImgLoader
         public RandomAccessibleInterval< T > getImage( final int timePointId, final int level, final ImgLoaderHint... hints )
         {
             if ( Arrays.asList( hints ).contains( ImgLoaderHints.LOAD_COMPLETELY ) ) {
-                if ( klb == null ) {
-                    klb = KLB.newInstance();
-                    klb.setNumThreads( Threads.numThreads() );
-                }
+                final KLB klb = completeReaders.get();
+                klb.setNumThreads( numCompleteReaderThreads );
                 try {
+                    final KlbMappedImageStore store = mappedImageStore;
+                    if ( store != null && store.accepts( getLevelImageSize( level ), getImageType() ) ) {
+                        return store.load( klb, resolver.getFilePath( timePointId, viewSetupId, level ),
+                                getLevelImageSize( level ), getLevelBlockSize( level ), getImageType(), getImageType(), null );
+                    }
                     return klb.readFull( resolver.getFilePath( timePointId, viewSetupId, level ) );
                 } catch ( IOException e ) {
                     e.printStackTrace();
@@ -171,97 +611,74 @@ public class KlbImgLoader implements ViewerImgLoader, MultiResolutionImgLoader
             return getImage( timePointId, 0, hints );
         }
 
-        // adapted from bdv.img.hdf5.Hdf5ImageLoader by Tobias Pietzsch et al.
+        /**
+         * Returns the image converted to float, normalized to 0...1 if
+         * requested. With {@link ImgLoaderHints#LOAD_COMPLETELY}, the KLB
+         * file is decoded straight into float arrays (a CellImg of z-slabs
+         * beyond 2^31 - 1 voxels), or into the mapped image store if set,
+         * which keeps normalized images in scratch files of their own.
+         * Otherwise, images backed by the shared cell cache are always
+         * copied, so that callers may modify the result; only float images
+         * that were loaded completely are returned as they are. Conversion
+         * and normalization of heap images run in parallel on the loader's
+         * executor.
+         */
         @Override
+        @SuppressWarnings( "unchecked" )
         public RandomAccessibleInterval< FloatType > getFloatImage( final int timePointId, final int level, final boolean normalize, final ImgLoaderHint... hints )
         {
-            final RandomAccessibleInterval< T > inImg = getImage( timePointId, level, hints );
-
-            // Todo: just return inImg if it is already FloatType
-
-            // create float img
-            final FloatType f = new FloatType();
-            final ImgFactory< FloatType > imgFactory;
-            if ( Intervals.numElements( inImg ) <= Integer.MAX_VALUE ) {
-                imgFactory = new ArrayImgFactory< FloatType >();
-            } else {
-                getImageSize( timePointId, level ).dimensions( imageSize );
-                getBlockSize( timePointId, level );
-                imgFactory = new CellImgFactory< FloatType >( blockSize );
-            }
-            final Img< FloatType > floatImg = imgFactory.create( inImg, f );
-
-            // set up executor service
-            final int numProcessors = Runtime.getRuntime().availableProcessors();
-            final ExecutorService taskExecutor = Executors.newFixedThreadPool( numProcessors );
-            final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
-
-            // set up all tasks
-            final int numPortions = Threads.numThreads();
-            final long threadChunkSize = floatImg.size() / numPortions;
-            final long threadChunkMod = floatImg.size() % numPortions;
-
-            for ( int portionID = 0; portionID < numPortions; ++portionID ) {
-                // move to the starting position of the current thread
-                final long startPosition = portionID * threadChunkSize;
-
-                // the last thread may has to run longer if the number of pixels cannot be divided by the number of threads
-                final long loopSize = (portionID == numPortions - 1) ? threadChunkSize + threadChunkMod : threadChunkSize;
-
-                if ( Views.iterable( inImg ).iterationOrder().equals( floatImg.iterationOrder() ) ) {
-                    tasks.add( new Callable< Void >()
-                    {
-                        @Override
-                        public Void call() throws Exception
-                        {
-                            final Cursor< T > in = Views.iterable( inImg ).cursor();
-                            final Cursor< FloatType > out = floatImg.cursor();
-
-                            in.jumpFwd( startPosition );
-                            out.jumpFwd( startPosition );
-
-                            for ( long j = 0; j < loopSize; ++j )
-                                out.next().set( in.next().getRealFloat() );
-
-                            return null;
+            final KlbFloatConverter converter = getFloatConverter();
+            try {
+                if ( Arrays.asList( hints ).contains( ImgLoaderHints.LOAD_COMPLETELY ) ) {
+                    final KLB klb = completeReaders.get();
+                    klb.setNumThreads( numCompleteReaderThreads );
+                    final float[] minMax = new float[ 2 ];
+                    final KlbMappedImageStore store = mappedImageStore;
+                    try {
+                        if ( store != null && store.accepts( getLevelImageSize( level ), new FloatType() ) ) {
+                            // normalizing the copy-on-write mapping would copy every page
+                            return store.load( klb, resolver.getFilePath( timePointId, viewSetupId, level ),
+                                    getLevelImageSize( level ), getLevelBlockSize( level ), getImageType(), new FloatType(), normalize, minMax );
                         }
-                    } );
-                } else {
-                    tasks.add( new Callable< Void >()
-                    {
-                        @Override
-                        public Void call() throws Exception
-                        {
-                            final Cursor< T > in = Views.iterable( inImg ).localizingCursor();
-                            final RandomAccess< FloatType > out = floatImg.randomAccess();
-
-                            in.jumpFwd( startPosition );
-
-                            for ( long j = 0; j < loopSize; ++j ) {
-                                final T vin = in.next();
-                                out.setPosition( in );
-                                out.get().set( vin.getRealFloat() );
-                            }
-
-                            return null;
+                        final Img< FloatType > floatImg = converter.read( klb, resolver.getFilePath( timePointId, viewSetupId, level ),
+                                getLevelImageSize( level ), getLevelBlockSize( level ), getImageType(), minMax );
+                        if ( normalize ) {
+                            converter.normalize( floatImg, minMax[ 0 ], minMax[ 1 ] );
                         }
-                    } );
+                        return floatImg;
+                    } catch ( IOException e ) {
+                        e.printStackTrace();
+                    }
                 }
-            }
 
-            try {
-                // invokeAll() returns when all tasks are complete
-                taskExecutor.invokeAll( tasks );
-                taskExecutor.shutdown();
+                final RandomAccessibleInterval< T > inImg = getImage( timePointId, level, hints );
+                // cache-backed images are shared with the viewer and must not be handed out
+                if ( getImageType() instanceof FloatType && !(inImg instanceof CachedCellImg) ) {
+                    final RandomAccessibleInterval< FloatType > floatImg = ( RandomAccessibleInterval< FloatType > ) inImg;
+                    if ( normalize ) {
+                        final IterableInterval< FloatType > iterable = Views.iterable( floatImg );
+                        final float[] minMax = converter.minMax( iterable );
+                        converter.normalize( iterable, minMax[ 0 ], minMax[ 1 ] );
+                    }
+                    return floatImg;
+                }
+
+                final ImgFactory< FloatType > imgFactory;
+                if ( Intervals.numElements( inImg ) <= Integer.MAX_VALUE ) {
+                    imgFactory = new ArrayImgFactory< FloatType >();
+                } else {
+                    imgFactory = new CellImgFactory< FloatType >( getLevelBlockSize( level ) );
+                }
+                final Img< FloatType > floatImg = imgFactory.create( inImg, new FloatType() );
+                final float[] minMax = converter.convert( inImg, floatImg );
+                if ( normalize ) {
+                    converter.normalize( floatImg, minMax[ 0 ], minMax[ 1 ] );
+                }
+                return floatImg;
             } catch ( final InterruptedException e ) {
+                Thread.currentThread().interrupt();
                 return null;
             }
-
-            if ( normalize )
-                // normalize the image to 0...1
-                normalize( floatImg );
-
-            return floatImg;
         }
 
         @Override
@@ -297,33 +714,18 @@ public class KlbImgLoader implements ViewerImgLoader, MultiResolutionImgLoader
 
         private < T extends NativeType< T > > CachedCellImg< T, A > prepareCachedImage( final int timePointId, final int level, final LoadingStrategy loadingStrategy )
         {
-            getImageSize( timePointId, level ).dimensions( imageSize );
-            getBlockSize( timePointId, level );
-            final int priority = resolver.getNumResolutionLevels( viewSetupId ) - 1 - level;
+            final long[] imageSize = getLevelImageSize( level ).clone();
+            final int[] blockSize = getLevelBlockSize( level ).clone();
+            final int priority = cachePriority.getPriority( level, resolver.getNumResolutionLevels( viewSetupId ) );
             final CacheHints cacheHints = new CacheHints( loadingStrategy, priority, false );
-            final VolatileImgCells.CellCache< A > c = cache.new VolatileCellCache( timePointId, viewSetupId, level, cacheHints, arrayLoader );
+            VolatileImgCells.CellCache< A > c = cache.new VolatileCellCache( timePointId, viewSetupId, level, cacheHints, arrayLoader );
+            if ( loadingStrategy == LoadingStrategy.VOLATILE ) {
+                c = prefetcher.wrap( c, timePointId, viewSetupId, level, priority, imageSize, blockSize, arrayLoader );
+            }
             final VolatileImgCells< A > cells = new VolatileImgCells< A >( c, new Fraction(), imageSize, blockSize );
             return new CachedCellImg< T, A >( cells );
         }
 
-        // copied from bdv.img.hdf5.Hdf5ImageLoader by Tobias Pietzsch et al.
-        private void normalize( final IterableInterval< FloatType > img )
-        {
-            float currentMax = img.firstElement().get();
-            float currentMin = currentMax;
-            for ( final FloatType t : img ) {
-                final float f = t.get();
-                if ( f > currentMax )
-                    currentMax = f;
-                else if ( f < currentMin )
-                    currentMin = f;
-            }
-
-            final float scale = ( float ) (1.0 / (currentMax - currentMin));
-            for ( final FloatType t : img )
-                t.set( (t.get() - currentMin) * scale );
-        }
-
         @Override
         public int numMipmapLevels()
         {
@@ -382,18 +784,70 @@ public class KlbImgLoader implements ViewerImgLoader, MultiResolutionImgLoader
             return arrayLoader.getVolatileType();
         }
 
-        private void getBlockSize( final int timePointId, final int level )
+        /**
+         * Returns the image dimensions of the given resolution level.
+         * Image dimensions are assumed to be constant over time.
+         */
+        private synchronized long[] getLevelImageSize( final int level )
         {
-            if ( blockSize[ 0 ] == 0 ) {
-                if ( !resolver.getBlockDimensions( timePointId, viewSetupId, level, blockSize ) ) {
-                    final Map< Integer, TimePoint > timePoints = seq.getTimePoints().getTimePoints();
-                    for ( final Integer t : timePoints.keySet() ) {
-                        if ( resolver.getBlockDimensions( timePoints.get( t ).getId(), viewSetupId, level, blockSize ) ) {
-                            break;
-                        }
-                    }
+            if ( levelImageSizes[ level ] == null ) {
+                readLevelDimensions( level );
+            }
+            return levelImageSizes[ level ];
+        }
+
+        /**
+         * Returns the KLB block dimensions of the given resolution level,
+         * which are used as cell dimensions so that every cell maps to
+         * exactly one KLB block.
+         */
+        private synchronized int[] getLevelBlockSize( final int level )
+        {
+            if ( levelBlockSizes[ level ] == null ) {
+                readLevelDimensions( level );
+            }
+            return levelBlockSizes[ level ];
+        }
+
+        private void readLevelDimensions( final int level )
+        {
+            final long[] size = new long[ 3 ];
+            final int[] block = new int[ 3 ];
+            // data files can be missing, use the first time point that has the file
+            final List< Integer > candidates = new ArrayList< Integer >();
+            candidates.add( resolver.getFirstTimePoint() );
+            for ( final TimePoint t : seq.getTimePoints().getTimePointsOrdered() ) {
+                candidates.add( t.getId() );
+            }
+            boolean found = false;
+            for ( final int t : candidates ) {
+                if ( !new File( resolver.getFilePath( t, viewSetupId, level ) ).exists() ) {
+                    // expected for sparse levels, not worth a stack trace
+                    continue;
+                }
+                try {
+                    final KlbFileHeader header = resolver.readHeader( t, viewSetupId, level );
+                    System.arraycopy( header.imageSize, 0, size, 0, 3 );
+                    System.arraycopy( header.blockSize, 0, block, 0, 3 );
+                    found = true;
+                } catch ( IOException e ) {
+                    e.printStackTrace();
+                }
+                break;
+            }
+            if ( !found ) {
+                // fall back to full resolution dimensions, as defined by the ViewSetup
+                seq.getViewSetups().get( viewSetupId ).getSize().dimensions( size );
+                if ( level > 0 ) {
+                    final int[] fullResBlock = getLevelBlockSize( 0 );
+                    System.arraycopy( fullResBlock, 0, block, 0, 3 );
+                } else {
+                    block[ 0 ] = block[ 1 ] = 64;
+                    block[ 2 ] = 8;
                 }
             }
+            levelImageSizes[ level ] = size;
+            levelBlockSizes[ level ] = block;
         }
     }
 }
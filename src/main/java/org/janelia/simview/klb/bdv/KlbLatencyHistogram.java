@@ -0,0 +1,135 @@
+package org.janelia.simview.klb.bdv;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies in nanoseconds.
+ * <p>
+ * Values are counted in log-linear buckets: every power of two is split
+ * into 8 buckets, so that percentiles are accurate to 12.5% over the
+ * whole range of long values, at 4 KB per histogram. Recording is a few
+ * atomic increments and safe from any number of threads.
+ */
+public class KlbLatencyHistogram
+{
+    private static final int SUB_BITS = 3;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int NUM_BUCKETS = (64 - SUB_BITS) * SUB;
+
+    private final AtomicLongArray counts = new AtomicLongArray( NUM_BUCKETS );
+    private final AtomicLong count = new AtomicLong(), total = new AtomicLong(), max = new AtomicLong();
+
+    public void record( final long nanos )
+    {
+        final long v = Math.max( 0, nanos );
+        counts.incrementAndGet( index( v ) );
+        count.incrementAndGet();
+        total.addAndGet( v );
+        long m = max.get();
+        while ( v > m && !max.compareAndSet( m, v ) ) {
+            m = max.get();
+        }
+    }
+
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    public long getTotalNanos()
+    {
+        return total.get();
+    }
+
+    public long getMaxNanos()
+    {
+        return max.get();
+    }
+
+    public double getMeanNanos()
+    {
+        final long n = count.get();
+        return n == 0 ? 0 : ( double ) total.get() / n;
+    }
+
+    /**
+     * Returns the value below which percentile % of the recorded values
+     * fall, the middle of its bucket.
+     *
+     * @param percentile in 0 ... 100
+     */
+    public long getPercentileNanos( final double percentile )
+    {
+        final long[] snapshot = new long[ NUM_BUCKETS ];
+        long n = 0;
+        for ( int i = 0; i < NUM_BUCKETS; ++i ) {
+            snapshot[ i ] = counts.get( i );
+            n += snapshot[ i ];
+        }
+        if ( n == 0 ) {
+            return 0;
+        }
+        final long rank = Math.max( 1, ( long ) Math.ceil( Math.min( 100, Math.max( 0, percentile ) ) / 100 * n ) );
+        long seen = 0;
+        for ( int i = 0; i < NUM_BUCKETS; ++i ) {
+            seen += snapshot[ i ];
+            if ( seen >= rank ) {
+                final long lo = lowerBound( i );
+                final long hi = i + 1 < NUM_BUCKETS ? lowerBound( i + 1 ) - 1 : Long.MAX_VALUE;
+                return Math.min( max.get(), lo + (hi - lo) / 2 );
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Adds the counts of other to this histogram.
+     */
+    public void add( final KlbLatencyHistogram other )
+    {
+        for ( int i = 0; i < NUM_BUCKETS; ++i ) {
+            final long c = other.counts.get( i );
+            if ( c != 0 ) {
+                counts.addAndGet( i, c );
+            }
+        }
+        count.addAndGet( other.count.get() );
+        total.addAndGet( other.total.get() );
+        final long v = other.max.get();
+        long m = max.get();
+        while ( v > m && !max.compareAndSet( m, v ) ) {
+            m = max.get();
+        }
+    }
+
+    /**
+     * Resets all counts. Values recorded concurrently may be lost or
+     * partially counted.
+     */
+    public void reset()
+    {
+        for ( int i = 0; i < NUM_BUCKETS; ++i ) {
+            counts.set( i, 0 );
+        }
+        count.set( 0 );
+        total.set( 0 );
+        max.set( 0 );
+    }
+
+    static int index( final long v )
+    {
+        if ( v < SUB ) {
+            return ( int ) v;
+        }
+        final int e = 63 - Long.numberOfLeadingZeros( v );
+        return (e - SUB_BITS + 1) * SUB + ( int ) ((v >>> (e - SUB_BITS)) & (SUB - 1));
+    }
+
+    static long lowerBound( final int index )
+    {
+        final int g = index / SUB;
+        final int s = index % SUB;
+        return g == 0 ? s : ( long ) (SUB + s) << (g - 1);
+    }
+}
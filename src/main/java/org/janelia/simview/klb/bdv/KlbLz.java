@@ -0,0 +1,174 @@
+package org.janelia.simview.klb.bdv;
+
+import java.util.Arrays;
+
+/**
+ * Minimal, pure-Java LZ77 codec using the LZ4 block format (4-byte
+ * minimum match, 64 KB window, literal/match length tokens). Favors
+ * speed over compression ratio.
+ */
+final class KlbLz
+{
+    private static final int HASH_LOG = 14;
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MATCH_FIND_LIMIT = 12;
+    private static final int MAX_DISTANCE = 65535;
+
+    private static final ThreadLocal< int[] > hashTables = new ThreadLocal< int[] >()
+    {
+        @Override
+        protected int[] initialValue()
+        {
+            return new int[ 1 << HASH_LOG ];
+        }
+    };
+
+    private KlbLz()
+    {
+    }
+
+    /**
+     * Returns the maximum compressed size of length bytes.
+     */
+    static int maxCompressedLength( final int length )
+    {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * Compresses src[0, length) into dst, which must hold at least
+     * {@link #maxCompressedLength(int)} bytes. Returns the compressed
+     * length.
+     */
+    static int compress( final byte[] src, final int length, final byte[] dst )
+    {
+        // table entries are position + 1, 0 means empty
+        final int[] table = hashTables.get();
+        Arrays.fill( table, 0 );
+
+        int ip = 0, anchor = 0, op = 0;
+        final int limit = length - MATCH_FIND_LIMIT;
+        while ( ip < limit ) {
+            final int sequence = readInt( src, ip );
+            final int h = (sequence * -1640531535) >>> (32 - HASH_LOG);
+            final int ref = table[ h ] - 1;
+            table[ h ] = ip + 1;
+            if ( ref < 0 || ip - ref > MAX_DISTANCE || readInt( src, ref ) != sequence ) {
+                ++ip;
+                continue;
+            }
+
+            int matchLength = MIN_MATCH;
+            final int maxMatchLength = length - LAST_LITERALS - ip;
+            while ( matchLength < maxMatchLength && src[ ref + matchLength ] == src[ ip + matchLength ] ) {
+                ++matchLength;
+            }
+
+            final int tokenPos = op++;
+            int token = 0;
+            final int literalLength = ip - anchor;
+            if ( literalLength >= 15 ) {
+                token = 15 << 4;
+                op = writeLength( dst, op, literalLength - 15 );
+            } else {
+                token = literalLength << 4;
+            }
+            System.arraycopy( src, anchor, dst, op, literalLength );
+            op += literalLength;
+
+            final int distance = ip - ref;
+            dst[ op++ ] = ( byte ) distance;
+            dst[ op++ ] = ( byte ) (distance >>> 8);
+
+            final int ml = matchLength - MIN_MATCH;
+            if ( ml >= 15 ) {
+                token |= 15;
+                op = writeLength( dst, op, ml - 15 );
+            } else {
+                token |= ml;
+            }
+            dst[ tokenPos ] = ( byte ) token;
+
+            ip += matchLength;
+            anchor = ip;
+        }
+
+        // last literals
+        final int literalLength = length - anchor;
+        if ( literalLength >= 15 ) {
+            dst[ op++ ] = ( byte ) (15 << 4);
+            op = writeLength( dst, op, literalLength - 15 );
+        } else {
+            dst[ op++ ] = ( byte ) (literalLength << 4);
+        }
+        System.arraycopy( src, anchor, dst, op, literalLength );
+        return op + literalLength;
+    }
+
+    /**
+     * Decompresses src[0, srcLength) into dst[0, dstLength).
+     */
+    static void decompress( final byte[] src, final int srcLength, final byte[] dst, final int dstLength )
+    {
+        int ip = 0, op = 0;
+        while ( true ) {
+            final int token = src[ ip++ ] & 0xff;
+            int literalLength = token >>> 4;
+            if ( literalLength == 15 ) {
+                int b;
+                do {
+                    b = src[ ip++ ] & 0xff;
+                    literalLength += b;
+                } while ( b == 255 );
+            }
+            System.arraycopy( src, ip, dst, op, literalLength );
+            ip += literalLength;
+            op += literalLength;
+            if ( ip >= srcLength ) {
+                break;
+            }
+
+            final int distance = (src[ ip ] & 0xff) | ((src[ ip + 1 ] & 0xff) << 8);
+            ip += 2;
+            int matchLength = token & 15;
+            if ( matchLength == 15 ) {
+                int b;
+                do {
+                    b = src[ ip++ ] & 0xff;
+                    matchLength += b;
+                } while ( b == 255 );
+            }
+            matchLength += MIN_MATCH;
+
+            final int ref = op - distance;
+            if ( distance >= matchLength ) {
+                System.arraycopy( dst, ref, dst, op, matchLength );
+            } else {
+                // overlapping match, copy byte by byte
+                for ( int i = 0; i < matchLength; ++i ) {
+                    dst[ op + i ] = dst[ ref + i ];
+                }
+            }
+            op += matchLength;
+        }
+        if ( op != dstLength ) {
+            throw new IllegalStateException( "Corrupt compressed data" );
+        }
+    }
+
+    private static int writeLength( final byte[] dst, int op, int length )
+    {
+        while ( length >= 255 ) {
+            dst[ op++ ] = ( byte ) 255;
+            length -= 255;
+        }
+        dst[ op++ ] = ( byte ) length;
+        return op;
+    }
+
+    private static int readInt( final byte[] src, final int i )
+    {
+        return (src[ i ] & 0xff) | ((src[ i + 1 ] & 0xff) << 8) | ((src[ i + 2 ] & 0xff) << 16) | ((src[ i + 3 ] & 0xff) << 24);
+    }
+}
@@ -0,0 +1,751 @@
+package org.janelia.simview.klb.bdv;
+
+import bdv.img.cache.CacheHints;
+import bdv.img.cache.CachedCellImg;
+import bdv.img.cache.VolatileCell;
+import bdv.img.cache.VolatileImgCells;
+import net.imglib2.img.Img;
+import net.imglib2.img.basictypeaccess.ByteAccess;
+import net.imglib2.img.basictypeaccess.FloatAccess;
+import net.imglib2.img.basictypeaccess.ShortAccess;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileAccess;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Fraction;
+import org.janelia.simview.klb.KLB;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads complete KLB images outside the Java heap, for volumes too large
+ * for heap arrays.
+ * <p>
+ * Images are decoded slab by slab and exposed as cell images with one
+ * cell per plane, backed by NIO buffers. Their storage is not a Java
+ * array: the accesses do not implement ArrayDataAccess, so code that
+ * takes the storage array of ArrayImgs or PlanarImgs (ImageJFunctions,
+ * conversion to ImagePlus, fusion) falls back to cursors, and code that
+ * requires arrays needs to copy the image. With a scratch directory,
+ * every image is written to a scratch file that is memory-mapped
+ * copy-on-write, so that modifications never reach the file. Float
+ * images normalized to 0...1 are stored normalized in their own scratch
+ * files, rather than normalized through the copy-on-write mapping,
+ * which would copy every page into anonymous memory. Scratch files are
+ * named after the path and modification time of their source file, the
+ * stored type and normalization, so loading the same image again maps the
+ * existing file and is served from the page cache. They are bounded by
+ * a disk budget, least recently used files being deleted first. Without
+ * a scratch directory, images are decoded into direct buffers.
+ */
+public class KlbMappedImageStore
+{
+    private static final long MAGIC = 0x4b4c42564f4c3031L; // "KLBVOL01"
+    private static final int HEADER_SIZE = 64;
+    private static final long DATA_OFFSET = 4096;
+    private static final long CHUNK_SIZE = 1L << 30;
+    private static final long SLAB_SIZE = 64L << 20;
+    private static final String SUFFIX = ".vol";
+    private static final int UINT8 = 1, UINT16 = 2, FLOAT32 = 4;
+
+    private final File directory;
+    private volatile long maxSizeInBytes;
+    private volatile long minImageSizeInBytes = 0;
+
+    // guarded by this
+    private final HashMap< String, Usage > usage = new HashMap< String, Usage >();
+    private long totalBytes = 0;
+
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+    /**
+     * @param directory      scratch directory on local disk, created if necessary,
+     *                       or null to decode into direct buffers
+     * @param maxSizeInBytes disk budget of the scratch directory
+     */
+    public KlbMappedImageStore( final File directory, final long maxSizeInBytes )
+    {
+        this.directory = directory;
+        this.maxSizeInBytes = maxSizeInBytes;
+        if ( directory == null ) {
+            return;
+        }
+        directory.mkdirs();
+        final File[] files = directory.listFiles( new FileFilter()
+        {
+            @Override
+            public boolean accept( final File f )
+            {
+                return f.isFile() && f.getName().endsWith( SUFFIX );
+            }
+        } );
+        if ( files != null ) {
+            for ( final File f : files ) {
+                usage.put( f.getName(), new Usage( f.length(), f.lastModified() ) );
+                totalBytes += f.length();
+            }
+        }
+    }
+
+    public File getDirectory()
+    {
+        return directory;
+    }
+
+    public long getMaxSizeInBytes()
+    {
+        return maxSizeInBytes;
+    }
+
+    public synchronized void setMaxSizeInBytes( final long maxSizeInBytes )
+    {
+        this.maxSizeInBytes = maxSizeInBytes;
+        evict( null );
+    }
+
+    public long getMinImageSizeInBytes()
+    {
+        return minImageSizeInBytes;
+    }
+
+    /**
+     * Sets the size (of the decoded image) below which images are better
+     * loaded onto the heap, 0 (the default) to store all images.
+     */
+    public void setMinImageSizeInBytes( final long minImageSizeInBytes )
+    {
+        this.minImageSizeInBytes = Math.max( 0, minImageSizeInBytes );
+    }
+
+    /**
+     * Returns whether an image of the given dimensions and type should be
+     * loaded through this store.
+     */
+    public boolean accepts( final long[] dims, final NativeType< ? > type )
+    {
+        return dims[ 0 ] * dims[ 1 ] * dims[ 2 ] * Math.max( 1, type.getBitsPerPixel() / 8 ) >= minImageSizeInBytes;
+    }
+
+    /**
+     * Returns the number of bytes of scratch files on disk.
+     */
+    public synchronized long getSizeInBytes()
+    {
+        return totalBytes;
+    }
+
+    /**
+     * Returns the number of loads served from existing scratch files.
+     */
+    public long getNumHits()
+    {
+        return hits.get();
+    }
+
+    public long getNumMisses()
+    {
+        return misses.get();
+    }
+
+    public void resetStatistics()
+    {
+        hits.set( 0 );
+        misses.set( 0 );
+    }
+
+    /**
+     * Loads a complete 3D KLB file as an image of type, which is either
+     * fileType or FloatType (converting while decoding).
+     *
+     * @param klb       KLB instance, confined to the calling thread
+     * @param dims      image dimensions (x, y, z)
+     * @param blockDims KLB block dimensions, slabs are multiples of the block depth
+     * @param fileType  pixel type of the file
+     * @param type      pixel type of the image
+     * @param minMax    receives { min, max } of the image if not null
+     */
+    public < T extends RealType< T > & NativeType< T > > Img< T > load( final KLB klb, final String filePath, final long[] dims, final int[] blockDims,
+            final NativeType< ? > fileType, final T type, final float[] minMax )
+            throws IOException
+    {
+        return load( klb, filePath, dims, blockDims, fileType, type, false, minMax );
+    }
+
+    /**
+     * Loads a complete 3D KLB file as an image of type, which is either
+     * fileType or FloatType (converting while decoding), optionally
+     * normalized to 0...1.
+     *
+     * @param normalize whether to normalize the image, which must be float
+     * @param minMax    receives { min, max } of the image before normalization if not null
+     */
+    @SuppressWarnings( "unchecked" )
+    public < T extends RealType< T > & NativeType< T > > Img< T > load( final KLB klb, final String filePath, final long[] dims, final int[] blockDims,
+            final NativeType< ? > fileType, final T type, final boolean normalize, final float[] minMax )
+            throws IOException
+    {
+        final int fileKind = kind( fileType );
+        final int kind = kind( type );
+        if ( kind != fileKind && kind != FLOAT32 ) {
+            throw new IllegalArgumentException( "Images can only be converted to float" );
+        }
+        if ( normalize && kind != FLOAT32 ) {
+            throw new IllegalArgumentException( "Only float images can be normalized" );
+        }
+        final long planeBytes = dims[ 0 ] * dims[ 1 ] * kind;
+        if ( planeBytes > CHUNK_SIZE ) {
+            throw new IllegalArgumentException( "Planes must be smaller than " + CHUNK_SIZE + " bytes" );
+        }
+
+        final float[] range = { Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY };
+        final ByteBuffer[] planes;
+        if ( directory == null ) {
+            planes = decodeDirect( klb, filePath, dims, blockDims, fileKind, kind, range );
+            misses.incrementAndGet();
+            if ( normalize ) {
+                for ( final ByteBuffer plane : planes ) {
+                    normalize( plane, range );
+                }
+            }
+        } else {
+            planes = mapScratchFile( klb, filePath, dims, blockDims, fileKind, kind, normalize, range );
+        }
+        if ( minMax != null ) {
+            minMax[ 0 ] = range[ 0 ];
+            minMax[ 1 ] = range[ 1 ];
+        }
+
+        switch ( kind ) {
+            case UINT8: {
+                final BufferByteAccess[] accesses = new BufferByteAccess[ planes.length ];
+                for ( int z = 0; z < planes.length; ++z ) {
+                    accesses[ z ] = new BufferByteAccess( planes[ z ] );
+                }
+                final CachedCellImg< UnsignedByteType, BufferByteAccess > img = createImg( dims, accesses );
+                img.setLinkedType( new UnsignedByteType( img ) );
+                return ( Img< T > ) img;
+            }
+            case UINT16: {
+                final BufferShortAccess[] accesses = new BufferShortAccess[ planes.length ];
+                for ( int z = 0; z < planes.length; ++z ) {
+                    accesses[ z ] = new BufferShortAccess( planes[ z ].asShortBuffer() );
+                }
+                final CachedCellImg< UnsignedShortType, BufferShortAccess > img = createImg( dims, accesses );
+                img.setLinkedType( new UnsignedShortType( img ) );
+                return ( Img< T > ) img;
+            }
+            default: {
+                final BufferFloatAccess[] accesses = new BufferFloatAccess[ planes.length ];
+                for ( int z = 0; z < planes.length; ++z ) {
+                    accesses[ z ] = new BufferFloatAccess( planes[ z ].asFloatBuffer() );
+                }
+                final CachedCellImg< FloatType, BufferFloatAccess > img = createImg( dims, accesses );
+                img.setLinkedType( new FloatType( img ) );
+                return ( Img< T > ) img;
+            }
+        }
+    }
+
+    /**
+     * Returns an image with one cell per plane. The linked type must be
+     * set by the caller.
+     */
+    private static < T extends NativeType< T >, A extends VolatileAccess > CachedCellImg< T, A > createImg( final long[] dims, final A[] planes )
+    {
+        final int[] cellDims = { ( int ) dims[ 0 ], ( int ) dims[ 1 ], 1 };
+        return new CachedCellImg< T, A >( new VolatileImgCells< A >( new PlaneCache< A >( cellDims, planes ), new Fraction(), dims, cellDims ) );
+    }
+
+    private static int kind( final NativeType< ? > type )
+    {
+        if ( type instanceof UnsignedByteType ) {
+            return UINT8;
+        } else if ( type instanceof UnsignedShortType ) {
+            return UINT16;
+        } else if ( type instanceof FloatType ) {
+            return FLOAT32;
+        }
+        throw new IllegalArgumentException( "Unknown or unsupported data type." );
+    }
+
+    private ByteBuffer[] decodeDirect( final KLB klb, final String filePath, final long[] dims, final int[] blockDims, final int fileKind, final int kind, final float[] range )
+            throws IOException
+    {
+        final int planeBytes = ( int ) (dims[ 0 ] * dims[ 1 ] * kind);
+        final int depth = ( int ) dims[ 2 ];
+        final ByteBuffer[] planes = new ByteBuffer[ depth ];
+        final int planesPerChunk = ( int ) Math.max( 1, Math.min( depth, CHUNK_SIZE / Math.max( 1, planeBytes ) ) );
+        for ( int z0 = 0; z0 < depth; z0 += planesPerChunk ) {
+            final int n = Math.min( planesPerChunk, depth - z0 );
+            final ByteBuffer chunk = ByteBuffer.allocateDirect( n * planeBytes ).order( ByteOrder.nativeOrder() );
+            slice( chunk, planeBytes, planes, z0, n );
+        }
+        final Decoder decoder = new Decoder( klb, filePath, dims, blockDims, fileKind, kind );
+        for ( int z0 = 0; z0 < depth; z0 += decoder.slab ) {
+            final int n = Math.min( decoder.slab, depth - z0 );
+            final ByteBuffer out = decoder.decode( z0, n, range );
+            for ( int z = 0; z < n; ++z ) {
+                out.limit( (z + 1) * planeBytes ).position( z * planeBytes );
+                planes[ z0 + z ].duplicate().put( out );
+            }
+        }
+        return planes;
+    }
+
+    private ByteBuffer[] mapScratchFile( final KLB klb, final String filePath, final long[] dims, final int[] blockDims, final int fileKind, final int kind,
+            final boolean normalized, final float[] range )
+            throws IOException
+    {
+        final String name = scratchFileName( filePath, new File( filePath ).lastModified(), kind, normalized );
+        final File file = new File( directory, name );
+        if ( !readHeader( file, dims, kind, normalized, range ) ) {
+            misses.incrementAndGet();
+            // decode into a private temporary file, then publish it atomically
+            final File tmp = new File( directory, name + "." + Thread.currentThread().getId() + ".tmp" );
+            final long dataBytes = dims[ 0 ] * dims[ 1 ] * dims[ 2 ] * kind;
+            synchronized ( this ) {
+                totalBytes += DATA_OFFSET + dataBytes;
+                evict( name );
+            }
+            try {
+                writeScratchFile( tmp, klb, filePath, dims, blockDims, fileKind, kind, normalized, range );
+                if ( !tmp.renameTo( file ) ) {
+                    file.delete();
+                    if ( !tmp.renameTo( file ) ) {
+                        throw new IOException( "Cannot write " + file );
+                    }
+                }
+            } catch ( IOException e ) {
+                tmp.delete();
+                synchronized ( this ) {
+                    totalBytes -= DATA_OFFSET + dataBytes;
+                }
+                throw e;
+            }
+            synchronized ( this ) {
+                final Usage old = usage.put( name, new Usage( file.length(), System.currentTimeMillis() ) );
+                if ( old != null ) {
+                    totalBytes -= old.bytes;
+                }
+                // reserved above
+                totalBytes += file.length() - (DATA_OFFSET + dataBytes);
+            }
+        } else {
+            hits.incrementAndGet();
+            synchronized ( this ) {
+                Usage u = usage.get( name );
+                if ( u == null ) {
+                    u = new Usage( file.length(), 0 );
+                    usage.put( name, u );
+                    totalBytes += u.bytes;
+                }
+                // the modification time of a scratch file is its last access time
+                u.lastAccess = System.currentTimeMillis();
+                file.setLastModified( u.lastAccess );
+            }
+        }
+
+        final int planeBytes = ( int ) (dims[ 0 ] * dims[ 1 ] * kind);
+        final int depth = ( int ) dims[ 2 ];
+        final ByteBuffer[] planes = new ByteBuffer[ depth ];
+        final int planesPerChunk = ( int ) Math.max( 1, Math.min( depth, CHUNK_SIZE / Math.max( 1, planeBytes ) ) );
+        final RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+        try {
+            final FileChannel channel = raf.getChannel();
+            for ( int z0 = 0; z0 < depth; z0 += planesPerChunk ) {
+                final int n = Math.min( planesPerChunk, depth - z0 );
+                // copy-on-write, so that modifications of the image never reach the file
+                final ByteBuffer chunk = channel.map( FileChannel.MapMode.PRIVATE, DATA_OFFSET + ( long ) z0 * planeBytes, ( long ) n * planeBytes );
+                slice( chunk.order( ByteOrder.nativeOrder() ), planeBytes, planes, z0, n );
+            }
+        } finally {
+            raf.close();
+        }
+        return planes;
+    }
+
+    private static void writeScratchFile( final File file, final KLB klb, final String filePath, final long[] dims, final int[] blockDims, final int fileKind, final int kind,
+            final boolean normalized, final float[] range )
+            throws IOException
+    {
+        final RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+        try {
+            final FileChannel channel = raf.getChannel();
+            final long planeBytes = dims[ 0 ] * dims[ 1 ] * kind;
+            final Decoder decoder = new Decoder( klb, filePath, dims, blockDims, fileKind, kind );
+            for ( int z0 = 0; z0 < dims[ 2 ]; z0 += decoder.slab ) {
+                final int n = ( int ) Math.min( decoder.slab, dims[ 2 ] - z0 );
+                final ByteBuffer out = decoder.decode( z0, n, range );
+                long position = DATA_OFFSET + z0 * planeBytes;
+                while ( out.hasRemaining() ) {
+                    position += channel.write( out, position );
+                }
+            }
+            if ( normalized ) {
+                // the range is only known once the whole image is decoded
+                final long dataBytes = planeBytes * dims[ 2 ];
+                final long chunkBytes = Math.max( 1, CHUNK_SIZE / planeBytes ) * planeBytes;
+                for ( long offset = 0; offset < dataBytes; offset += chunkBytes ) {
+                    final ByteBuffer chunk = channel.map( FileChannel.MapMode.READ_WRITE, DATA_OFFSET + offset, Math.min( chunkBytes, dataBytes - offset ) );
+                    normalize( chunk.order( ByteOrder.nativeOrder() ), range );
+                }
+            }
+            // the header is written last, so that incomplete files are never used
+            final ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE ).order( ByteOrder.nativeOrder() );
+            header.putLong( 8, dims[ 0 ] ).putLong( 16, dims[ 1 ] ).putLong( 24, dims[ 2 ] );
+            header.putInt( 32, kind ).putFloat( 36, range[ 0 ] ).putFloat( 40, range[ 1 ] ).putInt( 44, normalized ? 1 : 0 );
+            header.putLong( 0, MAGIC );
+            channel.write( header, 0 );
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Checks that file is a complete scratch file of an image of the given
+     * dimensions, kind and normalization and reads its range.
+     */
+    private static boolean readHeader( final File file, final long[] dims, final int kind, final boolean normalized, final float[] range )
+    {
+        if ( !file.isFile() ) {
+            return false;
+        }
+        try {
+            final RandomAccessFile raf = new RandomAccessFile( file, "r" );
+            try {
+                final ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE ).order( ByteOrder.nativeOrder() );
+                raf.getChannel().read( header, 0 );
+                if ( header.getLong( 0 ) != MAGIC || header.getInt( 32 ) != kind || header.getInt( 44 ) != (normalized ? 1 : 0)
+                        || header.getLong( 8 ) != dims[ 0 ] || header.getLong( 16 ) != dims[ 1 ] || header.getLong( 24 ) != dims[ 2 ]
+                        || raf.length() < DATA_OFFSET + dims[ 0 ] * dims[ 1 ] * dims[ 2 ] * kind ) {
+                    return false;
+                }
+                range[ 0 ] = header.getFloat( 36 );
+                range[ 1 ] = header.getFloat( 40 );
+                return true;
+            } finally {
+                raf.close();
+            }
+        } catch ( IOException ex ) {
+            return false;
+        }
+    }
+
+    /**
+     * Normalizes the floats of buffer from range to 0...1.
+     */
+    private static void normalize( final ByteBuffer buffer, final float[] range )
+    {
+        final float min = range[ 0 ];
+        final float scale = ( float ) (1.0 / (range[ 1 ] - min));
+        final FloatBuffer f = buffer.asFloatBuffer();
+        for ( int i = 0; i < f.limit(); ++i ) {
+            f.put( i, (f.get( i ) - min) * scale );
+        }
+    }
+
+    private static void slice( final ByteBuffer chunk, final int planeBytes, final ByteBuffer[] planes, final int z0, final int n )
+    {
+        for ( int z = 0; z < n; ++z ) {
+            chunk.limit( (z + 1) * planeBytes ).position( z * planeBytes );
+            planes[ z0 + z ] = chunk.slice().order( ByteOrder.nativeOrder() );
+        }
+    }
+
+    /**
+     * Deletes least recently accessed scratch files until the budget is
+     * met, never the file named keep. Mapped files stay readable until
+     * their images are garbage collected on systems that allow deleting
+     * open files. Requires the lock.
+     */
+    private void evict( final String keep )
+    {
+        while ( totalBytes > maxSizeInBytes ) {
+            String oldest = null;
+            long oldestAccess = Long.MAX_VALUE;
+            for ( final Map.Entry< String, Usage > e : usage.entrySet() ) {
+                if ( !e.getKey().equals( keep ) && e.getValue().lastAccess < oldestAccess ) {
+                    oldest = e.getKey();
+                    oldestAccess = e.getValue().lastAccess;
+                }
+            }
+            if ( oldest == null ) {
+                return;
+            }
+            totalBytes -= usage.remove( oldest ).bytes;
+            new File( directory, oldest ).delete();
+        }
+    }
+
+    private static String scratchFileName( final String filePath, final long lastModified, final int bytesPerElement, final boolean normalized )
+    {
+        // 64 bit FNV-1a hash of the source path
+        long h = 0xcbf29ce484222325L;
+        for ( int i = 0; i < filePath.length(); ++i ) {
+            h ^= filePath.charAt( i );
+            h *= 0x100000001b3L;
+        }
+        return String.format( "%016x-%x-%d%s%s", h, lastModified, bytesPerElement, normalized ? "n" : "", SUFFIX );
+    }
+
+    private static final class Usage
+    {
+        long bytes;
+        long lastAccess;
+
+        Usage( final long bytes, final long lastAccess )
+        {
+            this.bytes = bytes;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    /**
+     * Decodes z-slabs of a KLB file into a reused heap array and converts
+     * them into a reused direct buffer in the stored representation.
+     */
+    private static final class Decoder
+    {
+        final KLB klb;
+        final String filePath;
+        final long[] dims;
+        final int fileKind, kind, slab;
+        final int planeSize;
+        private Object buffer = null;
+        private ByteBuffer out = null;
+
+        Decoder( final KLB klb, final String filePath, final long[] dims, final int[] blockDims, final int fileKind, final int kind )
+        {
+            this.klb = klb;
+            this.filePath = filePath;
+            this.dims = dims;
+            this.fileKind = fileKind;
+            this.kind = kind;
+            planeSize = ( int ) (dims[ 0 ] * dims[ 1 ]);
+            // slabs of ~64 MB of source data, a multiple of the KLB block depth
+            final int blockDepth = Math.max( 1, blockDims[ 2 ] );
+            final long blocks = Math.max( 1, SLAB_SIZE / (( long ) planeSize * Math.max( fileKind, kind ) * blockDepth) );
+            slab = ( int ) Math.max( 1, Math.min( dims[ 2 ], blocks * blockDepth ) );
+        }
+
+        /**
+         * Decodes planes z0 ... z0 + n - 1 and returns them as a buffer
+         * that is valid until the next call.
+         */
+        ByteBuffer decode( final int z0, final int n, final float[] range )
+                throws IOException
+        {
+            final int numElements = n * planeSize;
+            final long[] min = { 0, 0, z0, 0, 0 };
+            final long[] max = { dims[ 0 ] - 1, dims[ 1 ] - 1, z0 + n - 1, 0, 0 };
+            if ( out == null || out.capacity() < numElements * kind ) {
+                out = ByteBuffer.allocateDirect( slab * planeSize * kind ).order( ByteOrder.nativeOrder() );
+            }
+            out.clear();
+            float lo = range[ 0 ], hi = range[ 1 ];
+            switch ( fileKind ) {
+                case UINT8: {
+                    if ( buffer == null || (( byte[] ) buffer).length != numElements ) {
+                        buffer = new byte[ numElements ];
+                    }
+                    final byte[] a = ( byte[] ) buffer;
+                    klb.readROIinPlace( filePath, min, max, a );
+                    if ( kind == UINT8 ) {
+                        out.put( a, 0, numElements );
+                    }
+                    final FloatBuffer f = kind == FLOAT32 ? out.asFloatBuffer() : null;
+                    for ( int i = 0; i < numElements; ++i ) {
+                        final int v = a[ i ] & 0xff;
+                        if ( f != null ) {
+                            f.put( i, v );
+                        }
+                        lo = Math.min( lo, v );
+                        hi = Math.max( hi, v );
+                    }
+                    break;
+                }
+                case UINT16: {
+                    if ( buffer == null || (( short[] ) buffer).length != numElements ) {
+                        buffer = new short[ numElements ];
+                    }
+                    final short[] a = ( short[] ) buffer;
+                    klb.readROIinPlace( filePath, min, max, a );
+                    if ( kind == UINT16 ) {
+                        out.asShortBuffer().put( a, 0, numElements );
+                    }
+                    final FloatBuffer f = kind == FLOAT32 ? out.asFloatBuffer() : null;
+                    for ( int i = 0; i < numElements; ++i ) {
+                        final int v = a[ i ] & 0xffff;
+                        if ( f != null ) {
+                            f.put( i, v );
+                        }
+                        lo = Math.min( lo, v );
+                        hi = Math.max( hi, v );
+                    }
+                    break;
+                }
+                default: {
+                    if ( buffer == null || (( float[] ) buffer).length != numElements ) {
+                        buffer = new float[ numElements ];
+                    }
+                    final float[] a = ( float[] ) buffer;
+                    klb.readROIinPlace( filePath, min, max, a );
+                    out.asFloatBuffer().put( a, 0, numElements );
+                    for ( int i = 0; i < numElements; ++i ) {
+                        final float v = a[ i ];
+                        if ( v < lo ) {
+                            lo = v;
+                        }
+                        if ( v > hi ) {
+                            hi = v;
+                        }
+                    }
+                }
+            }
+            range[ 0 ] = lo;
+            range[ 1 ] = hi;
+            out.limit( numElements * kind ).position( 0 );
+            return out;
+        }
+    }
+
+    /**
+     * Cells of an image with one cell per plane, all of them loaded.
+     */
+    private static final class PlaneCache< A extends VolatileAccess > implements VolatileImgCells.CellCache< A >
+    {
+        private final VolatileCell< A >[] cells;
+
+        @SuppressWarnings( "unchecked" )
+        PlaneCache( final int[] cellDims, final A[] planes )
+        {
+            cells = new VolatileCell[ planes.length ];
+            for ( int z = 0; z < planes.length; ++z ) {
+                cells[ z ] = new VolatileCell< A >( cellDims, new long[] { 0, 0, z }, planes[ z ] );
+            }
+        }
+
+        @Override
+        public VolatileCell< A > get( final long index )
+        {
+            return cells[ ( int ) index ];
+        }
+
+        @Override
+        public VolatileCell< A > load( final long index, final int[] cellDims, final long[] cellMin )
+        {
+            return cells[ ( int ) index ];
+        }
+
+        @Override
+        public void setCacheHints( final CacheHints cacheHints )
+        {
+        }
+    }
+
+    /**
+     * Plane of a uint8 image backed by a NIO buffer.
+     */
+    static final class BufferByteAccess implements ByteAccess, VolatileAccess
+    {
+        private final ByteBuffer data;
+
+        BufferByteAccess( final ByteBuffer data )
+        {
+            this.data = data;
+        }
+
+        @Override
+        public byte getValue( final int index )
+        {
+            return data.get( index );
+        }
+
+        @Override
+        public void setValue( final int index, final byte value )
+        {
+            data.put( index, value );
+        }
+
+        @Override
+        public boolean isValid()
+        {
+            return true;
+        }
+    }
+
+    /**
+     * Plane of a uint16 image backed by a NIO buffer.
+     */
+    static final class BufferShortAccess implements ShortAccess, VolatileAccess
+    {
+        private final ShortBuffer data;
+
+        BufferShortAccess( final ShortBuffer data )
+        {
+            this.data = data;
+        }
+
+        @Override
+        public short getValue( final int index )
+        {
+            return data.get( index );
+        }
+
+        @Override
+        public void setValue( final int index, final short value )
+        {
+            data.put( index, value );
+        }
+
+        @Override
+        public boolean isValid()
+        {
+            return true;
+        }
+    }
+
+    /**
+     * Plane of a float32 image backed by a NIO buffer.
+     */
+    static final class BufferFloatAccess implements FloatAccess, VolatileAccess
+    {
+        private final FloatBuffer data;
+
+        BufferFloatAccess( final FloatBuffer data )
+        {
+            this.data = data;
+        }
+
+        @Override
+        public float getValue( final int index )
+        {
+            return data.get( index );
+        }
+
+        @Override
+        public void setValue( final int index, final float value )
+        {
+            data.put( index, value );
+        }
+
+        @Override
+        public boolean isValid()
+        {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,472 @@
+package org.janelia.simview.klb.bdv;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide counters and latency histograms of KLB cell loading and
+ * header reads, per ViewSetup and resolution level.
+ * <p>
+ * For every cell the BigDataViewer cache loads, the time in
+ * {@link KlbVolatileArrayLoader#loadArray} is split into decoding (KLB
+ * ROI reads, i.e. disk and decompression) and waiting for batches read
+ * by other fetcher threads; hits of the compressed cell store, the disk
+ * cell cache and the block cache are counted, as are clears of the cell
+ * cache to meet its budget. Many loads with few decodes point at cache
+ * thrash, long decodes with short header reads at decompression rather
+ * than disk.
+ * <p>
+ * The metrics are registered with the platform MBean server as
+ * org.janelia.simview.klb:type=KlbMetrics. Recording is enabled by
+ * default and disabled with -Dklb.metrics=false; -Dklb.metrics.logPeriod
+ * prints a report to standard output every so many seconds.
+ */
+public class KlbMetrics implements KlbMetricsMBean
+{
+    public static final String OBJECT_NAME = "org.janelia.simview.klb:type=KlbMetrics";
+
+    private static final KlbMetrics instance = new KlbMetrics();
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean( instance, new ObjectName( OBJECT_NAME ) );
+        } catch ( Exception ex ) {
+            // e.g. registered by another class loader, metrics remain available through getInstance
+        }
+        final String period = System.getProperty( "klb.metrics.logPeriod" );
+        if ( period != null ) {
+            // a bad value must not fail class initialization, which would break every loader
+            try {
+                instance.startLogging( Long.parseLong( period.trim() ) );
+            } catch ( NumberFormatException ex ) {
+                System.err.println( "Ignoring klb.metrics.logPeriod '" + period + "', expected a number of seconds" );
+            }
+        }
+    }
+
+    private final ConcurrentHashMap< Long, Level > levels = new ConcurrentHashMap< Long, Level >();
+    private final AtomicLong cacheClears = new AtomicLong();
+    private volatile boolean enabled = !"false".equalsIgnoreCase( System.getProperty( "klb.metrics" ) );
+
+    // guarded by this
+    private ScheduledThreadPoolExecutor logger = null;
+    private ScheduledFuture< ? > logging = null;
+
+    public static KlbMetrics getInstance()
+    {
+        return instance;
+    }
+
+    private KlbMetrics()
+    {
+    }
+
+    /**
+     * Metrics of one ViewSetup and resolution level.
+     */
+    public static final class Level
+    {
+        final AtomicLong cellsLoaded = new AtomicLong(), bytesDecoded = new AtomicLong(), reads = new AtomicLong(), blocksRead = new AtomicLong();
+        final AtomicLong failures = new AtomicLong(), missingFiles = new AtomicLong();
+        final AtomicLong storeHits = new AtomicLong(), diskCacheHits = new AtomicLong(), blockCacheHits = new AtomicLong();
+        final AtomicLong headerReads = new AtomicLong(), headerCacheHits = new AtomicLong(), headerFailures = new AtomicLong();
+        final KlbLatencyHistogram load = new KlbLatencyHistogram(), decode = new KlbLatencyHistogram(), wait = new KlbLatencyHistogram(), header = new KlbLatencyHistogram();
+
+        public long getCellsLoaded()
+        {
+            return cellsLoaded.get();
+        }
+
+        public long getBytesDecoded()
+        {
+            return bytesDecoded.get();
+        }
+
+        /**
+         * Returns the number of KLB ROI reads.
+         */
+        public long getReads()
+        {
+            return reads.get();
+        }
+
+        /**
+         * Returns the number of KLB blocks decoded by block-aligned reads.
+         */
+        public long getBlocksRead()
+        {
+            return blocksRead.get();
+        }
+
+        /**
+         * Returns the number of failed reads of existing files.
+         */
+        public long getFailures()
+        {
+            return failures.get();
+        }
+
+        public long getMissingFiles()
+        {
+            return missingFiles.get();
+        }
+
+        public long getStoreHits()
+        {
+            return storeHits.get();
+        }
+
+        public long getDiskCacheHits()
+        {
+            return diskCacheHits.get();
+        }
+
+        public long getBlockCacheHits()
+        {
+            return blockCacheHits.get();
+        }
+
+        /**
+         * Returns the number of headers read from disk.
+         */
+        public long getHeaderReads()
+        {
+            return headerReads.get();
+        }
+
+        /**
+         * Returns the number of headers served by the header cache or the
+         * dataset index.
+         */
+        public long getHeaderCacheHits()
+        {
+            return headerCacheHits.get();
+        }
+
+        public long getHeaderFailures()
+        {
+            return headerFailures.get();
+        }
+
+        /**
+         * Returns the histogram of the total time per loaded cell.
+         */
+        public KlbLatencyHistogram getLoadLatency()
+        {
+            return load;
+        }
+
+        /**
+         * Returns the histogram of the time per KLB ROI read.
+         */
+        public KlbLatencyHistogram getDecodeLatency()
+        {
+            return decode;
+        }
+
+        /**
+         * Returns the histogram of the time spent waiting for batches read
+         * by other threads.
+         */
+        public KlbLatencyHistogram getWaitLatency()
+        {
+            return wait;
+        }
+
+        /**
+         * Returns the histogram of the time per header read from disk.
+         */
+        public KlbLatencyHistogram getHeaderLatency()
+        {
+            return header;
+        }
+
+        /**
+         * Records a KLB ROI read of bytes that took nanos, covering
+         * numBlocks KLB blocks if known (0 otherwise).
+         */
+        void recordRead( final long bytes, final long numBlocks, final long nanos )
+        {
+            reads.incrementAndGet();
+            bytesDecoded.addAndGet( bytes );
+            blocksRead.addAndGet( numBlocks );
+            decode.record( nanos );
+        }
+
+        void add( final Level other )
+        {
+            cellsLoaded.addAndGet( other.cellsLoaded.get() );
+            bytesDecoded.addAndGet( other.bytesDecoded.get() );
+            reads.addAndGet( other.reads.get() );
+            blocksRead.addAndGet( other.blocksRead.get() );
+            failures.addAndGet( other.failures.get() );
+            missingFiles.addAndGet( other.missingFiles.get() );
+            storeHits.addAndGet( other.storeHits.get() );
+            diskCacheHits.addAndGet( other.diskCacheHits.get() );
+            blockCacheHits.addAndGet( other.blockCacheHits.get() );
+            headerReads.addAndGet( other.headerReads.get() );
+            headerCacheHits.addAndGet( other.headerCacheHits.get() );
+            headerFailures.addAndGet( other.headerFailures.get() );
+            load.add( other.load );
+            decode.add( other.decode );
+            wait.add( other.wait );
+            header.add( other.header );
+        }
+
+        String format()
+        {
+            return String.format( "cells %d, decoded %d MB in %d reads (%d blocks), hits store %d / disk %d / blocks %d, failed %d, missing %d, "
+                            + "load %.2f / %.2f ms, decode %.2f / %.2f ms, wait %.2f / %.2f ms (mean / p99), headers %d read (%.2f ms), %d cached",
+                    cellsLoaded.get(), bytesDecoded.get() >> 20, reads.get(), blocksRead.get(),
+                    storeHits.get(), diskCacheHits.get(), blockCacheHits.get(), failures.get(), missingFiles.get(),
+                    load.getMeanNanos() / 1e6, load.getPercentileNanos( 99 ) / 1e6,
+                    decode.getMeanNanos() / 1e6, decode.getPercentileNanos( 99 ) / 1e6,
+                    wait.getMeanNanos() / 1e6, wait.getPercentileNanos( 99 ) / 1e6,
+                    headerReads.get(), header.getMeanNanos() / 1e6, headerCacheHits.get() );
+        }
+
+        void reset()
+        {
+            for ( final AtomicLong c : new AtomicLong[]{ cellsLoaded, bytesDecoded, reads, blocksRead, failures, missingFiles,
+                    storeHits, diskCacheHits, blockCacheHits, headerReads, headerCacheHits, headerFailures } ) {
+                c.set( 0 );
+            }
+            load.reset();
+            decode.reset();
+            wait.reset();
+            header.reset();
+        }
+    }
+
+    /**
+     * Returns the metrics of a ViewSetup and level, or null if recording
+     * is disabled.
+     */
+    public Level get( final int viewSetup, final int level )
+    {
+        if ( !enabled ) {
+            return null;
+        }
+        final Long key = (( long ) viewSetup << 32) | (level & 0xffffffffL);
+        Level m = levels.get( key );
+        if ( m == null ) {
+            final Level created = new Level();
+            m = levels.putIfAbsent( key, created );
+            if ( m == null ) {
+                m = created;
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Returns the totals over all ViewSetups and levels.
+     */
+    public Level getTotal()
+    {
+        final Level total = new Level();
+        for ( final Level m : levels.values() ) {
+            total.add( m );
+        }
+        return total;
+    }
+
+    void recordCacheClear()
+    {
+        if ( enabled ) {
+            cacheClears.incrementAndGet();
+        }
+    }
+
+    @Override
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled( final boolean enabled )
+    {
+        this.enabled = enabled;
+    }
+
+    @Override
+    public long getCellsLoaded()
+    {
+        return getTotal().getCellsLoaded();
+    }
+
+    @Override
+    public long getBytesDecoded()
+    {
+        return getTotal().getBytesDecoded();
+    }
+
+    @Override
+    public long getReads()
+    {
+        return getTotal().getReads();
+    }
+
+    @Override
+    public long getBlocksRead()
+    {
+        return getTotal().getBlocksRead();
+    }
+
+    @Override
+    public long getFailures()
+    {
+        return getTotal().getFailures();
+    }
+
+    @Override
+    public long getMissingFiles()
+    {
+        return getTotal().getMissingFiles();
+    }
+
+    @Override
+    public long getStoreHits()
+    {
+        return getTotal().getStoreHits();
+    }
+
+    @Override
+    public long getDiskCacheHits()
+    {
+        return getTotal().getDiskCacheHits();
+    }
+
+    @Override
+    public long getBlockCacheHits()
+    {
+        return getTotal().getBlockCacheHits();
+    }
+
+    @Override
+    public long getCacheClears()
+    {
+        return cacheClears.get();
+    }
+
+    @Override
+    public long getHeaderReads()
+    {
+        return getTotal().getHeaderReads();
+    }
+
+    @Override
+    public long getHeaderCacheHits()
+    {
+        return getTotal().getHeaderCacheHits();
+    }
+
+    @Override
+    public double getMeanLoadMillis()
+    {
+        return getTotal().load.getMeanNanos() / 1e6;
+    }
+
+    @Override
+    public double getP99LoadMillis()
+    {
+        return getTotal().load.getPercentileNanos( 99 ) / 1e6;
+    }
+
+    @Override
+    public double getMeanDecodeMillis()
+    {
+        return getTotal().decode.getMeanNanos() / 1e6;
+    }
+
+    @Override
+    public double getP99DecodeMillis()
+    {
+        return getTotal().decode.getPercentileNanos( 99 ) / 1e6;
+    }
+
+    @Override
+    public double getMeanWaitMillis()
+    {
+        return getTotal().wait.getMeanNanos() / 1e6;
+    }
+
+    @Override
+    public double getP99WaitMillis()
+    {
+        return getTotal().wait.getPercentileNanos( 99 ) / 1e6;
+    }
+
+    @Override
+    public double getMeanHeaderReadMillis()
+    {
+        return getTotal().header.getMeanNanos() / 1e6;
+    }
+
+    @Override
+    public String report()
+    {
+        final StringBuilder sb = new StringBuilder();
+        sb.append( "KLB metrics: " ).append( getTotal().format() ).append( ", cache clears " ).append( cacheClears.get() ).append( '\n' );
+        for ( final Map.Entry< Long, Level > e : new TreeMap< Long, Level >( levels ).entrySet() ) {
+            sb.append( String.format( "  setup %d level %d: ", e.getKey() >> 32, e.getKey() & 0xffffffffL ) ).append( e.getValue().format() ).append( '\n' );
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void reset()
+    {
+        for ( final Level m : levels.values() ) {
+            m.reset();
+        }
+        cacheClears.set( 0 );
+    }
+
+    @Override
+    public synchronized void startLogging( final long periodSeconds )
+    {
+        stopLogging();
+        if ( periodSeconds <= 0 ) {
+            return;
+        }
+        if ( logger == null ) {
+            logger = new ScheduledThreadPoolExecutor( 1, new ThreadFactory()
+            {
+                @Override
+                public Thread newThread( final Runnable r )
+                {
+                    final Thread thread = new Thread( r, "klb-metrics" );
+                    thread.setDaemon( true );
+                    return thread;
+                }
+            } );
+        }
+        logging = logger.scheduleAtFixedRate( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                System.out.print( report() );
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS );
+    }
+
+    @Override
+    public synchronized void stopLogging()
+    {
+        if ( logging != null ) {
+            logging.cancel( false );
+            logging = null;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package org.janelia.simview.klb.bdv;
+
+/**
+ * JMX view of {@link KlbMetrics}, totals over all ViewSetups and
+ * resolution levels. Latencies are in milliseconds.
+ */
+public interface KlbMetricsMBean
+{
+    boolean isEnabled();
+
+    void setEnabled( boolean enabled );
+
+    long getCellsLoaded();
+
+    long getBytesDecoded();
+
+    long getReads();
+
+    long getBlocksRead();
+
+    long getFailures();
+
+    long getMissingFiles();
+
+    long getStoreHits();
+
+    long getDiskCacheHits();
+
+    long getBlockCacheHits();
+
+    long getCacheClears();
+
+    long getHeaderReads();
+
+    long getHeaderCacheHits();
+
+    double getMeanLoadMillis();
+
+    double getP99LoadMillis();
+
+    double getMeanDecodeMillis();
+
+    double getP99DecodeMillis();
+
+    double getMeanWaitMillis();
+
+    double getP99WaitMillis();
+
+    double getMeanHeaderReadMillis();
+
+    /**
+     * Returns one line per ViewSetup and level.
+     */
+    String report();
+
+    void reset();
+
+    /**
+     * Prints the report every periodSeconds, 0 to stop.
+     */
+    void startLogging( long periodSeconds );
+
+    void stopLogging();
+}
@@ -0,0 +1,336 @@
+package org.janelia.simview.klb.bdv;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Downsamples array backed 3D images (uint8, uint16, float32) by
+ * integer factors with a {@link KlbDownsamplingKernel}. The mean is
+ * computed as bdv.export.Downsample does.
+ * <p>
+ * The planes of the output are split into chunks that are processed
+ * in parallel on a shared executor. Every output row is computed from
+ * the input rows of its blocks, which are copied into an int[] (uint8,
+ * uint16) or float[] (float32) row buffer, with tight loops per kernel.
+ */
+class KlbParallelDownsampler
+{
+    private final ExecutorService executor;
+    private final int numTasks;
+
+    /**
+     * @param executor executor shared by all downsampling, must not run the calling thread's tasks
+     * @param numTasks number of chunks the output is split into
+     */
+    KlbParallelDownsampler( final ExecutorService executor, final int numTasks )
+    {
+        this.executor = executor;
+        this.numTasks = Math.max( 1, numTasks );
+    }
+
+    /**
+     * Downsamples input into output, whose dimensions must be those of
+     * input divided by factors (rounded down). Returns false, without
+     * touching output, if input or output is not an array backed image
+     * of a supported type.
+     */
+    boolean downsample( final RandomAccessibleInterval< ? > input, final Img< ? > output, final int[] factors, final KlbDownsamplingKernel kernel )
+            throws InterruptedException
+    {
+        if ( !(input instanceof Img) || input.numDimensions() != 3 || output.numDimensions() != 3 ) {
+            return false;
+        }
+        final Object in = KlbArrayWriter.getStorageArray( ( Img< ? > ) input );
+        final Object out = KlbArrayWriter.getStorageArray( output );
+        if ( in == null || out == null || in.getClass() != out.getClass() ) {
+            return false;
+        }
+        if ( !(in instanceof byte[] || in instanceof short[] || in instanceof float[]) ) {
+            return false;
+        }
+
+        final int[] inDims = { ( int ) input.dimension( 0 ), ( int ) input.dimension( 1 ), ( int ) input.dimension( 2 ) };
+        final int[] outDims = { ( int ) output.dimension( 0 ), ( int ) output.dimension( 1 ), ( int ) output.dimension( 2 ) };
+        final int n = Math.min( numTasks, outDims[ 2 ] );
+        final List< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+        for ( int i = 0; i < n; ++i ) {
+            final int z0 = ( int ) (( long ) outDims[ 2 ] * i / n);
+            final int z1 = ( int ) (( long ) outDims[ 2 ] * (i + 1) / n);
+            tasks.add( new Callable< Void >()
+            {
+                @Override
+                public Void call()
+                {
+                    if ( in instanceof float[] ) {
+                        downsample( ( float[] ) in, ( float[] ) out, inDims, outDims, factors, kernel, z0, z1 );
+                    } else {
+                        downsample( in, out, inDims, outDims, factors, kernel, z0, z1 );
+                    }
+                    return null;
+                }
+            } );
+        }
+        for ( final Future< Void > future : executor.invokeAll( tasks ) ) {
+            try {
+                future.get();
+            } catch ( ExecutionException e ) {
+                throw new RuntimeException( e.getCause() );
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Downsamples any 3D image with a kernel, voxel by voxel on the
+     * calling thread.
+     */
+    static < T extends RealType< T > > void downsampleGeneric( final RandomAccessibleInterval< T > input, final RandomAccessibleInterval< T > output, final int[] factors, final KlbDownsamplingKernel kernel )
+    {
+        final double[] samples = new double[ factors[ 0 ] * factors[ 1 ] * factors[ 2 ] ];
+        final long[] min = new long[ 3 ], pos = new long[ 3 ];
+        input.min( min );
+        final RandomAccess< T > in = input.randomAccess();
+        final Cursor< T > out = Views.flatIterable( output ).localizingCursor();
+        while ( out.hasNext() ) {
+            out.fwd();
+            out.localize( pos );
+            int k = 0;
+            for ( int kz = 0; kz < factors[ 2 ]; ++kz ) {
+                for ( int ky = 0; ky < factors[ 1 ]; ++ky ) {
+                    in.setPosition( min[ 0 ] + pos[ 0 ] * factors[ 0 ], 0 );
+                    in.setPosition( min[ 1 ] + pos[ 1 ] * factors[ 1 ] + ky, 1 );
+                    in.setPosition( min[ 2 ] + pos[ 2 ] * factors[ 2 ] + kz, 2 );
+                    for ( int kx = 0; kx < factors[ 0 ]; ++kx ) {
+                        samples[ k++ ] = in.get().getRealDouble();
+                        in.fwd( 0 );
+                    }
+                }
+            }
+            out.get().setReal( kernel.aggregate( samples, factors ) );
+        }
+    }
+
+    /**
+     * Integer (uint8 or uint16) path.
+     */
+    private static void downsample( final Object in, final Object out, final int[] inDims, final int[] outDims, final int[] f, final KlbDownsamplingKernel kernel, final int z0, final int z1 )
+    {
+        final int iw = inDims[ 0 ], ih = inDims[ 1 ], ow = outDims[ 0 ], oh = outDims[ 1 ];
+        final int fx = f[ 0 ], rowLength = ow * fx, blockSize = fx * f[ 1 ] * f[ 2 ];
+        final long n = blockSize;
+        final int[] row = new int[ rowLength ];
+        final int[] result = new int[ ow ];
+        final long[] sums = kernel == KlbDownsamplingKernel.MEAN ? new long[ ow ] : null;
+        final int[] samples = kernel == KlbDownsamplingKernel.MODE ? new int[ ow * blockSize ] : null;
+        for ( int oz = z0; oz < z1; ++oz ) {
+            for ( int oy = 0; oy < oh; ++oy ) {
+                if ( kernel == KlbDownsamplingKernel.SUBSAMPLE ) {
+                    final int i = ((oz * f[ 2 ] + f[ 2 ] / 2) * ih + oy * f[ 1 ] + f[ 1 ] / 2) * iw;
+                    readRow( in, i, row );
+                    for ( int ox = 0, x = fx / 2; ox < ow; ++ox, x += fx ) {
+                        result[ ox ] = row[ x ];
+                    }
+                    writeRow( result, out, (oz * oh + oy) * ow );
+                    continue;
+                }
+                switch ( kernel ) {
+                    case MEAN:
+                        Arrays.fill( sums, 0 );
+                        break;
+                    case MAX:
+                        Arrays.fill( result, Integer.MIN_VALUE );
+                        break;
+                    case MIN:
+                        Arrays.fill( result, Integer.MAX_VALUE );
+                        break;
+                    default:
+                }
+                int k = 0;
+                for ( int kz = 0; kz < f[ 2 ]; ++kz ) {
+                    for ( int ky = 0; ky < f[ 1 ]; ++ky ) {
+                        readRow( in, ((oz * f[ 2 ] + kz) * ih + oy * f[ 1 ] + ky) * iw, row );
+                        int x = 0;
+                        switch ( kernel ) {
+                            case MEAN:
+                                for ( int ox = 0; ox < ow; ++ox ) {
+                                    long s = 0;
+                                    for ( int kx = 0; kx < fx; ++kx ) {
+                                        s += row[ x++ ];
+                                    }
+                                    sums[ ox ] += s;
+                                }
+                                break;
+                            case MAX:
+                                for ( int ox = 0; ox < ow; ++ox ) {
+                                    int m = result[ ox ];
+                                    for ( int kx = 0; kx < fx; ++kx ) {
+                                        m = Math.max( m, row[ x++ ] );
+                                    }
+                                    result[ ox ] = m;
+                                }
+                                break;
+                            case MIN:
+                                for ( int ox = 0; ox < ow; ++ox ) {
+                                    int m = result[ ox ];
+                                    for ( int kx = 0; kx < fx; ++kx ) {
+                                        m = Math.min( m, row[ x++ ] );
+                                    }
+                                    result[ ox ] = m;
+                                }
+                                break;
+                            default:
+                                // MODE: collect the samples of every block
+                                for ( int ox = 0; ox < ow; ++ox ) {
+                                    System.arraycopy( row, x, samples, ox * blockSize + k, fx );
+                                    x += fx;
+                                }
+                        }
+                        k += fx;
+                    }
+                }
+                if ( kernel == KlbDownsamplingKernel.MEAN ) {
+                    for ( int ox = 0; ox < ow; ++ox ) {
+                        // round half up
+                        result[ ox ] = ( int ) ((2 * sums[ ox ] + n) / (2 * n));
+                    }
+                } else if ( kernel == KlbDownsamplingKernel.MODE ) {
+                    for ( int ox = 0; ox < ow; ++ox ) {
+                        result[ ox ] = KlbDownsamplingKernel.mode( samples, ox * blockSize, (ox + 1) * blockSize );
+                    }
+                }
+                writeRow( result, out, (oz * oh + oy) * ow );
+            }
+        }
+    }
+
+    /**
+     * float32 path.
+     */
+    private static void downsample( final float[] in, final float[] out, final int[] inDims, final int[] outDims, final int[] f, final KlbDownsamplingKernel kernel, final int z0, final int z1 )
+    {
+        final int iw = inDims[ 0 ], ih = inDims[ 1 ], ow = outDims[ 0 ], oh = outDims[ 1 ];
+        final int fx = f[ 0 ], blockSize = fx * f[ 1 ] * f[ 2 ];
+        final double scale = 1.0 / blockSize;
+        final double[] sums = kernel == KlbDownsamplingKernel.MEAN ? new double[ ow ] : null;
+        final float[] samples = kernel == KlbDownsamplingKernel.MODE ? new float[ ow * blockSize ] : null;
+        for ( int oz = z0; oz < z1; ++oz ) {
+            for ( int oy = 0; oy < oh; ++oy ) {
+                final int o = (oz * oh + oy) * ow;
+                if ( kernel == KlbDownsamplingKernel.SUBSAMPLE ) {
+                    final int i = ((oz * f[ 2 ] + f[ 2 ] / 2) * ih + oy * f[ 1 ] + f[ 1 ] / 2) * iw + fx / 2;
+                    for ( int ox = 0; ox < ow; ++ox ) {
+                        out[ o + ox ] = in[ i + ox * fx ];
+                    }
+                    continue;
+                }
+                switch ( kernel ) {
+                    case MEAN:
+                        Arrays.fill( sums, 0 );
+                        break;
+                    case MAX:
+                        Arrays.fill( out, o, o + ow, Float.NEGATIVE_INFINITY );
+                        break;
+                    case MIN:
+                        Arrays.fill( out, o, o + ow, Float.POSITIVE_INFINITY );
+                        break;
+                    default:
+                }
+                int k = 0;
+                for ( int kz = 0; kz < f[ 2 ]; ++kz ) {
+                    for ( int ky = 0; ky < f[ 1 ]; ++ky ) {
+                        int i = ((oz * f[ 2 ] + kz) * ih + oy * f[ 1 ] + ky) * iw;
+                        switch ( kernel ) {
+                            case MEAN:
+                                for ( int ox = 0; ox < ow; ++ox ) {
+                                    double s = 0;
+                                    for ( int kx = 0; kx < fx; ++kx ) {
+                                        s += in[ i++ ];
+                                    }
+                                    sums[ ox ] += s;
+                                }
+                                break;
+                            case MAX:
+                                for ( int ox = 0; ox < ow; ++ox ) {
+                                    float m = out[ o + ox ];
+                                    for ( int kx = 0; kx < fx; ++kx ) {
+                                        m = Math.max( m, in[ i++ ] );
+                                    }
+                                    out[ o + ox ] = m;
+                                }
+                                break;
+                            case MIN:
+                                for ( int ox = 0; ox < ow; ++ox ) {
+                                    float m = out[ o + ox ];
+                                    for ( int kx = 0; kx < fx; ++kx ) {
+                                        m = Math.min( m, in[ i++ ] );
+                                    }
+                                    out[ o + ox ] = m;
+                                }
+                                break;
+                            default:
+                                for ( int ox = 0; ox < ow; ++ox ) {
+                                    System.arraycopy( in, i, samples, ox * blockSize + k, fx );
+                                    i += fx;
+                                }
+                        }
+                        k += fx;
+                    }
+                }
+                if ( kernel == KlbDownsamplingKernel.MEAN ) {
+                    for ( int ox = 0; ox < ow; ++ox ) {
+                        out[ o + ox ] = ( float ) (sums[ ox ] * scale);
+                    }
+                } else if ( kernel == KlbDownsamplingKernel.MODE ) {
+                    for ( int ox = 0; ox < ow; ++ox ) {
+                        out[ o + ox ] = KlbDownsamplingKernel.mode( samples, ox * blockSize, (ox + 1) * blockSize );
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies row.length unsigned values of in, starting at offset, into row.
+     */
+    private static void readRow( final Object in, final int offset, final int[] row )
+    {
+        if ( in instanceof byte[] ) {
+            final byte[] a = ( byte[] ) in;
+            for ( int x = 0; x < row.length; ++x ) {
+                row[ x ] = a[ offset + x ] & 0xff;
+            }
+        } else {
+            final short[] a = ( short[] ) in;
+            for ( int x = 0; x < row.length; ++x ) {
+                row[ x ] = a[ offset + x ] & 0xffff;
+            }
+        }
+    }
+
+    private static void writeRow( final int[] row, final Object out, final int offset )
+    {
+        if ( out instanceof byte[] ) {
+            final byte[] a = ( byte[] ) out;
+            for ( int x = 0; x < row.length; ++x ) {
+                a[ offset + x ] = ( byte ) row[ x ];
+            }
+        } else {
+            final short[] a = ( short[] ) out;
+            for ( int x = 0; x < row.length; ++x ) {
+                a[ offset + x ] = ( short ) row[ x ];
+            }
+        }
+    }
+}
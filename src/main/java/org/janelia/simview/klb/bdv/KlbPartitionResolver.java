@@ -7,6 +7,7 @@ import org.janelia.simview.klb.jni.KlbImageIO;
 import org.janelia.simview.klb.jni.KlbRoi;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -31,6 +32,11 @@ import java.util.regex.Pattern;
  * ROI dimensions.
  * <p>
  * Uses a user-defined path name tag pattern.
+ * <p>
+ * File headers are cached per time point, ViewSetup and level in a
+ * bounded cache, so that repeated metadata queries for the same file
+ * do not hit the file system. Optionally, cached headers are validated
+ * against the file's modification time and size.
  */
 public class KlbPartitionResolver< T extends RealType< T > & NativeType< T > >
 {
@@ -43,6 +49,19 @@ public class KlbPartitionResolver< T extends RealType< T > & NativeType< T > >
     private int firstTimePoint = 0, lastTimePoint = 0;
     private int numResolutionLevels = 1;
     private final KLB klb = KLB.newInstance();
+    private final KlbHeaderCache headerCache = new KlbHeaderCache( 4096 );
+    private volatile boolean validateCachedHeaders = false;
+    private volatile KlbDatasetIndex index = null;
+    private KlbFilePathTemplate[] pathTemplates;
+    private volatile FilePathMemo[] filePathMemo = new FilePathMemo[ 1024 ];
+    private final ThreadLocal< StringBuilder > filePathBuilders = new ThreadLocal< StringBuilder >()
+    {
+        @Override
+        protected StringBuilder initialValue()
+        {
+            return new StringBuilder( 256 );
+        }
+    };
 
     /**
      * Constructs a KlbPartitionResolver from a file system path following
@@ -162,6 +181,7 @@ public class KlbPartitionResolver< T extends RealType< T > & NativeType< T > >
             channelNames[ setup ] = channelName;
             illuminationNames[ setup ] = illuminationName;
         }
+        compileFilePathTemplates();
     }
 
     public KlbPartitionResolver( final String[] viewSetupTemplates, final String timeTag, final int firstTimePoint, final int lastTimePoint, final String resolutionLevelTag, final int numResolutionLevels )
@@ -184,6 +204,26 @@ public class KlbPartitionResolver< T extends RealType< T > & NativeType< T > >
                 break;
             }
         }
+        compileFilePathTemplates();
+    }
+
+    private void compileFilePathTemplates()
+    {
+        pathTemplates = new KlbFilePathTemplate[ viewSetupTemplates.length ];
+        for ( int setup = 0; setup < pathTemplates.length; ++setup ) {
+            pathTemplates[ setup ] = new KlbFilePathTemplate( viewSetupTemplates[ setup ], timeTag, timeMatch, resLvlTag, resLvlMatch );
+        }
+    }
+
+    /**
+     * Sets the number of recently built file paths that are memoized.
+     * 0 disables memoization.
+     *
+     * @param size number of memo table slots
+     */
+    public void setFilePathMemoSize( final int size )
+    {
+        filePathMemo = size > 0 ? new FilePathMemo[ size ] : null;
     }
 
     public void specifySampling( final double[][] sampling )
@@ -201,11 +241,128 @@ public class KlbPartitionResolver< T extends RealType< T > & NativeType< T > >
         return new File( viewSetupTemplates[ viewSetup ] ).getName().replace( ".klb", "" );
     }
 
+    /**
+     * Sets the maximum number of file headers kept in memory.
+     *
+     * @param capacity maximum number of cached headers
+     */
+    public void setHeaderCacheCapacity( final int capacity )
+    {
+        headerCache.setCapacity( capacity );
+    }
+
+    public int getHeaderCacheCapacity()
+    {
+        return headerCache.getCapacity();
+    }
+
+    /**
+     * If enabled, a cached header is only used if the file's modification
+     * time and size have not changed since the header was read. This costs
+     * one file system query per lookup, but picks up files that are
+     * rewritten while the dataset is open (e.g. new resolution levels).
+     *
+     * @param validate whether or not to validate cached headers
+     */
+    public void setValidateCachedHeaders( final boolean validate )
+    {
+        validateCachedHeaders = validate;
+    }
+
+    public boolean getValidateCachedHeaders()
+    {
+        return validateCachedHeaders;
+    }
+
+    /**
+     * Sets a dataset index to look up file headers from before probing
+     * the file system. Headers of files recorded as present are taken
+     * from the index if the file's size and modification time still
+     * match, and probed otherwise; files recorded as missing are checked
+     * for existence on access.
+     *
+     * @param index dataset index, or null to disable
+     */
+    public void setIndex( final KlbDatasetIndex index )
+    {
+        this.index = index;
+    }
+
+    public KlbDatasetIndex getIndex()
+    {
+        return index;
+    }
+
+    /**
+     * Discards all cached file headers.
+     */
+    public void clearHeaderCache()
+    {
+        headerCache.clear();
+    }
+
+    /**
+     * Returns the header of the file defined by time point, ViewSetup
+     * index and level, reading it from disk only if it is neither cached
+     * nor current in the dataset index (or stale in the cache, if
+     * validation is enabled).
+     *
+     * @param timePoint time point
+     * @param viewSetup ViewSetup index
+     * @param level     resolution level
+     * @return file header
+     * @throws IOException if the file cannot be read
+     */
+    protected KlbFileHeader readHeader( final int timePoint, final int viewSetup, final int level ) throws IOException
+    {
+        final String filePath = getFilePath( timePoint, viewSetup, level );
+        final KlbMetrics.Level m = KlbMetrics.getInstance().get( viewSetup, level );
+        KlbFileHeader header = headerCache.get( timePoint, viewSetup, level );
+        if ( header != null && (!validateCachedHeaders || header.isCurrent( new File( filePath ) )) ) {
+            if ( m != null ) {
+                m.headerCacheHits.incrementAndGet();
+            }
+            return header;
+        }
+        final KlbDatasetIndex index = this.index;
+        if ( index != null ) {
+            header = index.getHeader( timePoint, viewSetup, level );
+            // once per file, the header is cached afterwards
+            if ( header != null && header.isCurrent( new File( filePath ) ) ) {
+                headerCache.put( timePoint, viewSetup, level, header );
+                if ( m != null ) {
+                    m.headerCacheHits.incrementAndGet();
+                }
+                return header;
+            }
+            if ( header == null && index.isMissing( timePoint, viewSetup, level ) && !new File( filePath ).exists() ) {
+                if ( m != null ) {
+                    m.missingFiles.incrementAndGet();
+                }
+                throw new FileNotFoundException( filePath );
+            }
+        }
+        final long start = System.nanoTime();
+        try {
+            header = new KlbFileHeader( klb.readHeader( filePath ), new File( filePath ) );
+        } catch ( IOException ex ) {
+            if ( m != null ) {
+                (new File( filePath ).exists() ? m.headerFailures : m.missingFiles).incrementAndGet();
+            }
+            throw ex;
+        }
+        if ( m != null ) {
+            m.headerReads.incrementAndGet();
+            m.header.record( System.nanoTime() - start );
+        }
+        headerCache.put( timePoint, viewSetup, level, header );
+        return header;
+    }
+
     public T getViewSetupImageType( final int viewSetup )
     {
-        final String fp = getFilePath( getFirstTimePoint(), viewSetup, 0 );
         try {
-            return ( T ) klb.readHeader( fp ).dataType;
+            return ( T ) readHeader( getFirstTimePoint(), viewSetup, 0 ).dataType;
         } catch ( IOException e ) {
             e.printStackTrace();
         }
@@ -290,13 +447,14 @@ public class KlbPartitionResolver< T extends RealType< T > & NativeType< T > >
      */
     public boolean getImageDimensions( final int timePoint, final int viewSetup, final int level, final long[] out )
     {
-        final String filePath = getFilePath( timePoint, viewSetup, level );
         try {
-            final long[] dims = klb.readHeader( filePath ).imageSize;
+            final long[] dims = readHeader( timePoint, viewSetup, level ).imageSize;
             out[ 0 ] = dims[ 0 ];
             out[ 1 ] = dims[ 1 ];
             out[ 2 ] = dims[ 2 ];
             return true;
+        } catch ( FileNotFoundException e ) {
+            return false;
         } catch ( IOException e ) {
             e.printStackTrace();
             return false;
@@ -316,13 +474,14 @@ public class KlbPartitionResolver< T extends RealType< T > & NativeType< T > >
      */
     public boolean getBlockDimensions( final int timePoint, final int viewSetup, final int level, final int[] out )
     {
-        final String filePath = getFilePath( timePoint, viewSetup, level );
         try {
-            final long[] dims = klb.readHeader( filePath ).blockSize;
-            out[ 0 ] = ( int ) dims[ 0 ];
-            out[ 1 ] = ( int ) dims[ 1 ];
-            out[ 2 ] = ( int ) dims[ 2 ];
+            final int[] dims = readHeader( timePoint, viewSetup, level ).blockSize;
+            out[ 0 ] = dims[ 0 ];
+            out[ 1 ] = dims[ 1 ];
+            out[ 2 ] = dims[ 2 ];
             return true;
+        } catch ( FileNotFoundException e ) {
+            return false;
         } catch ( IOException e ) {
             e.printStackTrace();
             return false;
@@ -348,13 +507,14 @@ public class KlbPartitionResolver< T extends RealType< T > & NativeType< T > >
             out[ 2 ] = sampling[ level ][ 2 ];
             return true;
         }
-        final String filePath = getFilePath( timePoint, viewSetup, level );
         try {
-            final float[] smpl = klb.readHeader( filePath ).pixelSpacing;
+            final float[] smpl = readHeader( timePoint, viewSetup, level ).pixelSpacing;
             out[ 0 ] = smpl[ 0 ];
             out[ 1 ] = smpl[ 1 ];
             out[ 2 ] = smpl[ 2 ];
             return true;
+        } catch ( FileNotFoundException e ) {
+            return false;
         } catch ( IOException e ) {
             e.printStackTrace();
             return false;
@@ -388,20 +548,40 @@ public class KlbPartitionResolver< T extends RealType< T > & NativeType< T > >
 
     protected String getFilePath( final int timePoint, final int viewSetup, final int level )
     {
-        String fn = viewSetupTemplates[ viewSetup ];
-        if ( timeMatch != null ) {
-            fn = fn.replaceAll( timeMatch, String.format( timeFormat, timePoint ) );
+        final FilePathMemo[] memo = filePathMemo;
+        int slot = 0;
+        if ( memo != null ) {
+            slot = ((timePoint * 31 + viewSetup) * 31 + level) & 0x7fffffff;
+            slot %= memo.length;
+            final FilePathMemo entry = memo[ slot ];
+            if ( entry != null && entry.timePoint == timePoint && entry.viewSetup == viewSetup && entry.level == level ) {
+                return entry.filePath;
+            }
         }
 
-        if ( level == 0 && resLvlMatch != null ) {
-            fn = fn.replace( "." + resLvlMatch, "" );
-        } else if ( level > 0 ) {
-            if ( resLvlMatch == null ) {
-                fn = fn.substring( 0, fn.lastIndexOf( ".klb" ) ) + String.format( ".RESLVL%d.klb", level );
-            } else {
-                fn = fn.replaceAll( resLvlMatch, String.format( resLvlFormat, level ) );
-            }
+        final StringBuilder sb = filePathBuilders.get();
+        sb.setLength( 0 );
+        pathTemplates[ viewSetup ].build( timePoint, level, sb );
+        final String filePath = sb.toString();
+
+        if ( memo != null ) {
+            // entries are immutable, a racing write only loses a memo entry
+            memo[ slot ] = new FilePathMemo( timePoint, viewSetup, level, filePath );
+        }
+        return filePath;
+    }
+
+    private static final class FilePathMemo
+    {
+        final int timePoint, viewSetup, level;
+        final String filePath;
+
+        FilePathMemo( final int timePoint, final int viewSetup, final int level, final String filePath )
+        {
+            this.timePoint = timePoint;
+            this.viewSetup = viewSetup;
+            this.level = level;
+            this.filePath = filePath;
         }
-        return fn;
     }
 }
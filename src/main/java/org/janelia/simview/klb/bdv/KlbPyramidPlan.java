@@ -0,0 +1,379 @@
+package org.janelia.simview.klb.bdv;
+
+import bdv.export.ProposeMipmaps;
+import mpicbg.spim.data.XmlHelpers;
+import mpicbg.spim.data.generic.sequence.BasicViewSetup;
+import org.jdom2.Element;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Configurable {@link KlbPyramidPlanner}.
+ * <p>
+ * Resolution levels are either given explicitly as a list of
+ * downsampling factors, or planned by halving dimensions until they
+ * would fall below a minimum size. In anisotropy-aware planning, only
+ * dimensions whose voxel size is less than twice the finest voxel size
+ * are halved, so that coarse levels approach isotropic voxels instead
+ * of keeping the number of z-slices of full resolution. If neither is
+ * configured, BigDataViewer's proposed mipmaps are used.
+ * <p>
+ * Optionally, the KLB block size of every level is given, the last one
+ * applying to all further levels.
+ * <p>
+ * The aggregation kernel defaults to {@link KlbDownsamplingKernel#MEAN}
+ * and may be overridden per setup, e.g. MODE for label images.
+ * <p>
+ * A plan is stored in the dataset XML as a Pyramid element of the
+ * ImageLoader.
+ */
+public class KlbPyramidPlan implements KlbPyramidPlanner
+{
+    public static final String XML_ELEMENT = "Pyramid";
+    public static final int DEFAULT_MIN_DIMENSION = 64;
+
+    private int[][] factors = null;
+    private boolean anisotropic = false;
+    private int minDimension = 0;
+    private int maxNumLevels = 0;
+    private int[][] blockSizes = null;
+    private KlbDownsamplingKernel kernel = KlbDownsamplingKernel.MEAN;
+    private final Map< Integer, KlbDownsamplingKernel > setupKernels = new HashMap< Integer, KlbDownsamplingKernel >();
+
+    public int[][] getFactors()
+    {
+        return factors;
+    }
+
+    /**
+     * Sets explicit downsampling factors of every level relative to full
+     * resolution, e.g. { { 1, 1, 1 }, { 2, 2, 1 }, { 4, 4, 2 } }. null
+     * (the default) plans the levels.
+     *
+     * @throws IllegalArgumentException if factors are not a valid pyramid,
+     *                                  see {@link #validate}
+     */
+    public void setFactors( final int[][] factors )
+    {
+        if ( factors != null ) {
+            validate( factors );
+        }
+        this.factors = factors == null ? null : copy( factors );
+    }
+
+    /**
+     * Checks that factors describe a pyramid: level 0 is 1,1,1, all
+     * factors are at least 1 and every level is a multiple of the
+     * previous one, so that levels can be computed from each other.
+     *
+     * @throws IllegalArgumentException otherwise
+     */
+    public static void validate( final int[][] factors )
+    {
+        if ( factors.length == 0 ) {
+            throw new IllegalArgumentException( "No resolution levels" );
+        }
+        for ( int level = 0; level < factors.length; ++level ) {
+            if ( factors[ level ].length != 3 ) {
+                throw new IllegalArgumentException( "Level " + level + " has " + factors[ level ].length + " factors instead of 3" );
+            }
+            for ( int d = 0; d < 3; ++d ) {
+                final int f = factors[ level ][ d ];
+                if ( level == 0 && f != 1 ) {
+                    throw new IllegalArgumentException( "Level 0 must be full resolution (1,1,1), got " + format( new int[][]{ factors[ 0 ] } ) );
+                }
+                if ( f < 1 ) {
+                    throw new IllegalArgumentException( "Factors must be at least 1, got " + format( new int[][]{ factors[ level ] } ) + " at level " + level );
+                }
+                if ( level > 0 && f % factors[ level - 1 ][ d ] != 0 ) {
+                    throw new IllegalArgumentException( "Factors of level " + level + " (" + format( new int[][]{ factors[ level ] } )
+                            + ") are not multiples of those of level " + (level - 1) + " (" + format( new int[][]{ factors[ level - 1 ] } ) + ")" );
+                }
+            }
+        }
+    }
+
+    public boolean isAnisotropic()
+    {
+        return anisotropic;
+    }
+
+    /**
+     * Enables anisotropy-aware planning, which halves only the
+     * dimensions with the finest voxel sizes.
+     */
+    public void setAnisotropic( final boolean anisotropic )
+    {
+        this.anisotropic = anisotropic;
+    }
+
+    public int getMinDimension()
+    {
+        return minDimension;
+    }
+
+    /**
+     * Sets the size below which a dimension is not halved any further
+     * in planning. 0 (the default) means {@value #DEFAULT_MIN_DIMENSION}
+     * in anisotropy-aware planning and BigDataViewer's proposal otherwise.
+     */
+    public void setMinDimension( final int minDimension )
+    {
+        this.minDimension = Math.max( 0, minDimension );
+    }
+
+    public int getMaxNumLevels()
+    {
+        return maxNumLevels;
+    }
+
+    /**
+     * Limits the number of resolution levels (including full
+     * resolution), 0 for no limit.
+     */
+    public void setMaxNumLevels( final int maxNumLevels )
+    {
+        this.maxNumLevels = Math.max( 0, maxNumLevels );
+    }
+
+    public int[][] getBlockSizeList()
+    {
+        return blockSizes;
+    }
+
+    /**
+     * Sets the KLB block sizes (x, y, z) of levels 0, 1, ..., the last
+     * one applying to all further levels. null (the default) uses the
+     * KLB default.
+     */
+    public void setBlockSizeList( final int[][] blockSizes )
+    {
+        this.blockSizes = blockSizes;
+    }
+
+    public KlbDownsamplingKernel getDefaultKernel()
+    {
+        return kernel;
+    }
+
+    /**
+     * Sets the kernel of all setups without a kernel of their own.
+     */
+    public void setKernel( final KlbDownsamplingKernel kernel )
+    {
+        this.kernel = kernel == null ? KlbDownsamplingKernel.MEAN : kernel;
+    }
+
+    /**
+     * Sets the kernel of one setup, null to use the default kernel.
+     */
+    public void setKernel( final int setupId, final KlbDownsamplingKernel kernel )
+    {
+        if ( kernel == null ) {
+            setupKernels.remove( setupId );
+        } else {
+            setupKernels.put( setupId, kernel );
+        }
+    }
+
+    @Override
+    public KlbDownsamplingKernel getKernel( final BasicViewSetup setup )
+    {
+        final KlbDownsamplingKernel k = setupKernels.get( setup.getId() );
+        return k != null ? k : kernel;
+    }
+
+    @Override
+    public int[][] getResolutions( final BasicViewSetup setup )
+    {
+        final int[][] resolutions;
+        if ( factors != null ) {
+            resolutions = copy( factors );
+        } else if ( anisotropic || minDimension > 0 ) {
+            resolutions = plan( setup );
+        } else {
+            resolutions = copy( ProposeMipmaps.proposeMipmaps( setup ).getExportResolutions() );
+        }
+        if ( maxNumLevels > 0 && resolutions.length > maxNumLevels ) {
+            final int[][] r = new int[ maxNumLevels ][];
+            System.arraycopy( resolutions, 0, r, 0, maxNumLevels );
+            return r;
+        }
+        return resolutions;
+    }
+
+    @Override
+    public long[][] getBlockSizes( final BasicViewSetup setup, final long[][] dimensions )
+    {
+        if ( blockSizes == null || blockSizes.length == 0 ) {
+            return null;
+        }
+        final long[][] sizes = new long[ dimensions.length ][];
+        for ( int level = 0; level < dimensions.length; ++level ) {
+            final int[] b = blockSizes[ Math.min( level, blockSizes.length - 1 ) ];
+            sizes[ level ] = new long[]{ 1, 1, 1, 1, 1 };
+            for ( int d = 0; d < 3; ++d ) {
+                sizes[ level ][ d ] = Math.max( 1, Math.min( b[ d ], dimensions[ level ][ d ] ) );
+            }
+        }
+        return sizes;
+    }
+
+    private int[][] plan( final BasicViewSetup setup )
+    {
+        final long[] dims = new long[ 3 ];
+        setup.getSize().dimensions( dims );
+        final double[] voxelSize = { 1, 1, 1 };
+        if ( anisotropic && setup.hasVoxelSize() ) {
+            setup.getVoxelSize().dimensions( voxelSize );
+        }
+        final int minDim = minDimension > 0 ? minDimension : DEFAULT_MIN_DIMENSION;
+
+        final List< int[] > levels = new ArrayList< int[] >();
+        int[] current = { 1, 1, 1 };
+        levels.add( current );
+        while ( maxNumLevels <= 0 || levels.size() < maxNumLevels ) {
+            // dimensions that stay at least minDim large when halved
+            final boolean[] eligible = new boolean[ 3 ];
+            double finest = Double.MAX_VALUE;
+            for ( int d = 0; d < 3; ++d ) {
+                eligible[ d ] = dims[ d ] / (2L * current[ d ]) >= minDim;
+                if ( eligible[ d ] ) {
+                    finest = Math.min( finest, voxelSize[ d ] * current[ d ] );
+                }
+            }
+            final int[] next = current.clone();
+            boolean any = false;
+            for ( int d = 0; d < 3; ++d ) {
+                if ( eligible[ d ] && voxelSize[ d ] * current[ d ] < 2 * finest ) {
+                    next[ d ] *= 2;
+                    any = true;
+                }
+            }
+            if ( !any ) {
+                break;
+            }
+            levels.add( next );
+            current = next;
+        }
+        return levels.toArray( new int[ levels.size() ][] );
+    }
+
+    /**
+     * Returns whether all settings are the defaults.
+     */
+    public boolean isDefault()
+    {
+        return factors == null && !anisotropic && minDimension == 0 && maxNumLevels == 0 && blockSizes == null
+                && kernel == KlbDownsamplingKernel.MEAN && setupKernels.isEmpty();
+    }
+
+    public Element toXml()
+    {
+        final Element elem = new Element( XML_ELEMENT );
+        if ( factors != null ) {
+            elem.addContent( XmlHelpers.textElement( "factors", format( factors ) ) );
+        }
+        if ( anisotropic ) {
+            elem.addContent( XmlHelpers.booleanElement( "anisotropic", true ) );
+        }
+        if ( minDimension > 0 ) {
+            elem.addContent( XmlHelpers.intElement( "minDimension", minDimension ) );
+        }
+        if ( maxNumLevels > 0 ) {
+            elem.addContent( XmlHelpers.intElement( "maxNumLevels", maxNumLevels ) );
+        }
+        if ( blockSizes != null ) {
+            elem.addContent( XmlHelpers.textElement( "blockSizes", format( blockSizes ) ) );
+        }
+        if ( kernel != KlbDownsamplingKernel.MEAN ) {
+            elem.addContent( XmlHelpers.textElement( "kernel", kernel.name() ) );
+        }
+        for ( final Map.Entry< Integer, KlbDownsamplingKernel > entry : new TreeMap< Integer, KlbDownsamplingKernel >( setupKernels ).entrySet() ) {
+            final Element k = XmlHelpers.textElement( "kernel", entry.getValue().name() );
+            k.setAttribute( "setup", entry.getKey().toString() );
+            elem.addContent( k );
+        }
+        return elem;
+    }
+
+    /**
+     * Reads a plan from a Pyramid element, null yields the default plan.
+     */
+    public static KlbPyramidPlan fromXml( final Element elem )
+    {
+        final KlbPyramidPlan plan = new KlbPyramidPlan();
+        if ( elem == null ) {
+            return plan;
+        }
+        if ( elem.getChild( "factors" ) != null ) {
+            plan.setFactors( parse( elem.getChildText( "factors" ) ) );
+        }
+        if ( elem.getChild( "anisotropic" ) != null ) {
+            plan.setAnisotropic( Boolean.parseBoolean( elem.getChildTextTrim( "anisotropic" ) ) );
+        }
+        if ( elem.getChild( "minDimension" ) != null ) {
+            plan.setMinDimension( Integer.parseInt( elem.getChildTextTrim( "minDimension" ) ) );
+        }
+        if ( elem.getChild( "maxNumLevels" ) != null ) {
+            plan.setMaxNumLevels( Integer.parseInt( elem.getChildTextTrim( "maxNumLevels" ) ) );
+        }
+        if ( elem.getChild( "blockSizes" ) != null ) {
+            plan.setBlockSizeList( parse( elem.getChildText( "blockSizes" ) ) );
+        }
+        for ( final Element k : elem.getChildren( "kernel" ) ) {
+            final KlbDownsamplingKernel kernel = KlbDownsamplingKernel.valueOf( k.getTextTrim().toUpperCase() );
+            final String setup = k.getAttributeValue( "setup" );
+            if ( setup == null ) {
+                plan.setKernel( kernel );
+            } else {
+                plan.setKernel( Integer.parseInt( setup.trim() ), kernel );
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Parses a list of 3D vectors like "1,1,1; 2,2,1; 4,4,2".
+     */
+    public static int[][] parse( final String text )
+    {
+        final String[] vectors = text.trim().split( "\\s*;\\s*" );
+        final int[][] values = new int[ vectors.length ][ 3 ];
+        for ( int i = 0; i < vectors.length; ++i ) {
+            final String[] components = vectors[ i ].split( "\\s*,\\s*" );
+            if ( components.length != 3 ) {
+                throw new IllegalArgumentException( "Expected 3 comma separated values, got '" + vectors[ i ] + "'" );
+            }
+            for ( int d = 0; d < 3; ++d ) {
+                values[ i ][ d ] = Integer.parseInt( components[ d ].trim() );
+            }
+        }
+        return values;
+    }
+
+    public static String format( final int[][] values )
+    {
+        final StringBuilder sb = new StringBuilder();
+        for ( int i = 0; i < values.length; ++i ) {
+            if ( i > 0 ) {
+                sb.append( "; " );
+            }
+            sb.append( values[ i ][ 0 ] ).append( ',' ).append( values[ i ][ 1 ] ).append( ',' ).append( values[ i ][ 2 ] );
+        }
+        return sb.toString();
+    }
+
+    private static int[][] copy( final int[][] values )
+    {
+        final int[][] c = new int[ values.length ][];
+        for ( int i = 0; i < values.length; ++i ) {
+            c[ i ] = values[ i ].clone();
+        }
+        return c;
+    }
+}
@@ -0,0 +1,30 @@
+package org.janelia.simview.klb.bdv;
+
+import mpicbg.spim.data.generic.sequence.BasicViewSetup;
+
+/**
+ * Plans the resolution levels generated by {@link KlbDownsampler}.
+ */
+public interface KlbPyramidPlanner
+{
+    /**
+     * Returns the downsampling factors of every resolution level
+     * relative to full resolution, starting with { 1, 1, 1 } for level 0.
+     * The returned arrays may be modified by the caller.
+     */
+    int[][] getResolutions( BasicViewSetup setup );
+
+    /**
+     * Returns the KLB block size (x, y, z, c, t) of every resolution
+     * level, or null to use the KLB default. Entries may be null, too.
+     *
+     * @param dimensions image dimensions of every resolution level
+     */
+    long[][] getBlockSizes( BasicViewSetup setup, long[][] dimensions );
+
+    /**
+     * Returns the kernel that aggregates the voxels of one block into a
+     * voxel of the next coarser level.
+     */
+    KlbDownsamplingKernel getKernel( BasicViewSetup setup );
+}
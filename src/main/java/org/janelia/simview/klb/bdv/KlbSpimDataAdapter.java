@@ -11,6 +11,7 @@ import spim.fiji.datasetmanager.MultiViewDatasetDefinition;
 import spim.fiji.spimdata.SpimData2;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 
@@ -149,9 +150,32 @@ public class KlbSpimDataAdapter implements MultiViewDatasetDefinition
      * @return whether or not successful
      */
     public void writeXML( final String filePath ) throws SpimDataException
+    {
+        writeXML( filePath, false );
+    }
+
+    /**
+     * Writes the dataset definition to XML and, optionally, a dataset
+     * index sidecar file next to it (file path + ".index"), which is
+     * referenced from the XML and lets subsequent loads skip probing
+     * file headers.
+     *
+     * @param filePath   file system path to write to
+     * @param writeIndex whether or not to write a dataset index
+     */
+    public void writeXML( final String filePath, final boolean writeIndex ) throws SpimDataException
     {
         final SpimData2 data = createDataset();
         data.setBasePath( new File( filePath ).getParentFile() );
+        if ( writeIndex ) {
+            final File indexFile = new File( filePath + ".index" );
+            try {
+                KlbDatasetIndex.write( resolver, indexFile );
+            } catch ( IOException e ) {
+                throw new SpimDataException( e );
+            }
+            (( KlbImgLoader ) data.getSequenceDescription().getImgLoader()).setIndexFile( indexFile );
+        }
         new XmlIoSpimData().save( data, filePath );
     }
 }
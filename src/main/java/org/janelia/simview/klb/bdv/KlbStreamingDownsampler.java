@@ -0,0 +1,380 @@
+package org.janelia.simview.klb.bdv;
+
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import org.janelia.simview.klb.KLB;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Generates all resolution levels of a KLB file in a single pass over
+ * its z-slabs, without loading the full resolution volume.
+ * <p>
+ * Planes of the source are pushed through a cascade of levels, each
+ * level aggregating blocks of planes of the previous level with a
+ * {@link KlbDownsamplingKernel} (the mean as bdv.export.Downsample
+ * computes it), so that memory depends on the slab depth
+ * and the size of the downsampled levels rather than on the size of
+ * the source. Levels are written once complete, since KLB files can
+ * only be written in one piece.
+ */
+class KlbStreamingDownsampler< T extends RealType< T > & NativeType< T > >
+{
+    private static final int UINT8 = 0, UINT16 = 1, FLOAT32 = 2;
+
+    private final KLB klb;
+    private final KlbArrayWriter writer;
+    private final T type;
+    private final int kind;
+    private final KlbDownsamplingKernel kernel;
+    private KlbImageStatistics.Accumulator statistics = null;
+
+    /**
+     * @param klb    KLB instance used to read and write, confined to the calling thread
+     * @param writer writer of the downsampled levels, confined to the calling thread
+     * @param type   pixel type of source and downsampled levels
+     * @param kernel aggregation of the voxels of a block
+     */
+    KlbStreamingDownsampler( final KLB klb, final KlbArrayWriter writer, final T type, final KlbDownsamplingKernel kernel )
+    {
+        this.kernel = kernel;
+        this.klb = klb;
+        this.writer = writer;
+        this.type = type;
+        if ( type instanceof UnsignedByteType ) {
+            kind = UINT8;
+        } else if ( type instanceof UnsignedShortType ) {
+            kind = UINT16;
+        } else if ( type instanceof FloatType ) {
+            kind = FLOAT32;
+        } else {
+            throw new IllegalArgumentException( "Unknown or unsupported data type." );
+        }
+    }
+
+    /**
+     * Sets an accumulator that is fed every plane of the source, or null
+     * (the default). With an accumulator, {@link #process} reads all
+     * planes, including those beyond the last complete block of level 1.
+     */
+    void setStatistics( final KlbImageStatistics.Accumulator statistics )
+    {
+        this.statistics = statistics;
+    }
+
+    /**
+     * Downsamples the source file and writes levels 1 and up.
+     *
+     * @param sourcePath  full resolution KLB file
+     * @param dims        image dimensions per level, level 0 is the source
+     * @param scales      downsampling factors of each level relative to the previous one
+     * @param smpl        sampling per level
+     * @param targetPaths file paths per level, entry 0 is ignored
+     * @param blockSizes  KLB block sizes per level, or null for the KLB default
+     * @param slabDepth   number of source planes read at once, ideally a multiple of the KLB block depth
+     */
+    void process( final String sourcePath, final long[][] dims, final int[][] scales, final double[][] smpl, final String[] targetPaths, final long[][] blockSizes, final int slabDepth )
+            throws IOException
+    {
+        if ( dims.length < 2 && statistics == null ) {
+            return;
+        }
+        // levels 1 and up, each pushing its planes to the next one
+        final ArrayList< Level > levels = new ArrayList< Level >();
+        Level next = null;
+        for ( int level = dims.length - 1; level > 0; --level ) {
+            next = new Level( dims[ level - 1 ], dims[ level ], scales[ level ], next );
+            levels.add( 0, next );
+        }
+        final Level first = levels.isEmpty() ? null : levels.get( 0 );
+
+        final int width = ( int ) dims[ 0 ][ 0 ], height = ( int ) dims[ 0 ][ 1 ];
+        final long depth = dims[ 0 ][ 2 ];
+        final int planeSize = width * height;
+        final double[] plane = new double[ planeSize ];
+        final int depthNeeded = first == null ? 0 : ( int ) Math.min( depth, first.numPlanesIn() );
+        final int depthRead = statistics == null ? depthNeeded : ( int ) depth;
+        final int slab = Math.max( 1, slabDepth );
+        Object buffer = null;
+        for ( int z0 = 0; z0 < depthRead; z0 += slab ) {
+            final int n = Math.min( slab, depthRead - z0 );
+            if ( buffer == null || n != slab ) {
+                buffer = createArray( n * planeSize );
+            }
+            read( sourcePath, new long[]{ 0, 0, z0, 0, 0 }, new long[]{ width - 1, height - 1, z0 + n - 1, 0, 0 }, buffer );
+            for ( int z = 0; z < n; ++z ) {
+                toDouble( buffer, z * planeSize, plane );
+                if ( statistics != null ) {
+                    statistics.addPlane( plane, z0 + z );
+                }
+                if ( z0 + z < depthNeeded ) {
+                    first.push( plane );
+                }
+            }
+        }
+
+        final long[] klbDims = { 0, 0, 0, 1, 1 };
+        final float[] klbSampling = { 1, 1, 1, 1, 1 };
+        for ( int level = 1; level < dims.length; ++level ) {
+            final Level l = levels.get( level - 1 );
+            for ( int d = 0; d < 3; ++d ) {
+                klbDims[ d ] = dims[ level ][ d ];
+                klbSampling[ d ] = ( float ) smpl[ level ][ d ];
+            }
+            writer.write( klb, l.output, level, targetPaths[ level ], klbDims, type, klbSampling, blockSizes == null ? null : blockSizes[ level ] );
+            // release the level as soon as it is written
+            l.output = null;
+        }
+    }
+
+    /**
+     * Estimates the peak heap usage of {@link #process} in bytes.
+     */
+    static long estimateMemory( final long[][] dims, final int[][] scales, final int bytesPerPixel, final int slabDepth, final KlbDownsamplingKernel kernel )
+    {
+        final long planeSize = dims[ 0 ][ 0 ] * dims[ 0 ][ 1 ];
+        long bytes = planeSize * (Math.max( 1, slabDepth ) * bytesPerPixel + 8);
+        for ( int level = 1; level < dims.length; ++level ) {
+            final long levelSize = dims[ level ][ 0 ] * dims[ level ][ 1 ] * dims[ level ][ 2 ];
+            bytes += levelSize * bytesPerPixel + 16 * dims[ level ][ 0 ] * dims[ level ][ 1 ];
+            // reused byte buffer of the level
+            bytes += bytesPerPixel > 1 ? levelSize * bytesPerPixel : 0;
+            if ( kernel == KlbDownsamplingKernel.MODE ) {
+                // samples of every block of an output plane
+                bytes += 8L * dims[ level ][ 0 ] * dims[ level ][ 1 ] * scales[ level ][ 0 ] * scales[ level ][ 1 ] * scales[ level ][ 2 ];
+            }
+        }
+        return bytes;
+    }
+
+    private Object createArray( final int numElements )
+    {
+        switch ( kind ) {
+            case UINT8:
+                return new byte[ numElements ];
+            case UINT16:
+                return new short[ numElements ];
+            default:
+                return new float[ numElements ];
+        }
+    }
+
+    private void read( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final Object buffer )
+            throws IOException
+    {
+        switch ( kind ) {
+            case UINT8:
+                klb.readROIinPlace( filePath, xyzctMin, xyzctMax, ( byte[] ) buffer );
+                break;
+            case UINT16:
+                klb.readROIinPlace( filePath, xyzctMin, xyzctMax, ( short[] ) buffer );
+                break;
+            default:
+                klb.readROIinPlace( filePath, xyzctMin, xyzctMax, ( float[] ) buffer );
+        }
+    }
+
+    private void toDouble( final Object src, final int offset, final double[] dst )
+    {
+        switch ( kind ) {
+            case UINT8: {
+                final byte[] a = ( byte[] ) src;
+                for ( int i = 0; i < dst.length; ++i ) {
+                    dst[ i ] = a[ offset + i ] & 0xff;
+                }
+                break;
+            }
+            case UINT16: {
+                final short[] a = ( short[] ) src;
+                for ( int i = 0; i < dst.length; ++i ) {
+                    dst[ i ] = a[ offset + i ] & 0xffff;
+                }
+                break;
+            }
+            default: {
+                final float[] a = ( float[] ) src;
+                for ( int i = 0; i < dst.length; ++i ) {
+                    dst[ i ] = a[ offset + i ];
+                }
+            }
+        }
+    }
+
+    private void store( final double[] src, final Object dst, final int offset )
+    {
+        switch ( kind ) {
+            case UINT8: {
+                final byte[] a = ( byte[] ) dst;
+                for ( int i = 0; i < src.length; ++i ) {
+                    a[ offset + i ] = ( byte ) src[ i ];
+                }
+                break;
+            }
+            case UINT16: {
+                final short[] a = ( short[] ) dst;
+                for ( int i = 0; i < src.length; ++i ) {
+                    a[ offset + i ] = ( short ) src[ i ];
+                }
+                break;
+            }
+            default: {
+                final float[] a = ( float[] ) dst;
+                for ( int i = 0; i < src.length; ++i ) {
+                    a[ offset + i ] = ( float ) src[ i ];
+                }
+            }
+        }
+    }
+
+    /**
+     * One downsampled level, accumulating planes of the previous level.
+     */
+    private final class Level
+    {
+        private final int inWidth, outWidth, outHeight, outDepth;
+        private final int[] factors;
+        private final int[] xMap;
+        private final double[] sums, outPlane;
+        private final double[] samples;
+        private final int blockSize;
+        private final double scale;
+        private final Level next;
+        private int numAccumulated = 0, z = 0;
+        Object output;
+
+        Level( final long[] inDims, final long[] outDims, final int[] factors, final Level next )
+        {
+            final long size = outDims[ 0 ] * outDims[ 1 ] * outDims[ 2 ];
+            if ( size * type.getBitsPerPixel() / 8 > Integer.MAX_VALUE - 8 ) {
+                throw new IllegalArgumentException( String.format( "Downsampled image must not be larger than 2GB (uncompressed), but is %d bytes large", size * type.getBitsPerPixel() / 8 ) );
+            }
+            inWidth = ( int ) inDims[ 0 ];
+            outWidth = ( int ) outDims[ 0 ];
+            outHeight = ( int ) outDims[ 1 ];
+            outDepth = ( int ) outDims[ 2 ];
+            this.factors = factors;
+            this.next = next;
+            xMap = new int[ outWidth * factors[ 0 ] ];
+            for ( int x = 0; x < xMap.length; ++x ) {
+                xMap[ x ] = x / factors[ 0 ];
+            }
+            sums = new double[ outWidth * outHeight ];
+            outPlane = new double[ sums.length ];
+            blockSize = factors[ 0 ] * factors[ 1 ] * factors[ 2 ];
+            scale = 1.0 / blockSize;
+            // the mode needs all samples of a block, other kernels accumulate
+            samples = kernel == KlbDownsamplingKernel.MODE ? new double[ sums.length * blockSize ] : null;
+            reset();
+            output = createArray( ( int ) size );
+        }
+
+        /**
+         * Number of planes of the previous level this level consumes,
+         * trailing planes are dropped.
+         */
+        long numPlanesIn()
+        {
+            return ( long ) outDepth * factors[ 2 ];
+        }
+
+        private void reset()
+        {
+            switch ( kernel ) {
+                case MAX:
+                    Arrays.fill( sums, Double.NEGATIVE_INFINITY );
+                    break;
+                case MIN:
+                    Arrays.fill( sums, Double.POSITIVE_INFINITY );
+                    break;
+                default:
+                    Arrays.fill( sums, 0 );
+            }
+        }
+
+        void push( final double[] plane )
+        {
+            if ( z >= outDepth ) {
+                return;
+            }
+            final int rows = outHeight * factors[ 1 ];
+            switch ( kernel ) {
+                case MEAN:
+                    for ( int y = 0; y < rows; ++y ) {
+                        final int row = (y / factors[ 1 ]) * outWidth;
+                        final int base = y * inWidth;
+                        for ( int x = 0; x < xMap.length; ++x ) {
+                            sums[ row + xMap[ x ] ] += plane[ base + x ];
+                        }
+                    }
+                    break;
+                case MAX:
+                    for ( int y = 0; y < rows; ++y ) {
+                        final int row = (y / factors[ 1 ]) * outWidth;
+                        final int base = y * inWidth;
+                        for ( int x = 0; x < xMap.length; ++x ) {
+                            sums[ row + xMap[ x ] ] = Math.max( sums[ row + xMap[ x ] ], plane[ base + x ] );
+                        }
+                    }
+                    break;
+                case MIN:
+                    for ( int y = 0; y < rows; ++y ) {
+                        final int row = (y / factors[ 1 ]) * outWidth;
+                        final int base = y * inWidth;
+                        for ( int x = 0; x < xMap.length; ++x ) {
+                            sums[ row + xMap[ x ] ] = Math.min( sums[ row + xMap[ x ] ], plane[ base + x ] );
+                        }
+                    }
+                    break;
+                case SUBSAMPLE:
+                    if ( numAccumulated == factors[ 2 ] / 2 ) {
+                        for ( int oy = 0; oy < outHeight; ++oy ) {
+                            final int base = (oy * factors[ 1 ] + factors[ 1 ] / 2) * inWidth + factors[ 0 ] / 2;
+                            for ( int ox = 0; ox < outWidth; ++ox ) {
+                                sums[ oy * outWidth + ox ] = plane[ base + ox * factors[ 0 ] ];
+                            }
+                        }
+                    }
+                    break;
+                default:
+                    // MODE: collect the samples of every block, in x, y, z order
+                    for ( int y = 0; y < rows; ++y ) {
+                        final int row = (y / factors[ 1 ]) * outWidth;
+                        final int base = y * inWidth;
+                        final int k = (numAccumulated * factors[ 1 ] + y % factors[ 1 ]) * factors[ 0 ];
+                        for ( int x = 0; x < xMap.length; ++x ) {
+                            samples[ (row + xMap[ x ]) * blockSize + k + x % factors[ 0 ] ] = plane[ base + x ];
+                        }
+                    }
+            }
+            if ( ++numAccumulated == factors[ 2 ] ) {
+                final boolean round = kind != FLOAT32;
+                for ( int i = 0; i < sums.length; ++i ) {
+                    switch ( kernel ) {
+                        case MEAN: {
+                            final double v = sums[ i ] * scale;
+                            outPlane[ i ] = round ? Math.floor( v + 0.5 ) : v;
+                            break;
+                        }
+                        case MODE:
+                            outPlane[ i ] = KlbDownsamplingKernel.mode( samples, i * blockSize, (i + 1) * blockSize );
+                            break;
+                        default:
+                            outPlane[ i ] = sums[ i ];
+                    }
+                }
+                reset();
+                store( outPlane, output, z * outPlane.length );
+                numAccumulated = 0;
+                ++z;
+                if ( next != null ) {
+                    next.push( outPlane );
+                }
+            }
+        }
+    }
+}
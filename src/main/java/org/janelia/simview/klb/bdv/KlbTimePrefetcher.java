@@ -0,0 +1,475 @@
+package org.janelia.simview.klb.bdv;
+
+import bdv.img.cache.CacheArrayLoader;
+import bdv.img.cache.CacheHints;
+import bdv.img.cache.LoadingStrategy;
+import bdv.img.cache.VolatileCell;
+import bdv.img.cache.VolatileGlobalCellCache;
+import bdv.img.cache.VolatileImgCells;
+import net.imglib2.img.basictypeaccess.volatiles.VolatileAccess;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prefetches cells along the time axis for BigDataViewer playback.
+ * <p>
+ * Every cell the viewer loads at time point t, or finds prefetched, is
+ * queued for loading at the next {@link #getDepth() depth} time points
+ * into the global cell cache. Queued cells are ordered by distance in time first and
+ * by the priority of the CacheHints of the requesting image second
+ * (coarse levels first). At most {@link #getBudget() budget} cells are
+ * queued at any time. Queued cells are dropped when the viewer jumps
+ * to a time point that is not among the prefetched ones.
+ * <p>
+ * Disabled (depth 0) by default.
+ */
+public class KlbTimePrefetcher
+{
+    private final VolatileGlobalCellCache cache;
+    private final int[] timePoints;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Cells that are queued or were loaded by the prefetcher.
+     */
+    private final ConcurrentHashMap< CellKey, Boolean > scheduled = new ConcurrentHashMap< CellKey, Boolean >();
+
+    /**
+     * Cells that were loaded by the prefetcher and not yet requested by the viewer.
+     */
+    private final ConcurrentHashMap< CellKey, Boolean > prefetched = new ConcurrentHashMap< CellKey, Boolean >();
+
+    /**
+     * Number of prefetched cells per image, keyed by time point, ViewSetup
+     * and level with index -1, so that images without any skip the lookup
+     * in prefetched. Only images with prefetched cells have an entry, a
+     * counter that dropped to zero is removed and never used again.
+     */
+    private final ConcurrentHashMap< CellKey, AtomicInteger > numPrefetched = new ConcurrentHashMap< CellKey, AtomicInteger >();
+
+    private final AtomicInteger numQueued = new AtomicInteger();
+
+    private final AtomicInteger generation = new AtomicInteger();
+    private final AtomicLong numLoaded = new AtomicLong(), numHits = new AtomicLong(), numCancelled = new AtomicLong();
+    private volatile int currentTimePointIndex = -1;
+    private volatile int depth = 0;
+    private volatile int budget = 1024;
+
+    KlbTimePrefetcher( final VolatileGlobalCellCache cache, final int[] timePoints, final int numThreads )
+    {
+        this.cache = cache;
+        this.timePoints = timePoints.clone();
+        Arrays.sort( this.timePoints );
+        executor = new ThreadPoolExecutor( numThreads, numThreads, 10, TimeUnit.SECONDS, new PriorityBlockingQueue< Runnable >(), new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread( final Runnable r )
+            {
+                final Thread thread = new Thread( r, "klb-prefetch-" + count.incrementAndGet() );
+                thread.setDaemon( true );
+                thread.setPriority( Thread.MIN_PRIORITY );
+                return thread;
+            }
+        } );
+        executor.allowCoreThreadTimeOut( true );
+    }
+
+    /**
+     * Sets the number of time points ahead of the current one to
+     * prefetch. 0 disables prefetching.
+     *
+     * @param depth number of time points
+     */
+    public void setDepth( final int depth )
+    {
+        this.depth = Math.max( 0, depth );
+        if ( depth <= 0 ) {
+            cancel();
+        }
+    }
+
+    public int getDepth()
+    {
+        return depth;
+    }
+
+    /**
+     * Sets the maximum number of cells queued for prefetching.
+     *
+     * @param budget maximum number of queued cells
+     */
+    public void setBudget( final int budget )
+    {
+        this.budget = Math.max( 0, budget );
+    }
+
+    public int getBudget()
+    {
+        return budget;
+    }
+
+    /**
+     * Returns the number of queued cells.
+     */
+    public int getNumQueued()
+    {
+        return numQueued.get();
+    }
+
+    /**
+     * Returns the number of cells loaded by the prefetcher.
+     */
+    public long getNumLoaded()
+    {
+        return numLoaded.get();
+    }
+
+    /**
+     * Returns the number of prefetched cells that were subsequently
+     * requested by the viewer.
+     */
+    public long getNumHits()
+    {
+        return numHits.get();
+    }
+
+    /**
+     * Returns the number of queued cells that were dropped before loading.
+     */
+    public long getNumCancelled()
+    {
+        return numCancelled.get();
+    }
+
+    /**
+     * Returns the fraction of prefetched cells that were subsequently
+     * requested by the viewer.
+     */
+    public double getHitRate()
+    {
+        final long loaded = numLoaded.get();
+        return loaded == 0 ? 0 : ( double ) numHits.get() / loaded;
+    }
+
+    public void resetStatistics()
+    {
+        numLoaded.set( 0 );
+        numHits.set( 0 );
+        numCancelled.set( 0 );
+    }
+
+    /**
+     * Drops all queued cells.
+     */
+    public void cancel()
+    {
+        generation.incrementAndGet();
+        final int numDropped = executor.getQueue().drainTo( new ArrayList< Runnable >() );
+        numQueued.addAndGet( -numDropped );
+        numCancelled.addAndGet( numDropped );
+        scheduled.clear();
+        prefetched.clear();
+        numPrefetched.clear();
+    }
+
+    /**
+     * Drops all queued cells and stops the prefetching threads. The
+     * prefetcher does nothing afterwards.
+     */
+    public void shutdown()
+    {
+        depth = 0;
+        executor.shutdown();
+        cancel();
+    }
+
+    /**
+     * Wraps the cell cache of an image, so that the cells it is asked
+     * for are reported to this prefetcher.
+     */
+    < A extends VolatileAccess > VolatileImgCells.CellCache< A > wrap(
+            final VolatileImgCells.CellCache< A > cellCache,
+            final int timePoint,
+            final int viewSetup,
+            final int level,
+            final int priority,
+            final long[] imageSize,
+            final int[] cellSize,
+            final CacheArrayLoader< A > loader )
+    {
+        return new PrefetchingCellCache< A >( cellCache, timePoint, viewSetup, level, priority, imageSize, cellSize, loader );
+    }
+
+    /**
+     * Counts a prefetched cell of an image. Counters at zero are on their
+     * way out of the map and are replaced instead of incremented.
+     */
+    private void incrementNumPrefetched( final CellKey imageKey )
+    {
+        while ( true ) {
+            final AtomicInteger n = numPrefetched.get( imageKey );
+            if ( n == null ) {
+                if ( numPrefetched.putIfAbsent( imageKey, new AtomicInteger( 1 ) ) == null ) {
+                    return;
+                }
+                continue;
+            }
+            final int v = n.get();
+            if ( v > 0 ) {
+                if ( n.compareAndSet( v, v + 1 ) ) {
+                    return;
+                }
+            } else {
+                numPrefetched.remove( imageKey, n );
+            }
+        }
+    }
+
+    /**
+     * Uncounts a prefetched cell of an image, removing the counter when it
+     * drops to zero.
+     */
+    private void decrementNumPrefetched( final CellKey imageKey, final AtomicInteger n )
+    {
+        if ( n.decrementAndGet() <= 0 ) {
+            numPrefetched.remove( imageKey, n );
+        }
+    }
+
+    /**
+     * Called when a cell that is not valid yet is requested, or any cell
+     * of an image that has prefetched cells: counts prefetch hits and
+     * schedules the cell at the next time points.
+     */
+    private void touched( final PrefetchingCellCache< ? > source, final long index )
+    {
+        final int d = depth;
+        if ( d <= 0 || executor.isShutdown() ) {
+            return;
+        }
+        final int pos = Arrays.binarySearch( timePoints, source.timePoint );
+        if ( pos < 0 ) {
+            return;
+        }
+        final int current = currentTimePointIndex;
+        if ( pos != current ) {
+            if ( current < 0 || pos < current || pos > current + d ) {
+                cancel();
+            }
+            currentTimePointIndex = pos;
+            forgetBefore( source.timePoint );
+        }
+
+        final AtomicInteger n = numPrefetched.get( source.imageKey );
+        if ( n != null && prefetched.remove( new CellKey( source.timePoint, source.viewSetup, source.level, index ) ) != null ) {
+            decrementNumPrefetched( source.imageKey, n );
+            numHits.incrementAndGet();
+        }
+
+        final int gen = generation.get();
+        for ( int i = 1; i <= d && pos + i < timePoints.length; ++i ) {
+            if ( numQueued.get() >= budget ) {
+                break;
+            }
+            final CellKey key = new CellKey( timePoints[ pos + i ], source.viewSetup, source.level, index );
+            if ( scheduled.putIfAbsent( key, Boolean.TRUE ) == null ) {
+                numQueued.incrementAndGet();
+                executor.execute( new PrefetchTask( key, i, gen, source ) );
+            }
+        }
+    }
+
+    /**
+     * Forgets cells of time points before the given one, they are no
+     * longer candidates for prefetching or hits.
+     */
+    private void forgetBefore( final int timePoint )
+    {
+        for ( final Iterator< CellKey > it = scheduled.keySet().iterator(); it.hasNext(); ) {
+            if ( it.next().timePoint < timePoint ) {
+                it.remove();
+            }
+        }
+        for ( final Iterator< CellKey > it = prefetched.keySet().iterator(); it.hasNext(); ) {
+            if ( it.next().timePoint < timePoint ) {
+                it.remove();
+            }
+        }
+        for ( final Iterator< CellKey > it = numPrefetched.keySet().iterator(); it.hasNext(); ) {
+            if ( it.next().timePoint < timePoint ) {
+                it.remove();
+            }
+        }
+    }
+
+    private final class PrefetchTask implements Runnable, Comparable< PrefetchTask >
+    {
+        private final CellKey key;
+        private final int distance;
+        private final int generation;
+        private final PrefetchingCellCache< ? > source;
+
+        PrefetchTask( final CellKey key, final int distance, final int generation, final PrefetchingCellCache< ? > source )
+        {
+            this.key = key;
+            this.distance = distance;
+            this.generation = generation;
+            this.source = source;
+        }
+
+        @Override
+        public int compareTo( final PrefetchTask o )
+        {
+            if ( distance != o.distance ) {
+                return distance < o.distance ? -1 : 1;
+            }
+            return o.source.priority < source.priority ? -1 : (o.source.priority == source.priority ? 0 : 1);
+        }
+
+        @Override
+        public void run()
+        {
+            numQueued.decrementAndGet();
+            final int pos = Arrays.binarySearch( timePoints, key.timePoint );
+            final int current = currentTimePointIndex;
+            if ( generation != KlbTimePrefetcher.this.generation.get() || pos <= current || pos > current + depth ) {
+                numCancelled.incrementAndGet();
+                scheduled.remove( key );
+                return;
+            }
+            source.load( key );
+            if ( prefetched.put( key, Boolean.TRUE ) == null ) {
+                incrementNumPrefetched( new CellKey( key.timePoint, key.viewSetup, key.level, -1 ) );
+            }
+            numLoaded.incrementAndGet();
+        }
+    }
+
+    private final class PrefetchingCellCache< A extends VolatileAccess > implements VolatileImgCells.CellCache< A >
+    {
+        private final VolatileImgCells.CellCache< A > delegate;
+        private final int timePoint, viewSetup, level, priority;
+        private final long[] imageSize;
+        private final int[] cellSize;
+        private final long[] numCells;
+        private final CacheArrayLoader< A > loader;
+        private final CellKey imageKey;
+
+        PrefetchingCellCache(
+                final VolatileImgCells.CellCache< A > delegate,
+                final int timePoint,
+                final int viewSetup,
+                final int level,
+                final int priority,
+                final long[] imageSize,
+                final int[] cellSize,
+                final CacheArrayLoader< A > loader )
+        {
+            this.delegate = delegate;
+            this.timePoint = timePoint;
+            this.viewSetup = viewSetup;
+            this.level = level;
+            this.priority = priority;
+            this.imageSize = imageSize.clone();
+            this.cellSize = cellSize.clone();
+            this.loader = loader;
+            numCells = new long[ imageSize.length ];
+            for ( int d = 0; d < imageSize.length; ++d ) {
+                numCells[ d ] = (imageSize[ d ] + cellSize[ d ] - 1) / cellSize[ d ];
+            }
+            imageKey = new CellKey( timePoint, viewSetup, level, -1 );
+        }
+
+        /**
+         * Prefetches only when the cell is not loaded yet: hits on valid
+         * cells are the bulk of the calls while rendering. They are only
+         * looked at while this image has prefetched cells, to count them.
+         */
+        @Override
+        public VolatileCell< A > get( final long index )
+        {
+            final VolatileCell< A > cell = delegate.get( index );
+            if ( cell == null || !cell.getData().isValid() || numPrefetched.containsKey( imageKey ) ) {
+                touched( this, index );
+            }
+            return cell;
+        }
+
+        @Override
+        public VolatileCell< A > load( final long index, final int[] cellDims, final long[] cellMin )
+        {
+            final VolatileCell< A > cell = delegate.load( index, cellDims, cellMin );
+            touched( this, index );
+            return cell;
+        }
+
+        @Override
+        public void setCacheHints( final CacheHints cacheHints )
+        {
+            delegate.setCacheHints( cacheHints );
+        }
+
+        /**
+         * Loads the cell with the same grid position as key.index at
+         * key.timePoint, blocking.
+         */
+        void load( final CellKey key )
+        {
+            final int n = numCells.length;
+            final long[] cellMin = new long[ n ];
+            final int[] cellDims = new int[ n ];
+            long i = key.index;
+            for ( int d = 0; d < n; ++d ) {
+                final long gridPos = i % numCells[ d ];
+                i /= numCells[ d ];
+                cellMin[ d ] = gridPos * cellSize[ d ];
+                cellDims[ d ] = ( int ) Math.min( cellSize[ d ], imageSize[ d ] - cellMin[ d ] );
+            }
+            final CacheHints hints = new CacheHints( LoadingStrategy.BLOCKING, priority, false );
+            final VolatileImgCells.CellCache< A > c = cache.new VolatileCellCache( key.timePoint, viewSetup, level, hints, loader );
+            c.load( key.index, cellDims, cellMin );
+        }
+    }
+
+    private static final class CellKey
+    {
+        final int timePoint, viewSetup, level;
+        final long index;
+
+        CellKey( final int timePoint, final int viewSetup, final int level, final long index )
+        {
+            this.timePoint = timePoint;
+            this.viewSetup = viewSetup;
+            this.level = level;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals( final Object o )
+        {
+            if ( !(o instanceof CellKey) ) {
+                return false;
+            }
+            final CellKey k = ( CellKey ) o;
+            return k.timePoint == timePoint && k.viewSetup == viewSetup && k.level == level && k.index == index;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            final int h = ((timePoint * 31 + viewSetup) * 31 + level) * 31;
+            return h + ( int ) (index ^ (index >>> 32));
+        }
+    }
+}
@@ -7,25 +7,200 @@ import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import org.janelia.simview.klb.KLB;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Loads BigDataViewer cells from KLB files.
+ * <p>
+ * A single instance is shared by all fetcher threads of the
+ * VolatileGlobalCellCache, so loadArray may be called concurrently.
+ * Instances therefore hold no mutable per-request state: every
+ * fetcher thread reads through its own, thread-confined KLB handle
+ * and file paths are looked up from the (immutable) resolver on
+ * every call.
+ * <p>
+ * Optionally, reads are coalesced into block-aligned batches (see
+ * {@link #setBatchDimensions}): the first cell requested from a batch
+ * reads the whole batch with a single ROI read, so that every KLB block
+ * in it is decompressed only once, and the cells of the batch are
+ * copied out of the decoded batch.
+ * <p>
+ * If a {@link KlbBlockCache} is set, cells are assembled from cached
+ * decompressed blocks when possible, and all blocks decompressed by a
+ * read are added to it. Arrays handed out by this loader may be shared
+ * with the block cache and must not be modified.
+ * <p>
+ * If a {@link KlbCompressedCellStore} is set, cells are restored from
+ * it when possible, and every decoded cell is added to it, so that cells
+ * dropped by the heap cache are restored without decoding KLB blocks.
+ * <p>
+ * If a {@link KlbDiskCellCache} is set, cells are likewise restored
+ * from, and written to, memory-mapped scratch files on local disk,
+ * which persist across sessions.
+ */
 public abstract class KlbVolatileArrayLoader< T extends RealType< T > & NativeType< T >, V extends Volatile< T > & NativeType< V >, A extends AbstractVolatileArray< A > > implements CacheArrayLoader< A >
 {
-    protected final KLB klb = KLB.newInstance();
     private final KlbPartitionResolver resolver;
-    private int
-            currentTimePoint = Integer.MIN_VALUE,
-            currentLevel = Integer.MIN_VALUE;
-    private String currentFilePath;
+
+    /**
+     * One KLB reader per fetcher thread. Each reader uses a single
+     * native thread, parallelism comes from the number of fetchers.
+     */
+    private final ThreadLocal< KLB > readers = new ThreadLocal< KLB >()
+    {
+        @Override
+        protected KLB initialValue()
+        {
+            final KLB klb = KLB.newInstance();
+            klb.setNumThreads( 1 );
+            return klb;
+        }
+    };
+
+    /**
+     * Batch dimensions in KLB blocks, null if reads are not coalesced.
+     */
+    private volatile int[] batchDimensions = null;
+
+    /**
+     * Recently read batches. A batch is read by the first thread asking
+     * for it, other threads wait for its result.
+     */
+    private final LinkedHashMap< BatchKey, FutureTask< Object > > batches = new LinkedHashMap< BatchKey, FutureTask< Object > >( 16, 0.75f, true )
+    {
+        @Override
+        protected boolean removeEldestEntry( final Map.Entry< BatchKey, FutureTask< Object > > eldest )
+        {
+            return size() > maxNumBatches;
+        }
+    };
+    private int maxNumBatches = 64;
+
+    private volatile KlbBlockCache blockCache = null;
+    private volatile KlbCompressedCellStore compressedCellStore = null;
+
+    private volatile KlbDiskCellCache diskCellCache = null;
+    private volatile KlbCacheLedger cacheLedger = null;
 
     public KlbVolatileArrayLoader( final KlbPartitionResolver resolver )
     {
         this.resolver = resolver;
-        klb.setNumThreads( 1 );
     }
 
     public abstract T getType();
 
     public abstract V getVolatileType();
 
+    /**
+     * Returns the KLB reader confined to the calling thread.
+     *
+     * @return KLB instance owned by the current thread
+     */
+    protected KLB getReader()
+    {
+        return readers.get();
+    }
+
+    /**
+     * Enables coalesced reads of batches of the given dimensions, in
+     * units of KLB blocks (e.g. {2, 2, 1}), aligned to multiples of
+     * the batch dimensions. Cells that are not contained in a single
+     * batch are read as the block-aligned region enclosing them.
+     * Passing null disables coalescing.
+     *
+     * @param batchDimensions batch dimensions in KLB blocks, or null
+     */
+    public void setBatchDimensions( final int[] batchDimensions )
+    {
+        this.batchDimensions = batchDimensions == null ? null : batchDimensions.clone();
+        synchronized ( batches ) {
+            batches.clear();
+        }
+    }
+
+    public int[] getBatchDimensions()
+    {
+        return batchDimensions == null ? null : batchDimensions.clone();
+    }
+
+    /**
+     * Sets the maximum number of decoded batches that are kept for
+     * subsequent cells of the same batch.
+     *
+     * @param maxNumBatches number of batches
+     */
+    public void setMaxNumBatches( final int maxNumBatches )
+    {
+        synchronized ( batches ) {
+            this.maxNumBatches = maxNumBatches;
+        }
+    }
+
+    /**
+     * Sets the cache of decompressed KLB blocks this loader consults
+     * before reading from disk, null to disable.
+     *
+     * @param blockCache block cache shared between loaders, or null
+     */
+    public void setBlockCache( final KlbBlockCache blockCache )
+    {
+        this.blockCache = blockCache;
+    }
+
+    public KlbBlockCache getBlockCache()
+    {
+        return blockCache;
+    }
+
+    /**
+     * Sets the off-heap store of compressed cells this loader consults
+     * first, and writes every cell it decodes to, null to disable.
+     *
+     * @param store compressed cell store shared between loaders, or null
+     */
+    public void setCompressedCellStore( final KlbCompressedCellStore store )
+    {
+        this.compressedCellStore = store;
+    }
+
+    public KlbCompressedCellStore getCompressedCellStore()
+    {
+        return compressedCellStore;
+    }
+
+    /**
+     * Sets the on-disk cache of decoded cells this loader consults after
+     * the compressed cell store, and writes every cell it decodes to,
+     * null to disable.
+     *
+     * @param cache disk cell cache shared between loaders, or null
+     */
+    public void setDiskCellCache( final KlbDiskCellCache cache )
+    {
+        this.diskCellCache = cache;
+    }
+
+    public KlbDiskCellCache getDiskCellCache()
+    {
+        return diskCellCache;
+    }
+
+    /**
+     * Sets the ledger every cell loaded into the cell cache is registered
+     * with, null to disable.
+     */
+    void setCacheLedger( final KlbCacheLedger ledger )
+    {
+        this.cacheLedger = ledger;
+    }
+
     @Override
     public A loadArray(
             final int timePoint,
@@ -36,23 +211,447 @@ public abstract class KlbVolatileArrayLoader< T extends RealType< T > & NativeTy
     )
             throws InterruptedException
     {
-        // Cache current file path
-        // viewSetup is always the same index, because instances of this class are not shared between SetupImgLoaders,
-        // so we only need to worry about time and level
-        if ( level != currentLevel || timePoint != currentTimePoint ) {
-            currentFilePath = resolver.getFilePath( timePoint, viewSetup, level );
-            currentTimePoint = timePoint;
+        final KlbMetrics.Level m = KlbMetrics.getInstance().get( viewSetup, level );
+        if ( m == null ) {
+            return load( timePoint, viewSetup, level, dimensions, offset, null );
+        }
+        final long start = System.nanoTime();
+        try {
+            return load( timePoint, viewSetup, level, dimensions, offset, m );
+        } finally {
+            m.cellsLoaded.incrementAndGet();
+            m.load.record( System.nanoTime() - start );
+        }
+    }
+
+    private A load( final int timePoint, final int viewSetup, final int level, final int[] dimensions, final long[] offset, final KlbMetrics.Level m )
+            throws InterruptedException
+    {
+        final int numElements = dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ];
+        final KlbCompressedCellStore store = compressedCellStore;
+        final boolean useStore = store != null && store.isEnabled();
+        // one buffer for the lookups, which is passed on to loadData if they miss
+        Object buffer = null;
+        if ( useStore ) {
+            buffer = createBuffer( numElements );
+            if ( store.get( timePoint, viewSetup, level, offset, buffer ) ) {
+                if ( m != null ) {
+                    m.storeHits.incrementAndGet();
+                }
+                return register( wrap( buffer ), dimensions );
+            }
         }
-        return loadArray( currentFilePath,
+
+        final KlbDiskCellCache disk = diskCellCache;
+        String filePath = null;
+        KlbFileHeader header = null;
+        if ( disk != null ) {
+            try {
+                header = resolver.readHeader( timePoint, viewSetup, level );
+                filePath = resolver.getFilePath( timePoint, viewSetup, level );
+            } catch ( IOException ex ) {
+                // missing file, nothing to cache
+            }
+            if ( header != null ) {
+                if ( buffer == null ) {
+                    buffer = createBuffer( numElements );
+                }
+                if ( disk.get( filePath, header, dimensions, offset, buffer ) ) {
+                    if ( m != null ) {
+                        m.diskCacheHits.incrementAndGet();
+                    }
+                    if ( useStore ) {
+                        store.put( timePoint, viewSetup, level, offset, buffer );
+                    }
+                    return register( wrap( buffer ), dimensions );
+                }
+            }
+        }
+
+        final Object cell = loadData( timePoint, viewSetup, level, dimensions, offset, buffer, m );
+        if ( cell == null ) {
+            // failed read, e.g. a transient I/O error: the empty cell is not stored in
+            // the persistent tiers, so that it is read again once the cell cache drops it
+            return register( wrap( createBuffer( numElements ) ), dimensions );
+        }
+        if ( header != null ) {
+            disk.put( filePath, header, dimensions, offset, cell );
+        }
+        if ( useStore ) {
+            store.put( timePoint, viewSetup, level, offset, cell );
+        }
+        return register( wrap( cell ), dimensions );
+    }
+
+    private A register( final A array, final int[] dimensions )
+    {
+        final KlbCacheLedger ledger = cacheLedger;
+        return ledger == null ? array : ledger.register( array, ( long ) dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] * getBytesPerElement() );
+    }
+
+    /**
+     * Loads a cell from the KLB file, into buffer if it is not null.
+     * Returns null if the file cannot be read.
+     */
+    private Object loadData( final int timePoint, final int viewSetup, final int level, final int[] dimensions, final long[] offset, final Object buffer, final KlbMetrics.Level m )
+            throws InterruptedException
+    {
+        final String filePath = resolver.getFilePath( timePoint, viewSetup, level );
+        final int[] batchDims = batchDimensions;
+        final KlbBlockCache cache = blockCache;
+        final boolean useCache = cache != null && cache.isEnabled();
+        if ( batchDims != null || useCache ) {
+            final long[] imageSize = new long[ 3 ];
+            final int[] blockSize = new int[ 3 ];
+            if ( resolver.getImageDimensions( timePoint, viewSetup, level, imageSize ) && resolver.getBlockDimensions( timePoint, viewSetup, level, blockSize ) ) {
+                return loadBlocks( filePath, dimensions, offset, imageSize, blockSize, batchDims, useCache ? cache : null, buffer, m );
+            }
+        }
+        return readCell( filePath,
                 new long[]{ offset[ 0 ], offset[ 1 ], offset[ 2 ], 0, 0 },
                 new long[]{
                         offset[ 0 ] + dimensions[ 0 ] - 1,
                         offset[ 1 ] + dimensions[ 1 ] - 1,
                         offset[ 2 ] + dimensions[ 2 ] - 1,
                         0, 0 },
-                dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ] );
+                dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ], buffer, m );
     }
 
-    public abstract A loadArray( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final int numElements )
-            throws InterruptedException;
+    /**
+     * Reads the ROI defined by xyzctMin and xyzctMax into a new array.
+     * On failure (e.g. file not found), returns an array of zeros.
+     */
+    public A loadArray( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final int numElements )
+            throws InterruptedException
+    {
+        final Object buffer = readCell( filePath, xyzctMin, xyzctMax, numElements, null, null );
+        return wrap( buffer == null ? createBuffer( numElements ) : buffer );
+    }
+
+    /**
+     * Reads the ROI defined by xyzctMin and xyzctMax into buffer, or a new
+     * array if buffer is null. Returns null on failure.
+     */
+    private Object readCell( final String filePath, final long[] xyzctMin, final long[] xyzctMax, final int numElements, final Object buffer, final KlbMetrics.Level m )
+    {
+        final Object cell = buffer != null ? buffer : createBuffer( numElements );
+        final long start = System.nanoTime();
+        try {
+            read( getReader(), filePath, xyzctMin, xyzctMax, cell );
+            if ( m != null ) {
+                m.recordRead( ( long ) numElements * getBytesPerElement(), 0, System.nanoTime() - start );
+            }
+            return cell;
+        } catch ( IOException ex ) {
+            recordFailure( m, filePath );
+            return null;
+        }
+    }
+
+    private static void recordFailure( final KlbMetrics.Level m, final String filePath )
+    {
+        if ( m != null ) {
+            if ( new File( filePath ).exists() ) {
+                m.failures.incrementAndGet();
+            } else {
+                m.missingFiles.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Creates a primitive array (e.g. short[]) for numElements elements.
+     */
+    protected abstract Object createBuffer( final int numElements );
+
+    /**
+     * Reads the ROI defined by xyzctMin and xyzctMax into buffer, a
+     * primitive array created by {@link #createBuffer}.
+     */
+    protected abstract void read( final KLB klb, final String filePath, final long[] xyzctMin, final long[] xyzctMax, final Object buffer )
+            throws IOException;
+
+    /**
+     * Wraps buffer, a primitive array created by {@link #createBuffer},
+     * into a valid volatile array.
+     */
+    protected abstract A wrap( final Object buffer );
+
+    /**
+     * Loads a cell block-wise: from the block cache if all blocks
+     * covered by the cell are cached, otherwise with a single ROI read
+     * of the batch containing the cell (or the block-aligned region
+     * enclosing it), whose blocks are then added to the block cache.
+     * The cell is assembled in buffer if it is not null. Returns null if
+     * the read fails.
+     */
+    private Object loadBlocks( final String filePath, final int[] dimensions, final long[] offset, final long[] imageSize, final int[] blockSize, final int[] batchDims, final KlbBlockCache cache, final Object buffer, final KlbMetrics.Level m )
+            throws InterruptedException
+    {
+        final int numElements = dimensions[ 0 ] * dimensions[ 1 ] * dimensions[ 2 ];
+        final long[] cellMax = new long[ 3 ];
+        final long[] firstBlock = new long[ 3 ];
+        final long[] lastBlock = new long[ 3 ];
+        for ( int d = 0; d < 3; ++d ) {
+            cellMax[ d ] = offset[ d ] + dimensions[ d ] - 1;
+            firstBlock[ d ] = offset[ d ] / blockSize[ d ];
+            lastBlock[ d ] = cellMax[ d ] / blockSize[ d ];
+        }
+
+        if ( cache != null ) {
+            final Object cell = assembleFromCache( cache, filePath, offset, cellMax, numElements, imageSize, blockSize, firstBlock, lastBlock, buffer );
+            if ( cell != null ) {
+                if ( m != null ) {
+                    m.blockCacheHits.incrementAndGet();
+                }
+                return cell;
+            }
+        }
+
+        // region to read: the batch containing the cell, or the block-aligned region enclosing it
+        final long[] regionMin = new long[ 3 ];
+        final long[] regionMax = new long[ 3 ];
+        boolean inBatch = batchDims != null;
+        if ( inBatch ) {
+            for ( int d = 0; d < 3; ++d ) {
+                final long extent = ( long ) batchDims[ d ] * blockSize[ d ];
+                regionMin[ d ] = offset[ d ] / extent * extent;
+                regionMax[ d ] = Math.min( regionMin[ d ] + extent, imageSize[ d ] ) - 1;
+                inBatch &= cellMax[ d ] <= regionMax[ d ];
+            }
+        }
+        if ( !inBatch ) {
+            for ( int d = 0; d < 3; ++d ) {
+                regionMin[ d ] = firstBlock[ d ] * blockSize[ d ];
+                regionMax[ d ] = Math.min( (lastBlock[ d ] + 1) * blockSize[ d ], imageSize[ d ] ) - 1;
+            }
+        }
+        final boolean regionIsCell = Arrays.equals( regionMin, offset ) && Arrays.equals( regionMax, cellMax );
+
+        final Object region = inBatch && !regionIsCell ? readBatch( filePath, regionMin, regionMax, blockSize, m ) : readRegion( filePath, regionMin, regionMax, blockSize, m );
+        if ( region == null ) {
+            return null;
+        }
+        if ( cache != null ) {
+            cacheBlocks( cache, filePath, region, regionMin, regionMax, imageSize, blockSize );
+        }
+        if ( regionIsCell ) {
+            return region;
+        }
+        final Object cell = buffer != null ? buffer : createBuffer( numElements );
+        copyBox( region, regionMin, regionMax, cell, offset, cellMax, offset, cellMax );
+        return cell;
+    }
+
+    /**
+     * Returns the cell [cellMin, cellMax] assembled from cached blocks,
+     * or null if not all blocks are cached.
+     */
+    private Object assembleFromCache( final KlbBlockCache cache, final String filePath, final long[] cellMin, final long[] cellMax, final int numElements, final long[] imageSize, final int[] blockSize, final long[] firstBlock, final long[] lastBlock, final Object buffer )
+    {
+        final int numBlocks = ( int ) ((lastBlock[ 0 ] - firstBlock[ 0 ] + 1) * (lastBlock[ 1 ] - firstBlock[ 1 ] + 1) * (lastBlock[ 2 ] - firstBlock[ 2 ] + 1));
+        final Object[] blocks = new Object[ numBlocks ];
+        int i = 0;
+        for ( long bz = firstBlock[ 2 ]; bz <= lastBlock[ 2 ]; ++bz ) {
+            for ( long by = firstBlock[ 1 ]; by <= lastBlock[ 1 ]; ++by ) {
+                for ( long bx = firstBlock[ 0 ]; bx <= lastBlock[ 0 ]; ++bx ) {
+                    blocks[ i ] = cache.get( filePath, bx, by, bz );
+                    if ( blocks[ i++ ] == null ) {
+                        return null;
+                    }
+                }
+            }
+        }
+
+        final long[] blockMin = new long[ 3 ];
+        final long[] blockMax = new long[ 3 ];
+        final long[] boxMin = new long[ 3 ];
+        final long[] boxMax = new long[ 3 ];
+        if ( numBlocks == 1 ) {
+            blockBounds( firstBlock[ 0 ], firstBlock[ 1 ], firstBlock[ 2 ], imageSize, blockSize, blockMin, blockMax );
+            if ( Arrays.equals( blockMin, cellMin ) && Arrays.equals( blockMax, cellMax ) ) {
+                return blocks[ 0 ];
+            }
+        }
+        final Object cell = buffer != null ? buffer : createBuffer( numElements );
+        i = 0;
+        for ( long bz = firstBlock[ 2 ]; bz <= lastBlock[ 2 ]; ++bz ) {
+            for ( long by = firstBlock[ 1 ]; by <= lastBlock[ 1 ]; ++by ) {
+                for ( long bx = firstBlock[ 0 ]; bx <= lastBlock[ 0 ]; ++bx ) {
+                    blockBounds( bx, by, bz, imageSize, blockSize, blockMin, blockMax );
+                    for ( int d = 0; d < 3; ++d ) {
+                        boxMin[ d ] = Math.max( blockMin[ d ], cellMin[ d ] );
+                        boxMax[ d ] = Math.min( blockMax[ d ], cellMax[ d ] );
+                    }
+                    copyBox( blocks[ i++ ], blockMin, blockMax, cell, cellMin, cellMax, boxMin, boxMax );
+                }
+            }
+        }
+        return cell;
+    }
+
+    /**
+     * Splits a block-aligned region into blocks and adds them to the
+     * block cache.
+     */
+    private void cacheBlocks( final KlbBlockCache cache, final String filePath, final Object region, final long[] regionMin, final long[] regionMax, final long[] imageSize, final int[] blockSize )
+    {
+        final long[] blockMin = new long[ 3 ];
+        final long[] blockMax = new long[ 3 ];
+        for ( long bz = regionMin[ 2 ] / blockSize[ 2 ]; bz <= regionMax[ 2 ] / blockSize[ 2 ]; ++bz ) {
+            for ( long by = regionMin[ 1 ] / blockSize[ 1 ]; by <= regionMax[ 1 ] / blockSize[ 1 ]; ++by ) {
+                for ( long bx = regionMin[ 0 ] / blockSize[ 0 ]; bx <= regionMax[ 0 ] / blockSize[ 0 ]; ++bx ) {
+                    blockBounds( bx, by, bz, imageSize, blockSize, blockMin, blockMax );
+                    if ( Arrays.equals( blockMin, regionMin ) && Arrays.equals( blockMax, regionMax ) ) {
+                        cache.put( filePath, bx, by, bz, region );
+                    } else {
+                        final Object block = createBuffer( ( int ) ((blockMax[ 0 ] - blockMin[ 0 ] + 1) * (blockMax[ 1 ] - blockMin[ 1 ] + 1) * (blockMax[ 2 ] - blockMin[ 2 ] + 1)) );
+                        copyBox( region, regionMin, regionMax, block, blockMin, blockMax, blockMin, blockMax );
+                        cache.put( filePath, bx, by, bz, block );
+                    }
+                }
+            }
+        }
+    }
+
+    private static void blockBounds( final long bx, final long by, final long bz, final long[] imageSize, final int[] blockSize, final long[] min, final long[] max )
+    {
+        min[ 0 ] = bx * blockSize[ 0 ];
+        min[ 1 ] = by * blockSize[ 1 ];
+        min[ 2 ] = bz * blockSize[ 2 ];
+        for ( int d = 0; d < 3; ++d ) {
+            max[ d ] = Math.min( min[ d ] + blockSize[ d ], imageSize[ d ] ) - 1;
+        }
+    }
+
+    /**
+     * Reads a batch through the batch table: the first thread asking for
+     * a batch reads it, other threads wait for its result. Returns null
+     * on failure.
+     */
+    private Object readBatch( final String filePath, final long[] batchMin, final long[] batchMax, final int[] blockSize, final KlbMetrics.Level m )
+            throws InterruptedException
+    {
+        final BatchKey key = new BatchKey( filePath, batchMin );
+        final FutureTask< Object > task;
+        final boolean isNew;
+        synchronized ( batches ) {
+            FutureTask< Object > t = batches.get( key );
+            isNew = t == null;
+            if ( isNew ) {
+                t = new FutureTask< Object >( new Callable< Object >()
+                {
+                    @Override
+                    public Object call() throws Exception
+                    {
+                        return readRegion( filePath, batchMin, batchMax, blockSize, m );
+                    }
+                } );
+                batches.put( key, t );
+            }
+            task = t;
+        }
+        if ( isNew ) {
+            task.run();
+        }
+
+        Object batch = null;
+        final long start = System.nanoTime();
+        try {
+            batch = task.get();
+        } catch ( ExecutionException ex ) {
+            // treated as failed read below
+        }
+        if ( !isNew && m != null ) {
+            m.wait.record( System.nanoTime() - start );
+        }
+        if ( batch == null ) {
+            synchronized ( batches ) {
+                batches.remove( key );
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Reads the block-aligned region [min, max] with a single ROI read.
+     * Returns null on failure.
+     */
+    private Object readRegion( final String filePath, final long[] min, final long[] max, final int[] blockSize, final KlbMetrics.Level m )
+    {
+        final int numElements = ( int ) ((max[ 0 ] - min[ 0 ] + 1) * (max[ 1 ] - min[ 1 ] + 1) * (max[ 2 ] - min[ 2 ] + 1));
+        final Object buffer = createBuffer( numElements );
+        final long start = System.nanoTime();
+        try {
+            read( getReader(), filePath,
+                    new long[]{ min[ 0 ], min[ 1 ], min[ 2 ], 0, 0 },
+                    new long[]{ max[ 0 ], max[ 1 ], max[ 2 ], 0, 0 },
+                    buffer );
+            if ( m != null ) {
+                long numBlocks = 1;
+                for ( int d = 0; d < 3; ++d ) {
+                    numBlocks *= max[ d ] / blockSize[ d ] - min[ d ] / blockSize[ d ] + 1;
+                }
+                m.recordRead( ( long ) numElements * getBytesPerElement(), numBlocks, System.nanoTime() - start );
+            }
+            return buffer;
+        } catch ( IOException ex ) {
+            recordFailure( m, filePath );
+            return null;
+        }
+    }
+
+    /**
+     * Copies the box [boxMin, boxMax] from src, a primitive array spanning
+     * [srcMin, srcMax], to dst, a primitive array spanning [dstMin, dstMax].
+     */
+    private static void copyBox( final Object src, final long[] srcMin, final long[] srcMax, final Object dst, final long[] dstMin, final long[] dstMax, final long[] boxMin, final long[] boxMax )
+    {
+        final long sx = srcMax[ 0 ] - srcMin[ 0 ] + 1;
+        final long sy = srcMax[ 1 ] - srcMin[ 1 ] + 1;
+        final long dx = dstMax[ 0 ] - dstMin[ 0 ] + 1;
+        final long dy = dstMax[ 1 ] - dstMin[ 1 ] + 1;
+        final int length = ( int ) (boxMax[ 0 ] - boxMin[ 0 ] + 1);
+        for ( long z = boxMin[ 2 ]; z <= boxMax[ 2 ]; ++z ) {
+            for ( long y = boxMin[ 1 ]; y <= boxMax[ 1 ]; ++y ) {
+                final long srcIndex = ((z - srcMin[ 2 ]) * sy + y - srcMin[ 1 ]) * sx + boxMin[ 0 ] - srcMin[ 0 ];
+                final long dstIndex = ((z - dstMin[ 2 ]) * dy + y - dstMin[ 1 ]) * dx + boxMin[ 0 ] - dstMin[ 0 ];
+                System.arraycopy( src, ( int ) srcIndex, dst, ( int ) dstIndex, length );
+            }
+        }
+    }
+
+    private static final class BatchKey
+    {
+        private final String filePath;
+        private final long x, y, z;
+
+        BatchKey( final String filePath, final long[] min )
+        {
+            this.filePath = filePath;
+            x = min[ 0 ];
+            y = min[ 1 ];
+            z = min[ 2 ];
+        }
+
+        @Override
+        public boolean equals( final Object o )
+        {
+            if ( !(o instanceof BatchKey) ) {
+                return false;
+            }
+            final BatchKey k = ( BatchKey ) o;
+            return k.x == x && k.y == y && k.z == z && k.filePath.equals( filePath );
+        }
+
+        @Override
+        public int hashCode()
+        {
+            long h = filePath.hashCode();
+            h = h * 31 + x;
+            h = h * 31 + y;
+            h = h * 31 + z;
+            return ( int ) (h ^ (h >>> 32));
+        }
+    }
 }
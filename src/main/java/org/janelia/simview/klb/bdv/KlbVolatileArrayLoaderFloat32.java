@@ -3,6 +3,7 @@ package org.janelia.simview.klb.bdv;
 import net.imglib2.img.basictypeaccess.volatiles.array.VolatileFloatArray;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.type.volatiles.VolatileFloatType;
+import org.janelia.simview.klb.KLB;
 
 import java.io.IOException;
 
@@ -10,7 +11,7 @@ public class KlbVolatileArrayLoaderFloat32 extends KlbVolatileArrayLoader< Float
 {
     private final FloatType type = new FloatType();
     private final VolatileFloatType volatileType = new VolatileFloatType();
-    private VolatileFloatArray theEmptyArray = new VolatileFloatArray( 96 * 96 * 8, false );
+    private volatile VolatileFloatArray theEmptyArray = new VolatileFloatArray( 96 * 96 * 8, false );
 
     public KlbVolatileArrayLoaderFloat32( final KlbPartitionResolver resolver )
     {
@@ -36,21 +37,22 @@ public class KlbVolatileArrayLoaderFloat32 extends KlbVolatileArrayLoader< Float
     }
 
     @Override
-    public VolatileFloatArray loadArray(
-            final String filePath,
-            final long[] xyzctMin,
-            final long[] xyzctMax,
-            final int numElements
-    )
-            throws InterruptedException
+    protected Object createBuffer( final int numElements )
     {
-        final float[] buffer = new float[ numElements ];
-        try {
-            klb.readROIinPlace( filePath, xyzctMin, xyzctMax, buffer );
-            return new VolatileFloatArray( buffer, true );
-        } catch ( IOException ex ) {
-            return new VolatileFloatArray( buffer, true );
-        }
+        return new float[ numElements ];
+    }
+
+    @Override
+    protected void read( final KLB klb, final String filePath, final long[] xyzctMin, final long[] xyzctMax, final Object buffer )
+            throws IOException
+    {
+        klb.readROIinPlace( filePath, xyzctMin, xyzctMax, ( float[] ) buffer );
+    }
+
+    @Override
+    protected VolatileFloatArray wrap( final Object buffer )
+    {
+        return new VolatileFloatArray( ( float[] ) buffer, true );
     }
 
     @Override
@@ -59,8 +61,12 @@ public class KlbVolatileArrayLoaderFloat32 extends KlbVolatileArrayLoader< Float
         int numEntities = 1;
         for ( int d : dimensions )
             numEntities *= d;
-        if ( theEmptyArray.getCurrentStorageArray().length < numEntities )
-            theEmptyArray = new VolatileFloatArray( numEntities, false );
-        return theEmptyArray;
+        // read the shared field once, emptyArray is called concurrently by all fetcher threads
+        VolatileFloatArray empty = theEmptyArray;
+        if ( empty.getCurrentStorageArray().length < numEntities ) {
+            empty = new VolatileFloatArray( numEntities, false );
+            theEmptyArray = empty;
+        }
+        return empty;
     }
 }
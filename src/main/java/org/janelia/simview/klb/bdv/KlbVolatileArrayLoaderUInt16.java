@@ -3,6 +3,7 @@ package org.janelia.simview.klb.bdv;
 import net.imglib2.img.basictypeaccess.volatiles.array.VolatileShortArray;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.volatiles.VolatileUnsignedShortType;
+import org.janelia.simview.klb.KLB;
 
 import java.io.IOException;
 
@@ -10,7 +11,7 @@ public class KlbVolatileArrayLoaderUInt16 extends KlbVolatileArrayLoader< Unsign
 {
     private final UnsignedShortType type = new UnsignedShortType();
     private final VolatileUnsignedShortType volatileType = new VolatileUnsignedShortType();
-    private VolatileShortArray theEmptyArray = new VolatileShortArray( 96 * 96 * 8, false );
+    private volatile VolatileShortArray theEmptyArray = new VolatileShortArray( 96 * 96 * 8, false );
 
     public KlbVolatileArrayLoaderUInt16( final KlbPartitionResolver resolver )
     {
@@ -36,21 +37,22 @@ public class KlbVolatileArrayLoaderUInt16 extends KlbVolatileArrayLoader< Unsign
     }
 
     @Override
-    public VolatileShortArray loadArray(
-            final String filePath,
-            final long[] xyzctMin,
-            final long[] xyzctMax,
-            final int numElements
-    )
-            throws InterruptedException
+    protected Object createBuffer( final int numElements )
     {
-        final short[] buffer = new short[ numElements ];
-        try {
-            klb.readROIinPlace( filePath, xyzctMin, xyzctMax, buffer );
-            return new VolatileShortArray( buffer, true );
-        } catch ( IOException ex ) {
-            return new VolatileShortArray( buffer, true );
-        }
+        return new short[ numElements ];
+    }
+
+    @Override
+    protected void read( final KLB klb, final String filePath, final long[] xyzctMin, final long[] xyzctMax, final Object buffer )
+            throws IOException
+    {
+        klb.readROIinPlace( filePath, xyzctMin, xyzctMax, ( short[] ) buffer );
+    }
+
+    @Override
+    protected VolatileShortArray wrap( final Object buffer )
+    {
+        return new VolatileShortArray( ( short[] ) buffer, true );
     }
 
     @Override
@@ -59,8 +61,12 @@ public class KlbVolatileArrayLoaderUInt16 extends KlbVolatileArrayLoader< Unsign
         int numEntities = 1;
         for ( int d : dimensions )
             numEntities *= d;
-        if ( theEmptyArray.getCurrentStorageArray().length < numEntities )
-            theEmptyArray = new VolatileShortArray( numEntities, false );
-        return theEmptyArray;
+        // read the shared field once, emptyArray is called concurrently by all fetcher threads
+        VolatileShortArray empty = theEmptyArray;
+        if ( empty.getCurrentStorageArray().length < numEntities ) {
+            empty = new VolatileShortArray( numEntities, false );
+            theEmptyArray = empty;
+        }
+        return empty;
     }
 }
@@ -3,6 +3,7 @@ package org.janelia.simview.klb.bdv;
 import net.imglib2.img.basictypeaccess.volatiles.array.VolatileByteArray;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.volatiles.VolatileUnsignedByteType;
+import org.janelia.simview.klb.KLB;
 
 import java.io.IOException;
 
@@ -10,7 +11,7 @@ public class KlbVolatileArrayLoaderUInt8 extends KlbVolatileArrayLoader< Unsigne
 {
     private final UnsignedByteType type = new UnsignedByteType();
     private final VolatileUnsignedByteType volatileType = new VolatileUnsignedByteType();
-    private VolatileByteArray theEmptyArray = new VolatileByteArray( 96 * 96 * 8, false );
+    private volatile VolatileByteArray theEmptyArray = new VolatileByteArray( 96 * 96 * 8, false );
 
     public KlbVolatileArrayLoaderUInt8( final KlbPartitionResolver resolver )
     {
@@ -36,21 +37,22 @@ public class KlbVolatileArrayLoaderUInt8 extends KlbVolatileArrayLoader< Unsigne
     }
 
     @Override
-    public VolatileByteArray loadArray(
-            final String filePath,
-            final long[] xyzctMin,
-            final long[] xyzctMax,
-            final int numElements
-    )
-            throws InterruptedException
+    protected Object createBuffer( final int numElements )
     {
-        final byte[] buffer = new byte[ numElements ];
-        try {
-            klb.readROIinPlace( filePath, xyzctMin, xyzctMax, buffer );
-            return new VolatileByteArray( buffer, true );
-        } catch ( IOException ex ) {
-            return new VolatileByteArray( buffer, true );
-        }
+        return new byte[ numElements ];
+    }
+
+    @Override
+    protected void read( final KLB klb, final String filePath, final long[] xyzctMin, final long[] xyzctMax, final Object buffer )
+            throws IOException
+    {
+        klb.readROIinPlace( filePath, xyzctMin, xyzctMax, ( byte[] ) buffer );
+    }
+
+    @Override
+    protected VolatileByteArray wrap( final Object buffer )
+    {
+        return new VolatileByteArray( ( byte[] ) buffer, true );
     }
 
     @Override
@@ -59,8 +61,12 @@ public class KlbVolatileArrayLoaderUInt8 extends KlbVolatileArrayLoader< Unsigne
         int numEntities = 1;
         for ( int d : dimensions )
             numEntities *= d;
-        if ( theEmptyArray.getCurrentStorageArray().length < numEntities )
-            theEmptyArray = new VolatileByteArray( numEntities, false );
-        return theEmptyArray;
+        // read the shared field once, emptyArray is called concurrently by all fetcher threads
+        VolatileByteArray empty = theEmptyArray;
+        if ( empty.getCurrentStorageArray().length < numEntities ) {
+            empty = new VolatileByteArray( numEntities, false );
+            theEmptyArray = empty;
+        }
+        return empty;
     }
 }
@@ -7,6 +7,7 @@ import mpicbg.spim.data.generic.sequence.XmlIoBasicImgLoader;
 import org.jdom2.Element;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Collections;
@@ -23,6 +24,17 @@ public class XmlIoKlbImageLoader implements XmlIoBasicImgLoader< KlbImgLoader >
         final Element elem = new Element( "ImageLoader" );
         elem.setAttribute( IMGLOADER_FORMAT_ATTRIBUTE_NAME, "klb" );
         elem.addContent( resolverToXml( imgLoader.getResolver() ) );
+        if ( imgLoader.getIndexFile() != null ) {
+            elem.addContent( XmlHelpers.pathElement( "IndexFile", imgLoader.getIndexFile(), basePath ) );
+        }
+        if ( imgLoader.getPyramidPlan() != null ) {
+            elem.addContent( imgLoader.getPyramidPlan().toXml() );
+        }
+        // runtime overrides (system properties, setters) are not persisted
+        final KlbCacheConfig cacheConfig = imgLoader.getDatasetCacheConfig();
+        if ( !cacheConfig.isDefault() ) {
+            elem.addContent( cacheConfig.toXml() );
+        }
         return elem;
     }
 
@@ -30,7 +42,31 @@ public class XmlIoKlbImageLoader implements XmlIoBasicImgLoader< KlbImgLoader >
     public KlbImgLoader fromXml( final Element elem, final File basePath, final AbstractSequenceDescription< ?, ?, ? > sequenceDescription )
     {
         final KlbPartitionResolver resolver = resolverFromXml( elem.getChild( "Resolver" ) );
-        return new KlbImgLoader( resolver, sequenceDescription );
+        File indexFile = null;
+        if ( elem.getChild( "IndexFile" ) != null ) {
+            indexFile = XmlHelpers.loadPath( elem, "IndexFile", basePath );
+            try {
+                resolver.setIndex( KlbDatasetIndex.load( indexFile ) );
+            } catch ( IOException e ) {
+                // fall back to probing file headers
+                e.printStackTrace();
+            }
+        }
+        // system properties override the dataset's settings in this JVM only
+        final KlbCacheConfig cacheConfig = KlbCacheConfig.fromXml( elem.getChild( KlbCacheConfig.XML_ELEMENT ) );
+        final KlbImgLoader loader = new KlbImgLoader( resolver, sequenceDescription, cacheConfig.copy().applySystemProperties() );
+        loader.setDatasetCacheConfig( cacheConfig );
+        loader.setIndexFile( indexFile );
+        final Element pyramidElem = elem.getChild( KlbPyramidPlan.XML_ELEMENT );
+        if ( pyramidElem != null ) {
+            try {
+                loader.setPyramidPlan( KlbPyramidPlan.fromXml( pyramidElem ) );
+            } catch ( RuntimeException e ) {
+                // the dataset remains readable without its plan
+                e.printStackTrace();
+            }
+        }
+        return loader;
     }
 
     private Element resolverToXml( final KlbPartitionResolver resolver )
@@ -21,6 +21,7 @@ public class NamePatternDialog extends JDialog implements ActionListener
     private final SingleFilePathPanel filePathPanel;
     private final JButton viewButton = new JButton( "View in Big Data Viewer" );
     private final JButton saveXmlButton = new JButton( "Save XML" );
+    private final JCheckBox writeIndexCheckBox = new JCheckBox( "Write index", false );
     private final JButton cancelButton = new JButton( "Cancel" );
 
     public NamePatternDialog()
@@ -62,10 +63,12 @@ public class NamePatternDialog extends JDialog implements ActionListener
         cancelButton.addActionListener( this );
 
         final JPanel buttonPanel = new JPanel();
-        buttonPanel.setLayout( new MigLayout( "", "[grow][][][]", "[]" ) );
+        buttonPanel.setLayout( new MigLayout( "", "[grow][][][][]", "[]" ) );
+        writeIndexCheckBox.setToolTipText( "Record all file headers next to the XML, so that opening the dataset does not read them" );
         buttonPanel.add( viewButton, "cell 1 0" );
-        buttonPanel.add( saveXmlButton, "cell 2 0" );
-        buttonPanel.add( cancelButton, "cell 3 0" );
+        buttonPanel.add( writeIndexCheckBox, "cell 2 0" );
+        buttonPanel.add( saveXmlButton, "cell 3 0" );
+        buttonPanel.add( cancelButton, "cell 4 0" );
 
         setLayout( new MigLayout( "", "[grow]", "[][][][]" ) );
         add( filePathPanel, "cell 0 0, grow" );
@@ -136,7 +139,7 @@ public class NamePatternDialog extends JDialog implements ActionListener
                 }
                 final KlbSpimDataAdapter spimData = new KlbSpimDataAdapter( getResolver() );
                 try {
-                    spimData.writeXML( filePath );
+                    spimData.writeXML( filePath, writeIndexCheckBox.isSelected() );
                 } catch ( SpimDataException ex ) {
                     ex.printStackTrace();
                     JOptionPane.showMessageDialog( this,